@@ -7,7 +7,6 @@ import java.util.List;
 
 import pwsafe.gui.MainWindow;
 import pwsafe.store.PasswordStoreList;
-import pwsafe.util.IOUtils;
 import pwsafe.util.SerializationUtils;
 
 /**
@@ -49,35 +48,71 @@ public class PWSafe {
         // Destroy any existing secrets first
         if (_passwordStores != null) {
             _passwordStores.destroySecrets();
+            _passwordStores.close();
             _passwordStores = null;
         }
-        if (_datastoreFile.length() > 0) {
-            byte[] serialized;
-            try {
-                serialized = IOUtils.readFile(_datastoreFile);
-            } catch (IOException e) {
-                throw new DatastoreFileException(String.format("Failed to read datastore file '%s'", _datastoreFile), e);
-            }
-            try {
-                _passwordStores = SerializationUtils.deserialize(serialized, PasswordStoreList.class);
-            } catch (SerializationUtils.SerializationException e) {
-                throw new DatastoreFileException("Failed to deserialize datastores", e);
-            }
-        } else {
-            _passwordStores = new PasswordStoreList();
-        }
+        _passwordStores = read();
         return _passwordStores;
     }
 
-    public void save() throws DatastoreFileException {
-        byte[] serialized;
+    /**
+     * Read the datastore file, without replacing the current stores: see {@link #setPasswordStoreList}.
+     * Safe to call from a background thread, as this touches no state except the file.
+     *
+     * @return the stores read, all locked, which read their encrypted entries from the file when unlocked
+     */
+    public PasswordStoreList read() throws DatastoreFileException {
         try {
-            serialized = SerializationUtils.serialize(_passwordStores);
+            return PasswordStoreList.read(_datastoreFile);
+        } catch (IOException e) {
+            throw new DatastoreFileException(String.format("Failed to read datastore file '%s'", _datastoreFile), e);
         } catch (SerializationUtils.SerializationException e) {
-            throw new DatastoreFileException("Failed to serialize datastore", e);
+            throw new DatastoreFileException("Failed to deserialize datastores", e);
+        }
+    }
+
+    /**
+     * Replace the current stores, for example with those from {@link #read()}, destroying the secrets in the
+     * current ones
+     *
+     * @param passwordStores the new stores, must not be null
+     */
+    public void setPasswordStoreList(PasswordStoreList passwordStores) {
+        if (passwordStores == null) {
+            throw new IllegalArgumentException("passwordStores must not be null");
+        }
+        if (_passwordStores != null && _passwordStores != passwordStores) {
+            _passwordStores.destroySecrets();
+            _passwordStores.close();
         }
+        _passwordStores = passwordStores;
+    }
+
+    public void save() throws DatastoreFileException {
+        // Locks all the stores at once, then streams to a temporary file which only replaces the datastore file
+        // once completely written
+        write(_passwordStores);
+    }
+
+    /**
+     * Save a copy of the current stores made by {@link PasswordStoreList#copyForSave()}, leaving the current ones as
+     * they are. Safe to call from a background thread, as this touches no state except the file and the copy.
+     * Afterwards, pass the copy to {@link PasswordStoreList#copySaved(PasswordStoreList)} on the current stores.
+     *
+     * @param copy the copy to write, must not be null
+     */
+    public void saveCopy(PasswordStoreList copy) throws DatastoreFileException {
+        if (copy == null) {
+            throw new IllegalArgumentException("copy must not be null");
+        }
+        write(copy);
+    }
+
+    private void write(PasswordStoreList passwordStores) throws DatastoreFileException {
         try {
-            IOUtils.writeFile(_datastoreFile, serialized);
+            passwordStores.write(_datastoreFile);
+        } catch (EncryptionException e) {
+            throw new DatastoreFileException("Failed to encrypt datastores", e);
         } catch (IOException e) {
             throw new DatastoreFileException(String.format("Failed to write datastore file '%s'", _datastoreFile), e);
         }
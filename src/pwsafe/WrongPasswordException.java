@@ -0,0 +1,62 @@
+package pwsafe;
+
+/**
+ * Thrown when a data store cannot be decrypted because the password is incorrect
+ *
+ * @author Nick Clarke
+ */
+public class WrongPasswordException extends DecryptionException {
+    /**
+     * serialVersionUID for this class.
+     */
+    private static final long serialVersionUID = 7311650418523702384L;
+
+
+    /**
+     * Constructs a WrongPasswordException with <code>null</code> as its detail message.
+     * The cause is not initialized, and may subsequently be initialized by a
+     * call to {@link #initCause}.
+     */
+    public WrongPasswordException() {
+        super();
+    }
+
+    /**
+     * Constructs a WrongPasswordException with the specified detail message. The
+     * cause is not initialized, and may subsequently be initialized by
+     * a call to {@link #initCause}.
+     *
+     * @param message the detail message, for later retrieval by the {@link #getMessage()} method.
+     */
+    public WrongPasswordException(final String message) {
+        super(message);
+    }
+
+    /**
+     * Constructs a WrongPasswordException with the specified detail message and
+     * cause.
+     * <p>
+     * Note that the detail message associated with <code>cause</code> is
+     * <i>not</i> automatically incorporated in this exception's detail message.
+     *
+     * @param message the detail message, for later retrieval by the {@link #getMessage()} method.
+     * @param cause the cause, for later retrieval by the {@link #getCause()} method. May be null.
+     */
+    public WrongPasswordException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * Constructs a WrongPasswordException with the specified cause and a detail message of
+     * <tt>(cause==null ? null : cause.toString())</tt> (which typically contains the
+     * class and detail message of <tt>cause</tt>).
+     * This constructor is useful for exceptions that are little more than
+     * wrappers for other throwables (for example, {@link
+     * java.security.PrivilegedActionException}).
+     *
+     * @param cause the cause, for later retrieval by the {@link #getCause()} method. May be null.
+     */
+    public WrongPasswordException(final Throwable cause) {
+        super(cause);
+    }
+}
@@ -0,0 +1,311 @@
+package pwsafe.gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.ExecutionException;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+import pwsafe.DatastoreFileException;
+import pwsafe.PWSafe;
+import pwsafe.store.PasswordStoreList;
+import pwsafe.util.SystemProperties;
+
+/**
+ * Saves changes in the background shortly after they are made, so that they reach the disk without the user
+ * pressing "Write to disk", and without a save holding up the window after every edit.
+ * <p>
+ * Each change restarts a quiet period, and saving starts once there have been no changes for that long, so a burst
+ * of edits is saved once. Changes made continually are still saved no later than a maximum delay after the first
+ * one not yet saved.
+ * <p>
+ * Saving writes a copy of the stores (see {@link PasswordStoreList#copyForSave()}), so unlike a manual save it
+ * locks nothing, and the stores can carry on being edited meanwhile; changes made meanwhile are saved next time.
+ * Only one save runs at once, and none while a {@link BackgroundTask} runs. Call {@link #finish()} before starting
+ * one, or anything else which must not overlap a save, such as a manual save or reload. If saving fails, the
+ * listener is told (once, until a save succeeds again), and saving is tried again after a delay which doubles with
+ * each failure in a row, up to the maximum delay.
+ * <p>
+ * Only used on the event dispatch thread.
+ *
+ * @author Nick Clarke
+ */
+final class Autosave {
+
+    /**
+     * System property which can be set to "off" to disable autosave, or to the quiet period and maximum delay in
+     * seconds, comma-separated. Defaults to "2,30".
+     */
+    public static final String AUTOSAVE_PROPERTY = "pwsafe.autosave";
+
+    private static final long DEFAULT_QUIET_MILLIS = 2000;
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+    private static final long MAX_DELAY_SECONDS = Integer.MAX_VALUE / 1000; // the most a Timer can wait
+    private static final long NANOS_PER_MILLI = 1000000;
+    private static final int BUSY_RETRY_MILLIS = 1000; // the least time to wait for a BackgroundTask to finish
+
+    private final PWSafe _pwsafe;
+    private final Listener _listener;
+    private final boolean _enabled;
+    private final long _quietMillis;
+    private final long _maxDelayMillis;
+    private final Timer _timer;
+
+    private PasswordStoreList _passwordStoreList = null; // the stores changed
+    private int _changeCount = 0;
+    // When the first and last changes not yet being saved were made (System.nanoTime), or -1 if there are none
+    private long _firstChangeNanos = -1;
+    private long _lastChangeNanos = -1;
+    private Save _save = null; // the save in progress, if any
+    private int _failureCount = 0; // saves failed in a row
+    private long _retryNanos = -1; // no save before this (System.nanoTime) after a failure, or -1 if none failed
+
+    /**
+     * Construct an Autosave, reading its settings from the {@link #AUTOSAVE_PROPERTY} system property
+     *
+     * @param pwsafe where to save, must not be null
+     * @param listener told when changes have been saved, must not be null
+     */
+    Autosave(final PWSafe pwsafe, final Listener listener) {
+        if (pwsafe == null) {
+            throw new IllegalArgumentException("pwsafe must not be null");
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        _pwsafe = pwsafe;
+        _listener = listener;
+        long[] delays = getDelays();
+        _enabled = (delays != null);
+        _quietMillis = _enabled ? delays[0] : 0;
+        _maxDelayMillis = _enabled ? delays[1] : 0;
+        _timer = new Timer(0, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    startSave();
+                }
+            });
+        _timer.setRepeats(false);
+    }
+
+    /**
+     * Note a change to the stores, to be saved once there have been no more changes for the quiet period
+     *
+     * @param passwordStoreList the stores changed, which are the ones saved, must not be null
+     */
+    void changed(PasswordStoreList passwordStoreList) {
+        if (passwordStoreList == null) {
+            throw new IllegalArgumentException("passwordStoreList must not be null");
+        }
+        if (!_enabled) {
+            return;
+        }
+        _passwordStoreList = passwordStoreList;
+        _changeCount++;
+        _lastChangeNanos = System.nanoTime();
+        if (_firstChangeNanos == -1) {
+            _firstChangeNanos = _lastChangeNanos;
+        }
+        schedule();
+    }
+
+    /**
+     * Forget the changes not yet being saved, because they have been saved some other way or discarded.
+     * Any save in progress carries on: call {@link #finish()} first to wait for it.
+     */
+    void cancel() {
+        _timer.stop();
+        _firstChangeNanos = -1;
+        _lastChangeNanos = -1;
+        _failureCount = 0;
+        _retryNanos = -1;
+    }
+
+    /**
+     * Wait for the save in progress to finish, if there is one, and handle its result now rather than later
+     */
+    void finish() {
+        Save save = _save;
+        if (save == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (!save.isDone()) {
+            try {
+                save.get();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                // Handled by finished
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        finished(save);
+    }
+
+    /**
+     * Stop for good, once any save in progress has finished, forgetting any changes not yet being saved
+     */
+    void stop() {
+        cancel();
+        finish();
+    }
+
+    /**
+     * Start the timer for the next save, if there are changes to save and no save in progress
+     * (which calls this again when finished)
+     */
+    private void schedule() {
+        if (_firstChangeNanos == -1 || _save != null) {
+            return;
+        }
+        long dueNanos = Math.min(_lastChangeNanos + _quietMillis * NANOS_PER_MILLI,
+                _firstChangeNanos + _maxDelayMillis * NANOS_PER_MILLI);
+        if (_retryNanos != -1) {
+            dueNanos = Math.max(dueNanos, _retryNanos);
+        }
+        long delayMillis = Math.max(0, (dueNanos - System.nanoTime()) / NANOS_PER_MILLI);
+        _timer.setInitialDelay((int) Math.min(delayMillis, Integer.MAX_VALUE));
+        _timer.restart();
+    }
+
+    private void startSave() {
+        if (_firstChangeNanos == -1 || _save != null) {
+            return;
+        }
+        if (BackgroundTask.isAnyRunning()) {
+            // It may be changing the stores or the file itself: try again once it has had time to finish
+            _timer.setInitialDelay((int) Math.max(_quietMillis, BUSY_RETRY_MILLIS));
+            _timer.restart();
+            return;
+        }
+        PasswordStoreList copy = _passwordStoreList.copyForSave();
+        // Unlocked stores with no key yet are left out, so those changes are still to be saved
+        boolean complete = (copy.getStores().size() == _passwordStoreList.getStores().size());
+        _firstChangeNanos = -1;
+        _lastChangeNanos = -1;
+        _save = new Save(_passwordStoreList, copy, _changeCount, complete);
+        _save.execute();
+    }
+
+    /**
+     * Handle the result of a save, once only
+     */
+    private void finished(Save save) {
+        if (_save != save) {
+            return;
+        }
+        _save = null;
+        try {
+            save.get();
+            save._passwordStoreList.copySaved(save._copy);
+            _failureCount = 0;
+            _retryNanos = -1;
+            if (save._complete && save._changeCount == _changeCount) {
+                _listener.saved();
+            }
+        } catch (InterruptedException e) {
+            // Can't happen, as the save has finished
+            Thread.currentThread().interrupt();
+            save._copy.destroySecrets();
+        } catch (ExecutionException e) {
+            save._copy.destroySecrets();
+            failed(save, e.getCause());
+        }
+        // Changes made while saving, or those which failed to save
+        schedule();
+    }
+
+    /**
+     * Keep the changes the failed save was of, to try saving them again after the backoff delay
+     */
+    private void failed(Save save, Throwable cause) {
+        long now = System.nanoTime();
+        if (_firstChangeNanos == -1) {
+            _firstChangeNanos = now;
+            _lastChangeNanos = now;
+        }
+        _passwordStoreList = save._passwordStoreList;
+        _failureCount++;
+        // Shifting at most 30 places can't overflow, as the base is at most MAX_DELAY_SECONDS
+        long delayMillis = Math.min(_maxDelayMillis,
+                Math.max(_quietMillis, BUSY_RETRY_MILLIS) << Math.min(_failureCount - 1, 30));
+        _retryNanos = now + delayMillis * NANOS_PER_MILLI;
+        if (_failureCount == 1) {
+            _listener.failed(cause);
+        }
+    }
+
+    /**
+     * @return the quiet period and maximum delay in milliseconds, or null if disabled
+     */
+    private static long[] getDelays() {
+        return SystemProperties.get(AUTOSAVE_PROPERTY, new SystemProperties.Parser<long[]>() {
+                public long[] parse(String value) {
+                    if (value.equalsIgnoreCase("off")) {
+                        return null;
+                    }
+                    String[] values = value.split(",");
+                    if (values.length != 2) {
+                        throw new IllegalArgumentException("expected quiet period and maximum delay in seconds");
+                    }
+                    long quietSeconds = Long.parseLong(values[0].trim());
+                    long maxDelaySeconds = Long.parseLong(values[1].trim());
+                    if (quietSeconds < 0 || maxDelaySeconds < quietSeconds || maxDelaySeconds > MAX_DELAY_SECONDS) {
+                        throw new IllegalArgumentException("expected 0 <= quiet period <= maximum delay <= "
+                                + MAX_DELAY_SECONDS);
+                    }
+                    return new long[] {quietSeconds * 1000, maxDelaySeconds * 1000};
+                }
+            }, new long[] {DEFAULT_QUIET_MILLIS, DEFAULT_MAX_DELAY_MILLIS});
+    }
+
+    /**
+     * Told when changes have been saved, or saving them has failed
+     */
+    static interface Listener {
+        /**
+         * Called on the event dispatch thread when all the changes made so far have been saved
+         */
+        void saved();
+
+        /**
+         * Called on the event dispatch thread when saving fails, after the last save succeeded (not for each retry)
+         *
+         * @param cause why saving failed
+         */
+        void failed(Throwable cause);
+    }
+
+    /**
+     * Writes a copy of the stores on a background thread
+     */
+    private final class Save extends SwingWorker<Void, Void> {
+
+        private final PasswordStoreList _passwordStoreList;
+        private final PasswordStoreList _copy;
+        private final int _changeCount;
+        private final boolean _complete;
+
+        Save(final PasswordStoreList passwordStoreList, final PasswordStoreList copy, final int changeCount,
+                final boolean complete) {
+            _passwordStoreList = passwordStoreList;
+            _copy = copy;
+            _changeCount = changeCount;
+            _complete = complete;
+        }
+
+        @Override
+        protected Void doInBackground() throws DatastoreFileException {
+            _pwsafe.saveCopy(_copy);
+            return null;
+        }
+
+        @Override
+        protected void done() {
+            // Unless already handled by Autosave.finish
+            finished(this);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package pwsafe.gui;
+
+import java.awt.BorderLayout;
+import java.awt.Frame;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingWorker;
+import javax.swing.WindowConstants;
+
+import pwsafe.util.CryptoUtils;
+import pwsafe.util.ProgressListener;
+
+/**
+ * Slow work (password hashing, encryption, file access) run on a background thread, so the window keeps painting.
+ * <p>
+ * If the work takes more than a moment, a modal dialog shows its progress, which also stops the user starting
+ * anything else meanwhile. The progress comes from {@link CryptoUtils#setProgressListener(ProgressListener)}.
+ * If the task is cancellable, the dialog's Cancel button interrupts the background thread, which stops any password
+ * hashing in progress.
+ * <p>
+ * The result is handled on the event dispatch thread, by {@link #succeeded}, {@link #failed} or
+ * {@link #cancelled}, only once the background work has finished, and before {@link #start()} returns. So input
+ * which arrived while start was waiting is only dispatched once the window shows the task's result; input to the
+ * window while the dialog is showing is blocked by it.
+ *
+ * @author Nick Clarke
+ */
+abstract class BackgroundTask<T> extends SwingWorker<T, Void> {
+
+    private static final long DIALOG_DELAY_MILLIS = 200; // don't flash a dialog up for quick tasks
+    private static final String CANCEL_BUTTON_TEXT = "Cancel";
+
+    // Tasks started but not yet finished, see isAnyRunning. Only touched on the event dispatch thread.
+    private static int _runningCount = 0;
+
+    private final Frame _owner;
+    private final String _message;
+    private final boolean _cancellable;
+    private JDialog _dialog = null; // only touched on the event dispatch thread
+    private boolean _handled = false; // only touched on the event dispatch thread
+
+    // Guarded by _lock, rather than this, which belongs to SwingWorker
+    private final Object _lock = new Object();
+    private Thread _thread = null;
+    private boolean _cancelRequested = false;
+
+    /**
+     * @param owner the window to show the progress dialog over
+     * @param message what is being done, to show in the progress dialog
+     * @param cancellable true to offer a Cancel button
+     */
+    BackgroundTask(final Frame owner, final String message, final boolean cancellable) {
+        _owner = owner;
+        _message = message;
+        _cancellable = cancellable;
+    }
+
+    /**
+     * Do the work. Called on a background thread, so must not touch any Swing components.
+     *
+     * @return the result to pass to {@link #succeeded}
+     */
+    protected abstract T runInBackground() throws Exception;
+
+    /**
+     * Called on the event dispatch thread when runInBackground has returned
+     */
+    protected abstract void succeeded(T result);
+
+    /**
+     * Called on the event dispatch thread when runInBackground has thrown, other than after cancelling.
+     * By default shows the error.
+     */
+    protected void failed(Throwable cause) {
+        JOptionPane.showMessageDialog(_owner, _message + " failed:\n" + cause.toString());
+    }
+
+    /**
+     * Called on the event dispatch thread when the task was cancelled, once runInBackground has finished.
+     * By default does nothing.
+     */
+    protected void cancelled() {}
+
+    /**
+     * Call on the event dispatch thread.
+     *
+     * @return true if any task has been started and not yet finished, including handling its result
+     */
+    static boolean isAnyRunning() {
+        return _runningCount > 0;
+    }
+
+    /**
+     * Start the task. Call on the event dispatch thread. Returns once the task has finished and its result has been
+     * handled, after showing the progress dialog if it takes more than a moment.
+     */
+    void start() {
+        _runningCount++;
+        execute();
+        try {
+            get(DIALOG_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            // Finished already - handle the result now, rather than after any input queued meanwhile
+            finish();
+            return;
+        } catch (TimeoutException e) {
+            // Still going - show the dialog below
+        } catch (InterruptedException e) {
+            // Handled in done()
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            finish();
+            return;
+        } catch (CancellationException e) {
+            finish();
+            return;
+        }
+        _dialog = createDialog();
+        // Blocks, dispatching events (including done()) until done() disposes the dialog
+        _dialog.setVisible(true);
+    }
+
+    private JDialog createDialog() {
+        final JDialog dialog = new JDialog(_owner, _message, true);
+        dialog.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+        final JProgressBar progressBar = new JProgressBar(0, 100);
+        progressBar.setIndeterminate(true);
+        addPropertyChangeListener(new PropertyChangeListener() {
+                public void propertyChange(PropertyChangeEvent e) {
+                    if ("progress".equals(e.getPropertyName())) {
+                        progressBar.setIndeterminate(false);
+                        progressBar.setValue((Integer) e.getNewValue());
+                    }
+                }
+            });
+
+        JPanel panel = new JPanel(new BorderLayout(0, 10));
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        panel.add(new JLabel(_message + "..."), BorderLayout.NORTH);
+        panel.add(progressBar, BorderLayout.CENTER);
+        if (_cancellable) {
+            final JButton cancelButton = new JButton(CANCEL_BUTTON_TEXT);
+            cancelButton.addActionListener(new ActionListener() {
+                    public void actionPerformed(ActionEvent e) {
+                        cancelButton.setEnabled(false);
+                        requestCancel();
+                    }
+                });
+            dialog.addWindowListener(new WindowAdapter() {
+                    @Override
+                    public void windowClosing(WindowEvent e) {
+                        cancelButton.setEnabled(false);
+                        requestCancel();
+                    }
+                });
+            panel.add(cancelButton, BorderLayout.SOUTH);
+        }
+        dialog.setContentPane(panel);
+        dialog.pack();
+        dialog.setResizable(false);
+        dialog.setLocationRelativeTo(_owner);
+        return dialog;
+    }
+
+    /**
+     * Interrupt the background thread, if it is still running. (SwingWorker.cancel would call done() at once,
+     * before the background work had stopped.)
+     */
+    private void requestCancel() {
+        synchronized (_lock) {
+            _cancelRequested = true;
+            if (_thread != null) {
+                _thread.interrupt();
+            }
+        }
+    }
+
+    private boolean isCancelRequested() {
+        synchronized (_lock) {
+            return _cancelRequested;
+        }
+    }
+
+    @Override
+    protected final T doInBackground() throws Exception {
+        synchronized (_lock) {
+            if (_cancelRequested) {
+                throw new CancellationException();
+            }
+            _thread = Thread.currentThread();
+        }
+        CryptoUtils.setProgressListener(new ProgressListener() {
+                public void progress(long completed, long total) {
+                    setProgress((int) Math.max(0, Math.min(100, completed * 100 / total)));
+                }
+            });
+        try {
+            return runInBackground();
+        } finally {
+            CryptoUtils.setProgressListener(null);
+            synchronized (_lock) {
+                _thread = null;
+                // Clear any interrupt from requestCancel, as SwingWorker threads are reused
+                Thread.interrupted();
+            }
+        }
+    }
+
+    @Override
+    protected final void done() {
+        // Unless already handled by start
+        finish();
+    }
+
+    /**
+     * Handle the result, once only
+     */
+    private void finish() {
+        if (_handled) {
+            return;
+        }
+        _handled = true;
+        try {
+            handleResult();
+        } finally {
+            _runningCount--;
+        }
+    }
+
+    private void handleResult() {
+        if (_dialog != null) {
+            _dialog.dispose();
+            _dialog = null;
+        }
+        T result;
+        try {
+            result = get();
+        } catch (InterruptedException e) {
+            // Can't happen, as the task has finished
+            Thread.currentThread().interrupt();
+            return;
+        } catch (CancellationException e) {
+            cancelled();
+            return;
+        } catch (ExecutionException e) {
+            // Work cut short by the interrupt may fail in other ways too
+            if (isCancelRequested()) {
+                cancelled();
+            } else {
+                failed(e.getCause());
+            }
+            return;
+        }
+        // Even if cancel was requested, the work finished anyway, so its result must be used
+        succeeded(result);
+    }
+}
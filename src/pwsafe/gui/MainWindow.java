@@ -18,12 +18,14 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.DefaultListModel;
@@ -48,12 +50,14 @@ import pwsafe.DatastoreFileException;
 import pwsafe.DecryptionException;
 import pwsafe.EncryptionException;
 import pwsafe.PWSafe;
+import pwsafe.WrongPasswordException;
 import pwsafe.store.Attachment;
 import pwsafe.store.AttachmentList;
 import pwsafe.store.PasswordStore;
 import pwsafe.store.PasswordStoreEntry;
 import pwsafe.store.PasswordStoreEntryList;
 import pwsafe.store.PasswordStoreList;
+import pwsafe.util.CipherSuite;
 import pwsafe.util.EncryptionKey;
 
 /**
@@ -74,9 +78,12 @@ public class MainWindow extends JFrame implements ActionListener {
     private static final String EXIT_BUTTON_TEXT = "Exit";
     // Store list
     private static final String UNLOCK_STORE_BUTTON_TEXT = "Unlock";
+    private static final String UNLOCK_ALL_STORES_BUTTON_TEXT = "Unlock all";
     private static final String CHANGE_STORE_PASSWORD_BUTTON_TEXT = "Change password";
     private static final String SET_STORE_PASSWORD_BUTTON_TEXT = "Set password";
     private static final String RENAME_STORE_BUTTON_TEXT = "Rename";
+    private static final String CHANGE_STORE_CIPHER_BUTTON_TEXT = "Cipher";
+    private static final String REKEY_STORE_BUTTON_TEXT = "Re-key";
     private static final String LOCK_STORE_BUTTON_TEXT = "Lock";
     private static final String ADD_STORE_BUTTON_TEXT = "Add";
     private static final String REMOVE_STORE_BUTTON_TEXT = "Delete";
@@ -108,8 +115,11 @@ public class MainWindow extends JFrame implements ActionListener {
         EXIT,
         // Store list
         LOCK_OR_UNLOCK_STORE,
+        UNLOCK_ALL_STORES,
         CHANGE_STORE_PASSWORD,
         RENAME_STORE,
+        CHANGE_STORE_CIPHER,
+        REKEY_STORE,
         ADD_STORE,
         REMOVE_STORE,
         // Entry list
@@ -132,6 +142,7 @@ public class MainWindow extends JFrame implements ActionListener {
     private final PWSafe _pwsafe;
     private PasswordStoreList _passwordStoreList;
     private boolean _needsSaveToDisk = false;
+    private final Autosave _autosave;
 
 // Main save/load/cancel buttons
     private JButton _saveToDiskButton;
@@ -141,8 +152,11 @@ public class MainWindow extends JFrame implements ActionListener {
 // Store list
     private JList _storeList;
     private JButton _lockOrUnlockStoreButton;
+    private JButton _unlockAllStoresButton;
     private JButton _changeStorePasswordButton;
     private JButton _renameStoreButton;
+    private JButton _changeStoreCipherButton;
+    private JButton _rekeyStoreButton;
     private JButton _addStoreButton;
     private JButton _removeStoreButton;
 
@@ -191,6 +205,17 @@ public class MainWindow extends JFrame implements ActionListener {
             throw new IllegalArgumentException("passwordStoreList must not be null");
         }
         _pwsafe = pwsafe;
+        _autosave = new Autosave(pwsafe, new Autosave.Listener() {
+                public void saved() {
+                    setNeedsSaveToDisk(false);
+                    reportCompactionFailure();
+                }
+
+                public void failed(Throwable cause) {
+                    JOptionPane.showMessageDialog(MainWindow.this,
+                            "Autosave failed, and will be tried again:\n" + cause.toString());
+                }
+            });
         setPasswordStoreList(passwordStoreList);
         // Create and populate dialog controls
         setup();
@@ -247,9 +272,22 @@ public class MainWindow extends JFrame implements ActionListener {
 
     private void setNeedsSaveToDisk(boolean needsSaveToDisk) {
         _needsSaveToDisk = needsSaveToDisk;
+        if (needsSaveToDisk) {
+            _autosave.changed(_passwordStoreList);
+        } else {
+            _autosave.cancel();
+        }
         updateSaveLoadButtonState();
     }
 
+    /**
+     * Start slow work in the background, once any autosave in progress has finished: the two never overlap
+     */
+    private void startBackgroundTask(BackgroundTask<?> task) {
+        _autosave.finish();
+        task.start();
+    }
+
     private void updateSaveLoadButtonState() {
         if (_saveToDiskButton != null) { // may be called at startup before these are created
             _saveToDiskButton.setEnabled(_needsSaveToDisk);
@@ -863,12 +901,15 @@ public class MainWindow extends JFrame implements ActionListener {
         _addStoreButton    = makeButton(hbox, ADD_STORE_BUTTON_TEXT,    -1,                     ButtonAction.ADD_STORE);
         _removeStoreButton = makeButton(hbox, REMOVE_STORE_BUTTON_TEXT, -1,                     ButtonAction.REMOVE_STORE);
         _lockOrUnlockStoreButton = makeButton(hbox, UNLOCK_STORE_BUTTON_TEXT, KeyEvent.VK_L,    ButtonAction.LOCK_OR_UNLOCK_STORE);
+        _unlockAllStoresButton = makeButton(hbox, UNLOCK_ALL_STORES_BUTTON_TEXT, KeyEvent.VK_K, ButtonAction.UNLOCK_ALL_STORES);
         box.add(hbox);
 
         hbox = Box.createHorizontalBox();
         _changeStorePasswordButton =
                              makeButton(hbox, CHANGE_STORE_PASSWORD_BUTTON_TEXT, KeyEvent.VK_P, ButtonAction.CHANGE_STORE_PASSWORD);
         _renameStoreButton = makeButton(hbox, RENAME_STORE_BUTTON_TEXT, KeyEvent.VK_N,          ButtonAction.RENAME_STORE);
+        _changeStoreCipherButton = makeButton(hbox, CHANGE_STORE_CIPHER_BUTTON_TEXT, -1,       ButtonAction.CHANGE_STORE_CIPHER);
+        _rekeyStoreButton  = makeButton(hbox, REKEY_STORE_BUTTON_TEXT, -1,                      ButtonAction.REKEY_STORE);
         box.add(hbox);
 
         return box;
@@ -913,7 +954,7 @@ public class MainWindow extends JFrame implements ActionListener {
         }
     }
 
-    private void unlockStore(PasswordStore store) {
+    private void unlockStore(final PasswordStore store) {
         assert (store.isLocked());
         PasswordEntryDialog dialog = new PasswordEntryDialog(this, "Enter store unlock password",
                 false, false, false, null);
@@ -923,39 +964,125 @@ public class MainWindow extends JFrame implements ActionListener {
         }
         assert (password.length != 0);
         // Try to decrypt
-        EncryptionKey key = new EncryptionKey(password);
-        try {
-            store.unlock(key);
-            // Store is now responsible for the key - keeps it for locking again later
-        } catch (DecryptionException e) {
-            key.destroySecrets();
-            JOptionPane.showMessageDialog(this,
-                    "Decryption failed - wrong password or corrupted file:\n" + e.toString());
+        final EncryptionKey key = new EncryptionKey(password);
+        startBackgroundTask(new BackgroundTask<Void>(this, "Unlocking store '" + store.getStoreName() + "'", true) {
+                @Override
+                protected Void runInBackground() throws DecryptionException {
+                    store.unlock(key);
+                    // Store is now responsible for the key - keeps it for locking again later
+                    return null;
+                }
+
+                @Override
+                protected void succeeded(Void result) {
+                    assert (!store.isLocked());
+                    setNeedsSaveToDisk(true);
+                    reloadPasswordStoreList(store);
+                    reloadPasswordStoreEntryList(null);
+                }
+
+                @Override
+                protected void failed(Throwable cause) {
+                    key.destroySecrets();
+                    if (cause instanceof WrongPasswordException) {
+                        JOptionPane.showMessageDialog(MainWindow.this,
+                                "Incorrect password for store '" + store.getStoreName() + "'");
+                    } else if (cause instanceof DecryptionException) {
+                        JOptionPane.showMessageDialog(MainWindow.this,
+                                "Decryption failed - wrong password or corrupted file:\n" + cause.toString());
+                    } else {
+                        super.failed(cause);
+                    }
+                }
+
+                @Override
+                protected void cancelled() {
+                    key.destroySecrets();
+                }
+            });
+    }
+
+    /**
+     * Try one password on every locked store, for when several stores share a password
+     */
+    private void unlockAllStores() {
+        PasswordEntryDialog dialog = new PasswordEntryDialog(this, "Enter password to unlock all stores using it",
+                false, false, false, null);
+        char[] password = dialog.showDialog();
+        if (password == null) { // cancelled
             return;
         }
-        // Successfully unlocked
-        assert (!store.isLocked());
-        setNeedsSaveToDisk(true);
-        reloadPasswordStoreList(store);
-        reloadPasswordStoreEntryList(null);
+        assert (password.length != 0);
+        final char[] unlockPassword = password;
+        startBackgroundTask(new BackgroundTask<PasswordStoreList.UnlockAllResult>(this, "Unlocking stores", false) {
+                @Override
+                protected PasswordStoreList.UnlockAllResult runInBackground() {
+                    // Takes responsibility for the password
+                    return _passwordStoreList.unlockAll(unlockPassword);
+                }
+
+                @Override
+                protected void succeeded(PasswordStoreList.UnlockAllResult result) {
+                    showUnlockAllResult(result);
+                }
+            });
     }
 
-    private void lockStore(PasswordStore store) {
-        assert (!store.isLocked());
-        try {
-            store.lock();
-            // Store is now responsible for the key - keeps it for locking again later
-        } catch (EncryptionException e) {
-            JOptionPane.showMessageDialog(this, "Encryption failed:\n" + e.toString());
+    private void showUnlockAllResult(PasswordStoreList.UnlockAllResult result) {
+        StringBuilder message = new StringBuilder();
+        if (result.getUnlocked().isEmpty()) {
+            message.append("No locked stores use that password");
+        } else {
+            message.append("Unlocked:");
+            for (PasswordStore store : result.getUnlocked()) {
+                message.append("\n    ").append(store.getStoreName());
+            }
+        }
+        if (!result.getFailures().isEmpty()) {
+            message.append("\n\nDecryption failed - corrupted file?");
+            for (Map.Entry<PasswordStore, DecryptionException> failure : result.getFailures().entrySet()) {
+                message.append("\n    ").append(failure.getKey().getStoreName()).append(": ")
+                        .append(failure.getValue().toString());
+            }
+        }
+        JOptionPane.showMessageDialog(this, message.toString());
+        if (result.getUnlocked().isEmpty()) {
             return;
         }
-        // Successfully locked
-        assert (store.isLocked());
         setNeedsSaveToDisk(true);
-        reloadPasswordStoreList(store);
+        PasswordStore selected = (PasswordStore) _storeList.getSelectedValue();
+        reloadPasswordStoreList((selected != null) ? selected : result.getUnlocked().get(0));
         reloadPasswordStoreEntryList(null);
     }
 
+    private void lockStore(final PasswordStore store) {
+        assert (!store.isLocked());
+        // Not cancellable: lock() discards the unencrypted entries even if encryption is cut short
+        startBackgroundTask(new BackgroundTask<Void>(this, "Locking store '" + store.getStoreName() + "'", false) {
+                @Override
+                protected Void runInBackground() throws EncryptionException {
+                    store.lock();
+                    return null;
+                }
+
+                @Override
+                protected void succeeded(Void result) {
+                    assert (store.isLocked());
+                    setNeedsSaveToDisk(true);
+                    reloadPasswordStoreList(store);
+                    reloadPasswordStoreEntryList(null);
+                }
+
+                @Override
+                protected void failed(Throwable cause) {
+                    JOptionPane.showMessageDialog(MainWindow.this, "Encryption failed:\n" + cause.toString());
+                    // Failure still destroys the entries
+                    reloadPasswordStoreList(store);
+                    reloadPasswordStoreEntryList(null);
+                }
+            });
+    }
+
     private void changeSelectedStorePassword() {
         PasswordStore store = (PasswordStore) _storeList.getSelectedValue();
         assert (store != null);
@@ -1004,6 +1131,41 @@ public class MainWindow extends JFrame implements ActionListener {
         }
     }
 
+    private void changeSelectedStoreCipher() {
+        PasswordStore store = (PasswordStore) _storeList.getSelectedValue();
+        assert (store != null);
+        assert (!store.isLocked());
+        List<CipherSuite> available = new ArrayList<CipherSuite>();
+        for (CipherSuite suite : CipherSuite.values()) {
+            if (suite.isAvailable()) {
+                available.add(suite);
+            }
+        }
+        CipherSuite suite = (CipherSuite) JOptionPane.showInputDialog(this,
+                "Cipher to encrypt store with when next locked or saved:", "Change store cipher",
+                JOptionPane.QUESTION_MESSAGE, null, available.toArray(), store.getCipherSuite());
+        if (suite != null && suite != store.getCipherSuite()) {
+            store.setCipherSuite(suite);
+            setNeedsSaveToDisk(true);
+        }
+    }
+
+    private void rekeySelectedStore() {
+        PasswordStore store = (PasswordStore) _storeList.getSelectedValue();
+        assert (store != null);
+        assert (!store.isLocked());
+        // Unchanged stores otherwise keep their existing encrypted data when locked or saved
+        if (JOptionPane.YES_OPTION == JOptionPane.showConfirmDialog(this,
+                "Encrypt store '" + store.getStoreName() + "' with a new random key and password salt\n"
+                + "when next locked or saved?",
+                "Confirm store re-key",
+                JOptionPane.YES_NO_OPTION,
+                JOptionPane.QUESTION_MESSAGE)) {
+            store.forceRekey();
+            setNeedsSaveToDisk(true);
+        }
+    }
+
     private void removeSelectedStore() {
         PasswordStore store = (PasswordStore) _storeList.getSelectedValue();
         assert (store != null);
@@ -1157,6 +1319,8 @@ public class MainWindow extends JFrame implements ActionListener {
             _lockOrUnlockStoreButton.setEnabled(false);
             _changeStorePasswordButton.setEnabled(false);
             _renameStoreButton.setEnabled(false);
+            _changeStoreCipherButton.setEnabled(false);
+            _rekeyStoreButton.setEnabled(false);
             _removeStoreButton.setEnabled(false);
             _addEntryButton.setEnabled(false);
         } else {
@@ -1169,13 +1333,25 @@ public class MainWindow extends JFrame implements ActionListener {
             _changeStorePasswordButton.setText((isLocked || hasKey) ? CHANGE_STORE_PASSWORD_BUTTON_TEXT
                                                                     : SET_STORE_PASSWORD_BUTTON_TEXT);
             _renameStoreButton.setEnabled(true);
+            _changeStoreCipherButton.setEnabled(!isLocked);
+            _rekeyStoreButton.setEnabled(!isLocked && hasKey);
             _removeStoreButton.setEnabled(true);
             _addEntryButton.setEnabled(!isLocked);
         }
+        _unlockAllStoresButton.setEnabled(hasLockedStores());
         _addStoreButton.setEnabled(true);
         _storeList.setEnabled(true);
     }
 
+    private boolean hasLockedStores() {
+        for (PasswordStore store : _passwordStoreList.getStores()) {
+            if (store.isLocked()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void enableEntryListAndButtons() {
         PasswordStore store = (PasswordStore) _storeList.getSelectedValue();
         PasswordStoreEntry entry = (PasswordStoreEntry) _entryList.getSelectedValue();
@@ -1213,8 +1389,11 @@ public class MainWindow extends JFrame implements ActionListener {
     private void setPasswordStoreListButtonsEnabled(boolean enabled) {
         _storeList.setEnabled(enabled);
         _lockOrUnlockStoreButton.setEnabled(enabled);
+        _unlockAllStoresButton.setEnabled(enabled && hasLockedStores());
         _changeStorePasswordButton.setEnabled(enabled);
         _renameStoreButton.setEnabled(enabled);
+        _changeStoreCipherButton.setEnabled(enabled);
+        _rekeyStoreButton.setEnabled(enabled);
         _addStoreButton.setEnabled(enabled);
         _removeStoreButton.setEnabled(enabled);
     }
@@ -1322,6 +1501,10 @@ public class MainWindow extends JFrame implements ActionListener {
      * Implementation of ActionListener
      */
     public void actionPerformed(ActionEvent e) {
+        if (BackgroundTask.isAnyRunning()) {
+            // The stores may be part way through changing; the buttons are updated once the task has finished
+            return;
+        }
         ButtonAction action = ButtonAction.valueOf(e.getActionCommand());
         switch (action) {
         case SAVE_TO_DISK:
@@ -1336,12 +1519,21 @@ public class MainWindow extends JFrame implements ActionListener {
         case LOCK_OR_UNLOCK_STORE:
             lockOrUnlockSelectedStore();
             break;
+        case UNLOCK_ALL_STORES:
+            unlockAllStores();
+            break;
         case CHANGE_STORE_PASSWORD:
             changeSelectedStorePassword();
             break;
         case RENAME_STORE:
             renameSelectedStore();
             break;
+        case CHANGE_STORE_CIPHER:
+            changeSelectedStoreCipher();
+            break;
+        case REKEY_STORE:
+            rekeySelectedStore();
+            break;
         case REMOVE_STORE:
             removeSelectedStore();
             break;
@@ -1417,38 +1609,106 @@ public class MainWindow extends JFrame implements ActionListener {
                 return;
             }
         }
-        try {
-            _pwsafe.save();
-        } catch (DatastoreFileException e) {
-            JOptionPane.showMessageDialog(this, "Save failed:\n" + e.toString());
-            return;
+        // Not cancellable, as saving locks the stores
+        startBackgroundTask(new BackgroundTask<Void>(this, "Saving", false) {
+                @Override
+                protected Void runInBackground() throws DatastoreFileException {
+                    _pwsafe.save();
+                    return null;
+                }
+
+                @Override
+                protected void succeeded(Void result) {
+                    setNeedsSaveToDisk(false);
+                    JOptionPane.showMessageDialog(MainWindow.this, "Saved ok");
+                    reportCompactionFailure();
+                    // Needed because saving locks any unlocked stores
+                    reloadPasswordStoreList((PasswordStore) _storeList.getSelectedValue());
+                    reloadPasswordStoreEntryList(null);
+                }
+
+                @Override
+                protected void failed(Throwable cause) {
+                    JOptionPane.showMessageDialog(MainWindow.this, "Save failed:\n" + cause.toString());
+                    // Stores may have been locked even so
+                    reloadPasswordStoreList((PasswordStore) _storeList.getSelectedValue());
+                    reloadPasswordStoreEntryList(null);
+                }
+            });
+    }
+
+    /**
+     * Tell the user if compacting the datastore file in the background has failed since last saving
+     */
+    private void reportCompactionFailure() {
+        IOException failure = _passwordStoreList.takeCompactionFailure();
+        if (failure != null) {
+            JOptionPane.showMessageDialog(MainWindow.this, "Compacting the datastore file failed, so it still holds "
+                    + "the old values of edited entries:\n" + failure.toString());
         }
-        setNeedsSaveToDisk(false);
-        JOptionPane.showMessageDialog(this, "Saved ok");
-        // Needed because serialization automatically locks any unlocked stores
-        reloadPasswordStoreList((PasswordStore) _storeList.getSelectedValue());
-        reloadPasswordStoreEntryList(null);
     }
 
-    private void reloadFromDisk() {
-        if ((!_needsSaveToDisk) || (JOptionPane.YES_OPTION == JOptionPane.showConfirmDialog(this,
-                "Reload and discard changes?",
-                "Confirm reload",
+    /**
+     * If there are unsaved changes, ask whether to discard them, without autosaving them meanwhile
+     *
+     * @return true if there are none, or they are to be discarded
+     */
+    private boolean confirmDiscardChanges(String message, String title) {
+        // The changes may be saved already
+        _autosave.finish();
+        if (!_needsSaveToDisk) {
+            return true;
+        }
+        _autosave.cancel();
+        if (JOptionPane.YES_OPTION == JOptionPane.showConfirmDialog(this,
+                message,
+                title,
                 JOptionPane.YES_NO_OPTION,
-                JOptionPane.WARNING_MESSAGE))) {
-            PasswordStoreList newStoreList;
-            try {
-                // This will automatically destroy existing secrets
-                newStoreList = _pwsafe.load();
-            } catch (DatastoreFileException e) {
-                JOptionPane.showMessageDialog(this, "Reload failed:\n" + e.toString());
-                return;
-            }
-            setNeedsSaveToDisk(false);
-            setPasswordStoreList(newStoreList);
-            JOptionPane.showMessageDialog(this, "Reloaded ok");
-            reloadPasswordStoreList(null);
-            reloadPasswordStoreEntryList(null);
+                JOptionPane.WARNING_MESSAGE)) {
+            return true;
+        }
+        _autosave.changed(_passwordStoreList);
+        return false;
+    }
+
+    private void reloadFromDisk() {
+        if (confirmDiscardChanges("Reload and discard changes?", "Confirm reload")) {
+            startBackgroundTask(new BackgroundTask<PasswordStoreList>(this, "Reloading", true) {
+                    @Override
+                    protected PasswordStoreList runInBackground() throws DatastoreFileException {
+                        // Leaves the current stores alone until we have the new ones
+                        return _pwsafe.read();
+                    }
+
+                    @Override
+                    protected void succeeded(PasswordStoreList newStoreList) {
+                        // This will destroy existing secrets
+                        _pwsafe.setPasswordStoreList(newStoreList);
+                        setNeedsSaveToDisk(false);
+                        setPasswordStoreList(newStoreList);
+                        JOptionPane.showMessageDialog(MainWindow.this, "Reloaded ok");
+                        reloadPasswordStoreList(null);
+                        reloadPasswordStoreEntryList(null);
+                    }
+
+                    @Override
+                    protected void failed(Throwable cause) {
+                        JOptionPane.showMessageDialog(MainWindow.this, "Reload failed:\n" + cause.toString());
+                        keepChanges();
+                    }
+
+                    @Override
+                    protected void cancelled() {
+                        keepChanges();
+                    }
+
+                    private void keepChanges() {
+                        // Not discarded after all, so autosave them again
+                        if (_needsSaveToDisk) {
+                            _autosave.changed(_passwordStoreList);
+                        }
+                    }
+                });
         }
     }
 
@@ -1457,11 +1717,7 @@ public class MainWindow extends JFrame implements ActionListener {
                  This may require stores to track whether entries were actually edited while unlocked...
                  but we want Lock to re-encrypt (new salt) each time, which requires saving to disk,
                  so is this distinction worthwhile? */
-        if ((!_needsSaveToDisk) || (JOptionPane.YES_OPTION == JOptionPane.showConfirmDialog(this,
-                "Quit without saving changes?",
-                "Confirm exit",
-                JOptionPane.YES_NO_OPTION,
-                JOptionPane.WARNING_MESSAGE))) {
+        if (confirmDiscardChanges("Quit without saving changes?", "Confirm exit")) {
             setVisible(false);
             dispose();
         }
@@ -1472,8 +1728,10 @@ public class MainWindow extends JFrame implements ActionListener {
      */
     @Override
     public void dispose() {
-        // Could auto-save here, for now we just explicitly zero keys/passwords in the stores
+        // Any changes not yet autosaved have been discarded, see confirmAndExit.
+        // Explicitly zero keys/passwords in the stores.
         try {
+            _autosave.stop();
             _passwordStoreList.destroySecrets();
             // Should be cleared already, but check just in case
             if (_entryAttachmentListCopy != null) {
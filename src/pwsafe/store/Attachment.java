@@ -8,6 +8,9 @@ import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Date;
 
+import pwsafe.util.RecordReader;
+import pwsafe.util.RecordWriter;
+
 /**
  * File binary data attached to store entries
  *
@@ -35,8 +38,20 @@ public class Attachment implements Serializable, Comparable<Attachment> {
      */
     private static final byte VERSION = 0x1;
 
+    /**
+     * Field tags in the record format, see {@link PasswordStoreEntryList#write(java.io.OutputStream)}.
+     * Never reuse a tag for a different field.
+     */
+    private static final int TAG_FILENAME = 1;
+    private static final int TAG_ATTACHMENT_CREATED = 2;
+    private static final int TAG_FILE_CONTENT = 3;
+    private static final int TAG_FILE_CONTENT_LAST_CHANGED = 4;
+    private static final int TAG_DESCRIPTION = 5;
+
 
     private transient boolean _destroyed = false;
+    // Set when a field is changed, see isModified()
+    private transient boolean _modified = false;
 
     private String _filename;
     private Date _attachmentCreated;
@@ -160,6 +175,9 @@ public class Attachment implements Serializable, Comparable<Attachment> {
      */
     private void setFilename(String filename) {
         checkFilename(filename);
+        if (!filename.equals(_filename)) {
+            _modified = true;
+        }
         _filename = filename;
     }
 
@@ -178,6 +196,9 @@ public class Attachment implements Serializable, Comparable<Attachment> {
      * @param description the new description
      */
     private void setDescription(String description) {
+        if (!description.equals(_description)) {
+            _modified = true;
+        }
         _description = description;
     }
 
@@ -185,7 +206,8 @@ public class Attachment implements Serializable, Comparable<Attachment> {
      * Get the file content (secret) for this record, if any.
      * <p>
      * <b>IMPORTANT:</b> this returns the internal array itself, not a copy,
-     * so any modifications to the array will be written back to the store with this record.
+     * so any modifications to the array will be written back to the store with this record
+     * (though they are not seen by {@link #isModified()}).
      * <p>
      * For security, caller should avoid storing references longer than necessary,
      * and if the caller copies the data, it MUST ensure it is zero-overwritten and discarded when finished.
@@ -220,9 +242,39 @@ public class Attachment implements Serializable, Comparable<Attachment> {
         _fileContent = fileContent;
         if (changed) {
             _fileContentLastChanged = savedTime;
+            _modified = true;
         }
     }
 
+    /**
+     * Has any field been changed since this Attachment was created or deserialized?
+     * <p>
+     * Changes made directly to the array returned by {@link #getFileContent()} are not detected:
+     * use {@link #setAllFields(String, byte[], String)} instead.
+     *
+     * @return true if changed
+     */
+    public boolean isModified() {
+        return _modified;
+    }
+
+    /**
+     * Does this Attachment have the same fields as another?
+     *
+     * @param other the attachment to compare with, must not be null
+     * @return true if all fields are equal
+     * @throws IllegalStateException if {@link #destroySecrets()} has already been called on either attachment
+     */
+    boolean contentEquals(Attachment other) {
+        checkNotDestroyed();
+        other.checkNotDestroyed();
+        return _filename.equals(other._filename)
+                && _description.equals(other._description)
+                && Arrays.equals(_fileContent, other._fileContent)
+                && _attachmentCreated.equals(other._attachmentCreated)
+                && _fileContentLastChanged.equals(other._fileContentLastChanged);
+    }
+
     /**
      * Get the date and time which the file content field was last changed,
      * or the initial entry creation time if never changed.
@@ -308,6 +360,87 @@ public class Attachment implements Serializable, Comparable<Attachment> {
         }
     }
 
+    /**
+     * @return the length of the fields written by {@link #writeRecord(RecordWriter)}
+     */
+    int getRecordLength() {
+        checkNotDestroyed();
+        return RecordWriter.stringFieldLength(_filename)
+                + RecordWriter.dateFieldLength()
+                + RecordWriter.bytesFieldLength(_fileContent)
+                + RecordWriter.dateFieldLength()
+                + RecordWriter.stringFieldLength(_description);
+    }
+
+    /**
+     * Write the fields of this Attachment in the record format
+     */
+    void writeRecord(RecordWriter writer) throws IOException {
+        checkNotDestroyed();
+        writer.writeString(TAG_FILENAME, _filename);
+        writer.writeDate(TAG_ATTACHMENT_CREATED, _attachmentCreated);
+        writer.writeBytes(TAG_FILE_CONTENT, _fileContent);
+        writer.writeDate(TAG_FILE_CONTENT_LAST_CHANGED, _fileContentLastChanged);
+        writer.writeString(TAG_DESCRIPTION, _description);
+    }
+
+    /**
+     * Read the fields of a record begun with {@link RecordReader#beginRecord()}, and end it.
+     * Only the filename and creation time are required.
+     */
+    static Attachment readRecord(RecordReader reader) throws IOException {
+        String filename = null;
+        Date attachmentCreated = null;
+        byte[] fileContent = null;
+        Date fileContentLastChanged = null;
+        String description = "";
+        boolean ok = false;
+        try {
+            while (reader.nextField()) {
+                switch (reader.getTag()) {
+                    case TAG_FILENAME:
+                        filename = reader.readString();
+                        break;
+                    case TAG_ATTACHMENT_CREATED:
+                        attachmentCreated = reader.readDate();
+                        break;
+                    case TAG_FILE_CONTENT:
+                        if (fileContent != null) {
+                            Arrays.fill(fileContent, (byte) 0);
+                        }
+                        fileContent = reader.readBytes();
+                        break;
+                    case TAG_FILE_CONTENT_LAST_CHANGED:
+                        fileContentLastChanged = reader.readDate();
+                        break;
+                    case TAG_DESCRIPTION:
+                        description = reader.readString();
+                        break;
+                    default:
+                        reader.skipField();
+                }
+            }
+            reader.endRecord();
+            if (filename == null || "".equals(filename) || attachmentCreated == null) {
+                throw new RecordReader.RecordFormatException("Attachment filename or creation time missing");
+            }
+            ok = true;
+        } finally {
+            if (!ok && fileContent != null) {
+                Arrays.fill(fileContent, (byte) 0);
+            }
+        }
+        Attachment attachment = new Attachment(filename);
+        attachment._attachmentCreated = attachmentCreated;
+        if (fileContent != null) {
+            attachment._fileContent = fileContent;
+        }
+        attachment._fileContentLastChanged = (fileContentLastChanged != null) ? fileContentLastChanged
+                                                                              : attachmentCreated;
+        attachment._description = description;
+        return attachment;
+    }
+
     /**
      * Explicit serialization to guarantee we can handle old versions if implementation evolves
      */
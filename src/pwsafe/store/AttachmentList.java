@@ -10,6 +10,9 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
+import pwsafe.util.RecordReader;
+import pwsafe.util.RecordWriter;
+
 /**
  * Wrapper for the list of attachment entries to be encrypted / decrypted as a unit
  *
@@ -37,8 +40,16 @@ public final class AttachmentList implements Serializable, Cloneable {
      */
     private static final byte VERSION = 0x1;
 
+    /**
+     * Field tags in the record format, see {@link PasswordStoreEntryList#write(java.io.OutputStream)}.
+     * Never reuse a tag for a different field.
+     */
+    private static final int TAG_ATTACHMENT = 1;
+
 
     private List<Attachment> _attachments;
+    // Set when an attachment is added or removed, see isModified()
+    private transient boolean _modified = false;
 
     /**
      * Construct an empty AttachmentList
@@ -108,6 +119,7 @@ public final class AttachmentList implements Serializable, Cloneable {
         checkNotDestroyed();
         Attachment attachment = new Attachment(filename);
         _attachments.add(attachment);
+        _modified = true;
         return attachment;
     }
 
@@ -127,11 +139,103 @@ public final class AttachmentList implements Serializable, Cloneable {
             if (!_attachments.remove(attachment)) {
                 throw new IllegalArgumentException("Attachment not present");
             }
+            _modified = true;
         } finally {
             attachment.destroySecrets();
         }
     }
 
+    /**
+     * Has an attachment been added, removed or changed since this AttachmentList was created, copied or
+     * deserialized?
+     *
+     * @return true if changed
+     * @throws IllegalStateException if {@link #destroySecrets()} has already been called
+     */
+    public boolean isModified() {
+        checkNotDestroyed();
+        if (_modified) {
+            return true;
+        }
+        for (Attachment attachment : _attachments) {
+            if (attachment.isModified()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Does this AttachmentList hold attachments with the same fields as another?
+     *
+     * @param other the list to compare with, must not be null
+     * @return true if the attachments are equal
+     * @throws IllegalStateException if {@link #destroySecrets()} has already been called on either list
+     */
+    boolean contentEquals(AttachmentList other) {
+        List<Attachment> attachments = getAttachments();
+        List<Attachment> otherAttachments = other.getAttachments();
+        if (attachments.size() != otherAttachments.size()) {
+            return false;
+        }
+        for (int i = 0; i < attachments.size(); i++) {
+            if (!attachments.get(i).contentEquals(otherAttachments.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the length of the fields written by {@link #writeRecord(RecordWriter)}
+     */
+    int getRecordLength() {
+        checkNotDestroyed();
+        int length = 0;
+        for (Attachment attachment : _attachments) {
+            length += RecordWriter.recordFieldLength(attachment.getRecordLength());
+        }
+        return length;
+    }
+
+    /**
+     * Write the fields of this AttachmentList in the record format
+     */
+    void writeRecord(RecordWriter writer) throws IOException {
+        checkNotDestroyed();
+        for (Attachment attachment : _attachments) {
+            writer.writeRecordStart(TAG_ATTACHMENT, attachment.getRecordLength());
+            attachment.writeRecord(writer);
+        }
+    }
+
+    /**
+     * Read the fields of a record begun with {@link RecordReader#beginRecord()}, and end it
+     */
+    static AttachmentList readRecord(RecordReader reader) throws IOException {
+        AttachmentList list = new AttachmentList();
+        boolean ok = false;
+        try {
+            while (reader.nextField()) {
+                switch (reader.getTag()) {
+                    case TAG_ATTACHMENT:
+                        reader.beginRecord();
+                        list._attachments.add(Attachment.readRecord(reader));
+                        break;
+                    default:
+                        reader.skipField();
+                }
+            }
+            reader.endRecord();
+            ok = true;
+        } finally {
+            if (!ok) {
+                list.destroySecrets();
+            }
+        }
+        return list;
+    }
+
     /**
      * Explicit serialization to guarantee we can handle old versions if implementation evolves
      */
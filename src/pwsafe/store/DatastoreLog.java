@@ -0,0 +1,541 @@
+package pwsafe.store;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import pwsafe.util.AtomicFileOutputStream;
+import pwsafe.util.RecordReader;
+
+/**
+ * A datastore file in the log layout, which saving appends to rather than rewriting, so a save costs about as much
+ * as the stores which have changed, not the whole file. See {@link PasswordStoreList#STORAGE_PROPERTY}.
+ * <p>
+ * The file is {@link PasswordStoreList#FILE_MAGIC} and {@link PasswordStoreList#FILE_VERSION_LOG}, then a commit for
+ * each save:
+ * <ul>
+ * <li>the encrypted entries of each store which has changed since the previous commit, one after another</li>
+ * <li>the index of all the stores, as for the indexed layout (see {@link PasswordStoreList#writeIndex}), with the
+ *     position in the file of each store's entries, which may be in this commit or any earlier one</li>
+ * <li>the trailer: the position of the index as 8 bytes big-endian, its length as 4, its CRC-32 as 4, then
+ *     {@link #COMMIT_MAGIC}</li>
+ * </ul>
+ * Only the last complete commit counts. The trailer is forced to disk only once the rest of the commit is, so a save
+ * interrupted by a crash leaves at worst an incomplete commit at the end, which reading skips back over and the next
+ * save overwrites.
+ * <p>
+ * Entries since replaced, and old indexes, are dead space. Once a save leaves that at least
+ * {@link #COMPACTION_DEAD_FRACTION} of the file (and {@link #COMPACTION_MIN_DEAD_BYTES}), a background thread compacts
+ * the file: it writes a new log with just the last commit and replaces the file with it atomically. Meanwhile saves
+ * wait for it. Stores go on reading the old file until the next save points them at the new one. If compacting fails,
+ * it is not tried again until the dead space has doubled, and the failure is kept for
+ * {@link #takeCompactionFailure()} to report.
+ * <p>
+ * The dead space still holds secrets though, which the thresholds alone would leave in a small file indefinitely.
+ * Where that matters, saving rewrites the whole file instead of appending (see {@link #rewrite(File, List)}): when
+ * a store or entry has been removed, or a store's password changed or re-keyed. A store's data key is kept when its
+ * password changes, so otherwise the old password, with the old wrapped data key, would still decrypt the current
+ * entries. The old values of entries which have only been edited are left in the dead space until compaction; that
+ * is the trade-off for saving an edit costing only the store edited.
+ * <p>
+ * Appending only works while this process is the only one writing the file. If the file has been replaced or changed
+ * by anything else since, the next save writes a whole new log instead.
+ *
+ * @author Nick Clarke
+ */
+final class DatastoreLog {
+
+    private static final byte[] COMMIT_MAGIC = {0x50, 0x57, 0x53, 0x43}; // "PWSC"
+    private static final int HEADER_LENGTH = PasswordStoreList.FILE_MAGIC.length + 1;
+    private static final int TRAILER_LENGTH = 8 + 4 + 4 + COMMIT_MAGIC.length;
+
+    private static final double COMPACTION_DEAD_FRACTION = 0.5;
+    private static final long COMPACTION_MIN_DEAD_BYTES = 1024 * 1024;
+    private static final int BUFFER_LENGTH = 64 * 1024;
+
+    // The thread compacting logs, see scheduleCompaction. Guarded by DatastoreLog.class
+    private static ExecutorService _compactionExecutor = null;
+
+
+    private final File _file;
+    // Set by close, checked by a compaction in progress so that it gives up
+    private volatile boolean _closed = false;
+    // The last compaction failure, until taken. Not guarded by this, so it can be taken while compacting
+    private final AtomicReference<IOException> _compactionFailure = new AtomicReference<IOException>();
+
+    // All guarded by this
+    private StoreFile _storeFile;
+    private boolean _appendable = true; // false after an append fails part way
+    // How the file was when last read or written by this log, to detect other changes to it
+    private Object _fileKey;
+    private FileTime _fileModified;
+    private long _committedLength; // the end of the last commit
+    private long _indexPosition; // the index of the last commit
+    private int _indexLength;
+    private long _liveLength; // the bytes in the last commit's stores' entries, index, header and trailer
+    private boolean _compactionScheduled = false;
+    private long _compactionRetryDeadLength = 0; // after compaction fails, the dead space before trying again
+    // The file before the last compaction, still read by the stores until the next append points them at the new one
+    private StoreFile _compactedStoreFile;
+    private Map<Long, Long> _compactedOffsets; // entries positions in _compactedStoreFile to those in _storeFile
+
+    private DatastoreLog(final File file) {
+        _file = file.getAbsoluteFile();
+    }
+
+    /**
+     * Read the last complete commit of a log
+     *
+     * @param file the log file
+     * @param storeFile the log file, open, which the stores will read their entries from
+     * @return the stores, locked, with this log attached to append to
+     * @throws RecordReader.RecordFormatException if the file has no complete commit
+     */
+    static PasswordStoreList read(File file, StoreFile storeFile) throws IOException {
+        DatastoreLog log = new DatastoreLog(file);
+        Commit commit = findLastCommit(storeFile);
+        PasswordStoreList list = PasswordStoreList.readIndex(commit._index, storeFile, 0);
+        synchronized (log) {
+            log._storeFile = storeFile;
+            log.committed(commit, list.getStores());
+        }
+        list.setLog(log);
+        return list;
+    }
+
+    /**
+     * Write a new log with one commit of all the stores, replacing the file atomically
+     * (see {@link AtomicFileOutputStream}), and point the stores at their entries in it.
+     *
+     * @param file the file to write
+     * @param stores the stores, all locked
+     * @return the new log, or null if it could not be opened after writing, in which case the stores carry on as
+     *         they were
+     * @throws IOException if writing fails, in which case the file is left as it was
+     */
+    static DatastoreLog create(File file, List<PasswordStore> stores) throws IOException {
+        DatastoreLog log = new DatastoreLog(file);
+        synchronized (log) {
+            Commit commit = log.writeNewFile(stores);
+            try {
+                log._storeFile = log.openNewFile(commit);
+            } catch (IOException e) {
+                return null;
+            }
+            for (int i = 0; i < stores.size(); i++) {
+                stores.get(i).setStoredEntries(log._storeFile, commit._entriesOffsets[i]);
+            }
+            log.committed(commit, stores);
+        }
+        return log;
+    }
+
+    /**
+     * Append a commit of the stores, writing the entries only of those not already in the log, and point the
+     * stores at their entries in it. Waits for any compaction in progress to finish first.
+     *
+     * @param file the file to write, which must be the file of this log
+     * @param stores the stores, all locked
+     * @return true if appended; false if this log cannot be appended to, because file is another file, the log file
+     *         has been changed by something else, or the last append failed, in which case nothing is written
+     * @throws IOException if writing fails, in which case the last commit is still the last complete one
+     */
+    synchronized boolean append(File file, List<PasswordStore> stores) throws IOException {
+        if (_closed || !_appendable || !_storeFile.isWritable() || !_file.equals(file.getAbsoluteFile())
+                || !isUnchangedOnDisk()) {
+            return false;
+        }
+        // Until this commit is complete: after a failure, the next save writes a new log
+        _appendable = false;
+        // Overwrite any incomplete commit left by an interrupted save
+        _storeFile.truncate(_committedLength);
+        OutputStream output = new BufferedOutputStream(_storeFile.newOutputStream(_committedLength), BUFFER_LENGTH);
+        Commit commit = writeCommit(output, _committedLength, stores, true);
+        output.flush();
+        // Everything the trailer commits must be on disk before the trailer
+        _storeFile.force();
+        output.write(commit._trailer);
+        output.flush();
+        _storeFile.force();
+        _appendable = true;
+
+        for (int i = 0; i < stores.size(); i++) {
+            stores.get(i).setStoredEntries(_storeFile, commit._entriesOffsets[i]);
+        }
+        if (_compactedStoreFile != null) {
+            // No store reads the file from before compaction now
+            _compactedStoreFile.close();
+            _compactedStoreFile = null;
+            _compactedOffsets = null;
+        }
+        committed(commit, stores);
+        scheduleCompaction();
+        return true;
+    }
+
+    /**
+     * Write a new log with one commit of all the stores, replacing the file atomically as {@link #create(File, List)}
+     * does, rather than appending: so that the earlier commits, with anything since removed from the stores, are
+     * gone. Point the stores at their entries in it, and append to it from now on. Waits for any compaction in
+     * progress to finish first.
+     *
+     * @param file the file to write, which must be the file of this log
+     * @param stores the stores, all locked
+     * @return true if written; false if file is another file or this log has been closed, in which case nothing is
+     *         written
+     * @throws IOException if writing fails, in which case the file is left as it was
+     */
+    synchronized boolean rewrite(File file, List<PasswordStore> stores) throws IOException {
+        if (_closed || !_file.equals(file.getAbsoluteFile())) {
+            return false;
+        }
+        Commit commit = writeNewFile(stores);
+        StoreFile storeFile;
+        try {
+            storeFile = openNewFile(commit);
+        } catch (IOException e) {
+            // The stores carry on reading the old file, and the next save writes a new log
+            _appendable = false;
+            return true;
+        }
+        for (int i = 0; i < stores.size(); i++) {
+            stores.get(i).setStoredEntries(storeFile, commit._entriesOffsets[i]);
+        }
+        // No store reads the old file, or the one from before compaction, now
+        _storeFile.close();
+        if (_compactedStoreFile != null) {
+            _compactedStoreFile.close();
+            _compactedStoreFile = null;
+            _compactedOffsets = null;
+        }
+        _storeFile = storeFile;
+        _appendable = true;
+        _compactionRetryDeadLength = 0;
+        committed(commit, stores);
+        return true;
+    }
+
+    /**
+     * @return the exception which made compacting the file in the background fail, if it has failed since this
+     *         method was last called, otherwise null
+     */
+    IOException takeCompactionFailure() {
+        return _compactionFailure.getAndSet(null);
+    }
+
+    /**
+     * Close the log file, and the file from before any compaction. Any compaction in progress is abandoned, leaving
+     * the file as it was. This method can safely be called repeatedly.
+     */
+    void close() {
+        _closed = true;
+        synchronized (this) {
+            if (_storeFile != null) {
+                _storeFile.close();
+            }
+            if (_compactedStoreFile != null) {
+                _compactedStoreFile.close();
+                _compactedStoreFile = null;
+                _compactedOffsets = null;
+            }
+        }
+    }
+
+    /**
+     * Write the entries of the stores not already in the log, and the index, but not the trailer
+     *
+     * @param position the position in the file output starts at
+     * @param reuseStored true to write only the entries of stores not already in the log, false to write them all
+     */
+    private Commit writeCommit(OutputStream output, long position, List<PasswordStore> stores, boolean reuseStored)
+            throws IOException {
+        long[] entriesOffsets = new long[stores.size()];
+        long entriesLength = 0;
+        for (int i = 0; i < stores.size(); i++) {
+            if (_closed) {
+                throw new InterruptedIOException("Datastore file closed");
+            }
+            PasswordStore store = stores.get(i);
+            long offset = reuseStored ? getStoredEntriesOffset(store) : -1;
+            if (offset < 0) {
+                offset = position;
+                store.writeEncryptedEntries(output);
+                position += store.getEncryptedEntriesLength();
+            }
+            entriesOffsets[i] = offset;
+            entriesLength += store.getEncryptedEntriesLength();
+        }
+        byte[] index = PasswordStoreList.writeIndex(stores, entriesOffsets);
+        output.write(index);
+        Commit commit = new Commit(index, position, entriesOffsets);
+        commit._liveLength = HEADER_LENGTH + entriesLength + index.length + TRAILER_LENGTH;
+        return commit;
+    }
+
+    /**
+     * @return the position of the store's entries in the log file, or -1 if they are not in it
+     */
+    private long getStoredEntriesOffset(PasswordStore store) {
+        if (store.isStoredIn(_storeFile)) {
+            return store.getStoredEntriesOffset();
+        }
+        if (_compactedStoreFile != null && store.isStoredIn(_compactedStoreFile)) {
+            Long offset = _compactedOffsets.get(store.getStoredEntriesOffset());
+            if (offset != null) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Write a new log file with one commit of all the stores, replacing the log file atomically
+     */
+    private Commit writeNewFile(List<PasswordStore> stores) throws IOException {
+        AtomicFileOutputStream output = new AtomicFileOutputStream(_file);
+        try {
+            output.write(PasswordStoreList.FILE_MAGIC);
+            output.write(PasswordStoreList.FILE_VERSION_LOG);
+            Commit commit = writeCommit(output, HEADER_LENGTH, stores, false);
+            output.write(commit._trailer);
+            if (_closed) {
+                throw new InterruptedIOException("Datastore file closed");
+            }
+            output.commit();
+            return commit;
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * @return the log file just written by {@link #writeNewFile(List)}, open
+     * @throws IOException if it cannot be opened, or has already been replaced
+     */
+    private StoreFile openNewFile(Commit commit) throws IOException {
+        StoreFile storeFile = new StoreFile(_file, true);
+        if (storeFile.size() != commit._end) {
+            storeFile.close();
+            throw new IOException("Datastore file replaced while writing");
+        }
+        return storeFile;
+    }
+
+    /**
+     * Record the commit as the last one
+     */
+    private void committed(Commit commit, List<PasswordStore> stores) {
+        _committedLength = commit._end;
+        _indexPosition = commit._indexPosition;
+        _indexLength = commit._index.length;
+        if (commit._liveLength > 0) {
+            _liveLength = commit._liveLength;
+        } else {
+            // Read rather than written: total up the stores
+            _liveLength = HEADER_LENGTH + _indexLength + TRAILER_LENGTH;
+            for (PasswordStore store : stores) {
+                _liveLength += store.getEncryptedEntriesLength();
+            }
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(_file.toPath(), BasicFileAttributes.class);
+            _fileKey = attributes.fileKey();
+            _fileModified = attributes.lastModifiedTime();
+        } catch (IOException e) {
+            // Can't tell whether anything else changes the file, so don't append to it
+            _appendable = false;
+        }
+    }
+
+    /**
+     * @return true if the log file is as this log last left it. The file key, which identifies the file, is not
+     *         available on all platforms; then a replaced file is detected by its length and modification time.
+     */
+    private boolean isUnchangedOnDisk() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(_file.toPath(), BasicFileAttributes.class);
+            return attributes.size() == _storeFile.size()
+                    && attributes.lastModifiedTime().equals(_fileModified)
+                    && (_fileKey == null || _fileKey.equals(attributes.fileKey()));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Start compacting the file in the background, if there is enough dead space
+     */
+    private void scheduleCompaction() {
+        long deadLength = _committedLength - _liveLength;
+        if (_compactionScheduled || _compactedStoreFile != null || deadLength < COMPACTION_MIN_DEAD_BYTES
+                || deadLength < _committedLength * COMPACTION_DEAD_FRACTION || deadLength < _compactionRetryDeadLength) {
+            return;
+        }
+        _compactionScheduled = true;
+        getCompactionExecutor().execute(new Runnable() {
+                public void run() {
+                    compact();
+                }
+            });
+    }
+
+    private synchronized void compact() {
+        _compactionScheduled = false;
+        if (_closed || !_appendable || !isUnchangedOnDisk()) {
+            return;
+        }
+        try {
+            // Not the caller's stores, which may be in use on other threads, but a copy of them as last committed
+            byte[] index = _storeFile.read(_indexPosition, _indexLength);
+            List<PasswordStore> stores = new ArrayList<PasswordStore>(
+                    PasswordStoreList.readIndex(index, _storeFile, 0).getStores());
+            long[] oldOffsets = new long[stores.size()];
+            for (int i = 0; i < stores.size(); i++) {
+                oldOffsets[i] = stores.get(i).getStoredEntriesOffset();
+            }
+            Commit commit = writeNewFile(stores);
+            StoreFile storeFile = openNewFile(commit);
+            Map<Long, Long> offsets = new HashMap<Long, Long>();
+            for (int i = 0; i < stores.size(); i++) {
+                offsets.put(oldOffsets[i], commit._entriesOffsets[i]);
+            }
+            _compactedStoreFile = _storeFile;
+            _compactedOffsets = offsets;
+            _storeFile = storeFile;
+            _compactionRetryDeadLength = 0;
+            committed(commit, stores);
+        } catch (InterruptedIOException e) {
+            // Closed meanwhile
+        } catch (IOException e) {
+            // The file is as it was, so the next save can still append to it. Retrying on every save would most
+            // likely fail the same way, each time rewriting the whole file
+            _compactionRetryDeadLength = 2 * (_committedLength - _liveLength);
+            _compactionFailure.set(e);
+        }
+    }
+
+    private static synchronized ExecutorService getCompactionExecutor() {
+        if (_compactionExecutor == null) {
+            _compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "pwsafe-compaction");
+                        // Don't keep the JVM running after the main window has closed: the file is only replaced
+                        // once the new one is complete
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return _compactionExecutor;
+    }
+
+    /**
+     * Find the last complete commit, skipping back over any incomplete one at the end of the file
+     *
+     * @throws RecordReader.RecordFormatException if there is none
+     */
+    private static Commit findLastCommit(StoreFile storeFile) throws IOException {
+        long end = storeFile.size();
+        Commit commit = readCommit(storeFile, end);
+        if (commit != null) {
+            return commit;
+        }
+        // Look back a block at a time for the magic bytes ending a trailer, overlapping blocks by less than their
+        // length so that they are found if split between blocks
+        long blockEnd = end;
+        while (blockEnd - HEADER_LENGTH >= COMMIT_MAGIC.length) {
+            long blockStart = Math.max(HEADER_LENGTH, blockEnd - BUFFER_LENGTH);
+            byte[] block = storeFile.read(blockStart, (int) (blockEnd - blockStart));
+            for (int i = block.length - COMMIT_MAGIC.length; i >= 0; i--) {
+                if (isCommitMagic(block, i)) {
+                    commit = readCommit(storeFile, blockStart + i + COMMIT_MAGIC.length);
+                    if (commit != null) {
+                        return commit;
+                    }
+                }
+            }
+            if (blockStart == HEADER_LENGTH) {
+                break;
+            }
+            blockEnd = blockStart + COMMIT_MAGIC.length - 1;
+        }
+        throw new RecordReader.RecordFormatException("No complete commit in datastore file");
+    }
+
+    private static boolean isCommitMagic(byte[] data, int offset) {
+        for (int i = 0; i < COMMIT_MAGIC.length; i++) {
+            if (data[offset + i] != COMMIT_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param end the position just after the trailer of a commit
+     * @return the commit, or null if there is no complete commit ending there
+     */
+    private static Commit readCommit(StoreFile storeFile, long end) throws IOException {
+        if (end - HEADER_LENGTH < TRAILER_LENGTH) {
+            return null;
+        }
+        ByteBuffer trailer = ByteBuffer.wrap(storeFile.read(end - TRAILER_LENGTH, TRAILER_LENGTH));
+        long indexPosition = trailer.getLong();
+        int indexLength = trailer.getInt();
+        int indexChecksum = trailer.getInt();
+        if (!isCommitMagic(trailer.array(), trailer.position()) || indexPosition < HEADER_LENGTH || indexLength < 0
+                || indexPosition != end - TRAILER_LENGTH - indexLength) {
+            return null;
+        }
+        byte[] index = storeFile.read(indexPosition, indexLength);
+        if (checksum(index) != indexChecksum) {
+            return null;
+        }
+        return new Commit(index, indexPosition, null);
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A commit, written or read
+     */
+    private static final class Commit {
+
+        private final byte[] _index;
+        private final long _indexPosition;
+        private final long _end;
+        private final byte[] _trailer;
+        // Only for commits written: where each store's entries are, and the live bytes in the file, see writeCommit
+        private final long[] _entriesOffsets;
+        private long _liveLength = 0;
+
+        Commit(final byte[] index, final long indexPosition, final long[] entriesOffsets) {
+            _index = index;
+            _indexPosition = indexPosition;
+            _end = indexPosition + index.length + TRAILER_LENGTH;
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+            trailer.putLong(indexPosition).putInt(index.length).putInt(checksum(index)).put(COMMIT_MAGIC);
+            _trailer = trailer.array();
+            _entriesOffsets = entriesOffsets;
+        }
+    }
+}
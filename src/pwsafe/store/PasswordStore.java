@@ -1,20 +1,30 @@
 package pwsafe.store;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
 import pwsafe.DecryptionException;
 import pwsafe.EncryptionException;
+import pwsafe.WrongPasswordException;
+import pwsafe.util.CipherSuite;
 import pwsafe.util.CryptoUtils;
 import pwsafe.util.EncryptionKey;
+import pwsafe.util.RecordReader;
+import pwsafe.util.RecordWriter;
 import pwsafe.util.SerializationUtils;
+import pwsafe.util.ZeroingByteArrayOutputStream;
 
 /**
  * The data to be written to the datastore file
@@ -41,14 +51,62 @@ public final class PasswordStore implements Serializable, Comparable<PasswordSto
      * @see #writeObject(ObjectOutputStream)
      * @see #readObject(ObjectInputStream)
      */
-    private static final byte VERSION = 0x1;
+    private static final byte VERSION = 0x4;
+
+    /**
+     * Values for _encryptedEntriesFormat, recording which CryptoUtils methods can decrypt _encryptedEntries
+     */
+    private static final byte ENCRYPTED_ENTRIES_SINGLE_SHOT = 0x1; // CryptoUtils.encrypt
+    private static final byte ENCRYPTED_ENTRIES_SEGMENTED   = 0x2; // CryptoUtils.newEncryptingStream
+    // CryptoUtils.newEncryptingStream with a data key, wrapped in _wrappedDataKey by CryptoUtils.wrapDataKey
+    private static final byte ENCRYPTED_ENTRIES_ENVELOPE    = 0x3;
+
+    /**
+     * Field tags in the datastore file index record, see {@link #writeIndexRecord(RecordWriter, long)}.
+     * Never reuse a tag for a different field.
+     */
+    private static final int TAG_STORE_NAME = 1;
+    private static final int TAG_ENCRYPTED_ENTRIES_FORMAT = 2;
+    private static final int TAG_WRAPPED_DATA_KEY = 3;
+    private static final int TAG_CIPHER_SUITE = 4;
+    private static final int TAG_ENCRYPTED_ENTRIES_OFFSET = 5;
+    private static final int TAG_ENCRYPTED_ENTRIES_LENGTH = 6;
 
 
     private String _storeName;
     private byte[] _encryptedEntries;
+    private byte _encryptedEntriesFormat;
+    // Only for ENCRYPTED_ENTRIES_ENVELOPE, otherwise null
+    private byte[] _wrappedDataKey;
+    // The suite to encrypt entries with when next locked. Decryption uses the suite recorded in the encrypted data.
+    private CipherSuite _cipherSuite = CipherSuite.getDefault();
 
     private transient EncryptionKey _key;
+    /* The random key the entries are encrypted with, while unlocked; null for new stores and those in older formats
+       until first locked. Changing the password only changes how this is wrapped, not the key itself. */
+    private transient byte[] _dataKey;
     private transient PasswordStoreEntryList _entries;
+    /* While unlocked, whether _encryptedEntries still holds _entries as they were decrypted, encrypted with _dataKey
+       and _cipherSuite, and whether _wrappedDataKey still holds _dataKey encrypted with _key. If so, and the entries
+       have not been modified, locking need not encrypt them again. */
+    private transient boolean _encryptedEntriesCurrent = false;
+    private transient boolean _wrappedDataKeyCurrent = false;
+    /* Where the encrypted entries are in the datastore file, if not in _encryptedEntries: stores read from an indexed
+       file only read them from it when unlocked, see PasswordStoreList.read(File). Null while _encryptedEntries is
+       set, or for new stores not yet locked. */
+    private transient StoreFile _storeFile;
+    private transient long _storedEntriesOffset;
+    private transient int _storedEntriesLength;
+    /* The number of times the entries have been encrypted, so that a copy made by copyForSave() can tell once saved
+       whether its encrypted entries are still the same as those of the store it was copied from */
+    private transient int _encryptionCount = 0;
+    // Only for a copy made by copyForSave(): the store copied, and its _encryptionCount then
+    private transient PasswordStore _copiedFrom;
+    private transient int _copiedEncryptionCount;
+    /* The number of changes which leave secrets in the datastore file that this store no longer has: a new key or
+       data key, or removed entries. And that number when the whole file was last written, see hasRemovedSecrets(). */
+    private transient int _removedSecretsCount = 0;
+    private transient int _removedSecretsWrittenCount = 0;
 
     /**
      * Construct an empty PasswordStore. The store will initially be unlocked.
@@ -63,6 +121,60 @@ public final class PasswordStore implements Serializable, Comparable<PasswordSto
         _entries = new PasswordStoreEntryList();
     }
 
+    /**
+     * Construct a locked PasswordStore whose encrypted entries are in the datastore file,
+     * see {@link #readIndexRecord(RecordReader, StoreFile, long)}
+     */
+    private PasswordStore(final String storeName, final byte encryptedEntriesFormat, final byte[] wrappedDataKey,
+            final CipherSuite cipherSuite, final StoreFile storeFile, final long storedEntriesOffset,
+            final int storedEntriesLength) {
+        _storeName = storeName;
+        _encryptedEntries = null;
+        _encryptedEntriesFormat = encryptedEntriesFormat;
+        _wrappedDataKey = wrappedDataKey;
+        _cipherSuite = cipherSuite;
+        _storeFile = storeFile;
+        _storedEntriesOffset = storedEntriesOffset;
+        _storedEntriesLength = storedEntriesLength;
+        _key = null;
+        _entries = null;
+    }
+
+    /**
+     * Construct a PasswordStore by copying another, see {@link #copyForSave()}
+     */
+    private PasswordStore(final PasswordStore other) {
+        _storeName = other._storeName;
+        // Never modified in place, so can be shared
+        _encryptedEntries = other._encryptedEntries;
+        _encryptedEntriesFormat = other._encryptedEntriesFormat;
+        _wrappedDataKey = other._wrappedDataKey;
+        _cipherSuite = other._cipherSuite;
+        _storeFile = other._storeFile;
+        _storedEntriesOffset = other._storedEntriesOffset;
+        _storedEntriesLength = other._storedEntriesLength;
+        _encryptionCount = other._encryptionCount;
+        _copiedFrom = other;
+        _copiedEncryptionCount = other._encryptionCount;
+        if (!other.isLocked()) {
+            // The copied entries start with none removed, so count the removals in the original
+            other.countRemovedEntries();
+        }
+        _removedSecretsCount = other._removedSecretsCount;
+        _removedSecretsWrittenCount = other._removedSecretsWrittenCount;
+        if (other.isLocked()) {
+            _key = null;
+            _entries = null;
+        } else {
+            _key = other._key.clone();
+            _dataKey = (other._dataKey == null) ? null : other._dataKey.clone();
+            _entries = other._entries.clone();
+            // The copied entries are not modified, so remember whether the originals were
+            _encryptedEntriesCurrent = other._encryptedEntriesCurrent && !other._entries.isModified();
+            _wrappedDataKeyCurrent = other._wrappedDataKeyCurrent;
+        }
+    }
+
     /**
      * @throws IllegalArgumentException if storeName is null or empty
      */
@@ -133,11 +245,15 @@ public final class PasswordStore implements Serializable, Comparable<PasswordSto
         if (!isLocked()) {
             throw new IllegalStateException("Already unlocked");
         }
-        assert (_encryptedEntries != null);
+        assert (hasEncryptedEntries());
     }
 
     /**
      * Change the key to be used when locking / storing. Must be unlocked first.
+     * <p>
+     * The entries are encrypted with a random data key which is itself encrypted with the key, so unless anything
+     * else has changed, the next {@link #lock()} only encrypts the data key again, not the entries. Stores still in
+     * an older format have their entries encrypted again, converting them.
      *
      * @throws IllegalStateException if store has not been successfully unlocked
      */
@@ -146,7 +262,69 @@ public final class PasswordStore implements Serializable, Comparable<PasswordSto
             throw new IllegalArgumentException("key must not be null");
         }
         checkUnlocked();
+        if (hasEncryptedEntries()) {
+            // The data key wrapped with the old key is still in the datastore file
+            _removedSecretsCount++;
+        }
         _key = key;
+        _wrappedDataKeyCurrent = false;
+    }
+
+    /**
+     * Get the cipher suite the entries will be encrypted with when the store is next locked
+     *
+     * @return non-null suite
+     */
+    public CipherSuite getCipherSuite() {
+        return _cipherSuite;
+    }
+
+    /**
+     * Change the cipher suite the entries will be encrypted with when the store is next locked.
+     * Must be unlocked first.
+     *
+     * @param suite the new suite, must not be null and must be available on this JVM
+     * @throws IllegalArgumentException if suite is null or not available
+     * @throws IllegalStateException if store has not been successfully unlocked
+     */
+    public void setCipherSuite(CipherSuite suite) {
+        if (suite == null) {
+            throw new IllegalArgumentException("suite must not be null");
+        }
+        if (!suite.isAvailable()) {
+            throw new IllegalArgumentException("Cipher suite " + suite + " is not available on this JVM");
+        }
+        checkUnlocked();
+        if (suite != _cipherSuite) {
+            _cipherSuite = suite;
+            _encryptedEntriesCurrent = false;
+        }
+    }
+
+    /**
+     * Make the next {@link #lock()} encrypt the entries with a new random data key, and encrypt that with a key made
+     * from the password with a new random salt, even if nothing has changed. Must be unlocked first.
+     * <p>
+     * Otherwise, locking a store whose entries, key and cipher suite are unchanged since unlocking keeps the
+     * existing encrypted data as it is, including the password hash parameters it was encrypted with.
+     *
+     * @throws IllegalStateException if store has not been successfully unlocked
+     */
+    public void forceRekey() {
+        checkUnlocked();
+        if (_dataKey != null) {
+            Arrays.fill(_dataKey, (byte) 0);
+            _dataKey = null;
+        }
+        if (_key != null) {
+            _key.forgetDerivedKeys();
+        }
+        if (hasEncryptedEntries()) {
+            // The old data key, and the entries encrypted with it, are still in the datastore file
+            _removedSecretsCount++;
+        }
+        _encryptedEntriesCurrent = false;
+        _wrappedDataKeyCurrent = false;
     }
 
     /**
@@ -155,7 +333,10 @@ public final class PasswordStore implements Serializable, Comparable<PasswordSto
      * If successful, this will keep a reference to the key for use when locking again.
      *
      * @throws IllegalStateException if store has already been unlocked
-     * @throws DecryptionException if decryption fails (e.g. due to incorrect key)
+     * @throws WrongPasswordException if the key is incorrect. This is detected before decrypting the entries,
+     *         except for stores in older formats which have not been locked since loading, where it is detected
+     *         from the first of the encrypted entries failing authentication.
+     * @throws DecryptionException if decryption fails for any other reason, e.g. corrupted data
      */
     public void unlock(EncryptionKey key) throws DecryptionException {
         if (key == null) {
@@ -164,16 +345,23 @@ public final class PasswordStore implements Serializable, Comparable<PasswordSto
         checkLocked();
         assert (_key == null);
         assert (_entries == null);
-        assert (_encryptedEntries != null);
+        assert (hasEncryptedEntries());
         decryptEntries(key);
         assert (_entries != null);
         // Successful - store the key for locking again later
         _key = key;
+        // Older formats are converted when first locked
+        _encryptedEntriesCurrent = (_encryptedEntriesFormat == ENCRYPTED_ENTRIES_ENVELOPE);
+        _wrappedDataKeyCurrent = _encryptedEntriesCurrent;
     }
 
     /**
      * Encrypt the data, lock the store and discard the unencrypted data and the key.
      * If the store is already locked, this does nothing.
+     * <p>
+     * If the entries, key and cipher suite have not changed since the store was unlocked, the existing encrypted
+     * data is kept rather than encrypting the entries again, so this is quick. If only the key has changed, only the
+     * data key is encrypted again. Use {@link #forceRekey()} first to always encrypt everything afresh.
      *
      * @throws EncryptionException if encryption fails
      */
@@ -182,7 +370,7 @@ public final class PasswordStore implements Serializable, Comparable<PasswordSto
             if (isLocked()) {
                 assert (_key == null);
                 assert (_entries == null);
-                assert (_encryptedEntries != null);
+                assert (hasEncryptedEntries());
                 return;
             }
             if (_key == null) {
@@ -190,8 +378,13 @@ public final class PasswordStore implements Serializable, Comparable<PasswordSto
                 throw new EncryptionException("Key has not been set");
             }
             assert (_entries != null);
-            encryptEntries(_key);
-            assert (_encryptedEntries != null);
+            countRemovedEntries();
+            if (!_encryptedEntriesCurrent || _entries.isModified()) {
+                encryptEntries(_key);
+            } else if (!_wrappedDataKeyCurrent) {
+                _wrappedDataKey = wrapDataKey(_key);
+            }
+            assert (hasEncryptedEntries());
         } finally {
             destroySecrets();
             assert (_key == null);
@@ -199,32 +392,419 @@ public final class PasswordStore implements Serializable, Comparable<PasswordSto
         }
     }
 
+    /**
+     * Count any entries removed since last counted, while unlocked
+     */
+    private void countRemovedEntries() {
+        if (_entries.clearRemoved() && hasEncryptedEntries()) {
+            _removedSecretsCount++;
+        }
+    }
+
     private void decryptEntries(EncryptionKey key) throws DecryptionException {
+        switch (_encryptedEntriesFormat) {
+            case ENCRYPTED_ENTRIES_SINGLE_SHOT:
+                decryptSingleShotEntries(key);
+                break;
+            case ENCRYPTED_ENTRIES_SEGMENTED:
+                decryptSegmentedEntries(key, null);
+                break;
+            case ENCRYPTED_ENTRIES_ENVELOPE:
+                decryptEnvelopeEntries(key);
+                break;
+            default:
+                throw new DecryptionException("Unsupported encrypted entries format " + _encryptedEntriesFormat);
+        }
+    }
+
+    private void decryptSingleShotEntries(EncryptionKey key) throws DecryptionException {
         byte[] decrypted;
         try {
-            decrypted = CryptoUtils.decrypt(_encryptedEntries, key);
+            decrypted = CryptoUtils.decrypt(getEncryptedEntries(), key);
+        } catch (CryptoUtils.WrongKeyException e) {
+            throw new WrongPasswordException("Incorrect password for datastore", e);
         } catch (CryptoUtils.CryptoException e) {
             throw new DecryptionException("Failed to decrypt datastore", e);
+        } catch (IOException e) {
+            throw new DecryptionException("Failed to read datastore file", e);
         }
         try {
-            _entries = SerializationUtils.deserialize(decrypted, PasswordStoreEntryList.class);
+            // Zeroes decrypted
+            _entries = PasswordStoreEntryList.read(decrypted);
         } catch (SerializationUtils.SerializationException e) {
             throw new DecryptionException("Failed to deserialize datastore", e);
+        } catch (IOException e) {
+            throw new DecryptionException("Failed to read datastore entries", e);
         }
     }
 
-    private void encryptEntries(EncryptionKey key) throws EncryptionException {
-        byte[] serialized;
+    private void decryptEnvelopeEntries(EncryptionKey key) throws DecryptionException {
+        byte[] dataKey = unwrapDataKey(key);
+        boolean ok = false;
+        try {
+            decryptSegmentedEntries(null, dataKey);
+            ok = true;
+        } finally {
+            if (!ok) {
+                Arrays.fill(dataKey, (byte) 0);
+            }
+        }
+        _dataKey = dataKey;
+    }
+
+    /**
+     * @return the data key, which the caller must zero when finished
+     */
+    private byte[] unwrapDataKey(EncryptionKey key) throws DecryptionException {
+        assert (_encryptedEntriesFormat == ENCRYPTED_ENTRIES_ENVELOPE);
+        try {
+            return CryptoUtils.unwrapDataKey(_wrappedDataKey, key);
+        } catch (CryptoUtils.WrongKeyException e) {
+            throw new WrongPasswordException("Incorrect password for datastore", e);
+        } catch (CryptoUtils.CryptoException e) {
+            throw new DecryptionException("Failed to decrypt datastore key", e);
+        }
+    }
+
+    /**
+     * @param key the password the entries were encrypted with, or null if dataKey is specified
+     * @param dataKey the data key the entries were encrypted with, or null if key is specified
+     */
+    private void decryptSegmentedEntries(EncryptionKey key, byte[] dataKey) throws DecryptionException {
+        InputStream stream = null;
         try {
-            serialized = SerializationUtils.serialize(_entries);
+            // Read from the datastore file as decrypted, if not in memory
+            InputStream encrypted = openEncryptedEntries();
+            stream = (dataKey == null) ? CryptoUtils.newDecryptingStream(encrypted, key)
+                                       : CryptoUtils.newDecryptingStream(encrypted, dataKey);
+            PasswordStoreEntryList entries = PasswordStoreEntryList.read(stream);
+            // Reading to the end authenticates the final segment, detecting any truncation
+            if (stream.read() != -1) {
+                entries.destroySecrets();
+                throw new DecryptionException("Unexpected data after datastore entries");
+            }
+            _entries = entries;
+            stream.close();
+            stream = null;
+        } catch (CryptoUtils.WrongKeyException e) {
+            throw wrongKey(key, e);
+        } catch (CryptoUtils.CryptoException e) {
+            throw new DecryptionException("Failed to decrypt datastore", e);
         } catch (SerializationUtils.SerializationException e) {
-            throw new EncryptionException("Failed to serialize datastore entries", e);
+            throw new DecryptionException("Failed to decrypt or deserialize datastore", e);
+        } catch (RecordReader.RecordFormatException e) {
+            throw new DecryptionException("Failed to read datastore entries", e);
+        } catch (IOException e) {
+            if (e.getCause() instanceof CryptoUtils.WrongKeyException) {
+                // The first segment failed authentication when read
+                throw wrongKey(key, e);
+            }
+            throw new DecryptionException("Failed to decrypt datastore", e);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * @param key the password the entries were being decrypted with, or null if decrypting with the data key
+     * @return the exception to throw for decryption failing authentication from the start
+     */
+    private static DecryptionException wrongKey(EncryptionKey key, Exception cause) {
+        if (key == null) {
+            // The data key was already checked when unwrapped, so this must be corruption
+            return new DecryptionException("Failed to decrypt datastore", cause);
         }
+        return new WrongPasswordException("Incorrect password for datastore", cause);
+    }
+
+    private void encryptEntries(EncryptionKey key) throws EncryptionException {
+        if (_dataKey == null) {
+            // New store, or first lock since reading an older format
+            _dataKey = CryptoUtils.generateDataKey();
+        }
+        byte[] wrappedDataKey = wrapDataKey(key);
+        // Write straight into the encryption stream, so the whole plaintext is never held in memory at once.
+        // The entries as last encrypted are the best guess at the length.
+        ZeroingByteArrayOutputStream encrypted =
+                new ZeroingByteArrayOutputStream(getEncryptedEntriesLength());
+        OutputStream stream = null;
         try {
-            _encryptedEntries = CryptoUtils.encrypt(serialized, _key);
+            stream = CryptoUtils.newEncryptingStream(encrypted, _dataKey, _cipherSuite);
+            _entries.write(stream);
+            stream.close();
+            stream = null;
         } catch (CryptoUtils.CryptoException e) {
             throw new EncryptionException("Failed to encrypt datastore entries", e);
+        } catch (IOException e) {
+            throw new EncryptionException("Failed to encrypt datastore entries", e);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {}
+            }
         }
+        _encryptedEntries = encrypted.takeByteArray();
+        _encryptedEntriesFormat = ENCRYPTED_ENTRIES_ENVELOPE;
+        _wrappedDataKey = wrappedDataKey;
+        _storeFile = null;
+        _encryptionCount++;
+    }
+
+    private byte[] wrapDataKey(EncryptionKey key) throws EncryptionException {
+        assert (_dataKey != null);
+        try {
+            return CryptoUtils.wrapDataKey(_dataKey, key);
+        } catch (CryptoUtils.CryptoException e) {
+            throw new EncryptionException("Failed to encrypt datastore key", e);
+        }
+    }
+
+    /**
+     * @return true if the encrypted entries are in memory or in the datastore file; false only for new stores not
+     *         yet locked
+     */
+    private boolean hasEncryptedEntries() {
+        return _encryptedEntries != null || _storeFile != null;
+    }
+
+    /**
+     * @return the length of the encrypted entries, or 0 if there are none yet
+     */
+    int getEncryptedEntriesLength() {
+        if (_encryptedEntries != null) {
+            return _encryptedEntries.length;
+        }
+        return (_storeFile != null) ? _storedEntriesLength : 0;
+    }
+
+    /**
+     * @return the encrypted entries, read from the datastore file if not in memory. Must not be modified.
+     */
+    private byte[] getEncryptedEntries() throws IOException {
+        assert (hasEncryptedEntries());
+        if (_encryptedEntries != null) {
+            return _encryptedEntries;
+        }
+        return _storeFile.read(_storedEntriesOffset, _storedEntriesLength);
+    }
+
+    /**
+     * @return a stream of the encrypted entries, reading them from the datastore file if not in memory
+     */
+    private InputStream openEncryptedEntries() throws IOException {
+        assert (hasEncryptedEntries());
+        if (_encryptedEntries != null) {
+            return new ByteArrayInputStream(_encryptedEntries);
+        }
+        return _storeFile.newInputStream(_storedEntriesOffset, _storedEntriesLength);
+    }
+
+    /**
+     * Write the encrypted entries, as they are, for {@link PasswordStoreList#write(java.io.File)}.
+     * Must be locked first.
+     *
+     * @throws IllegalStateException if store is not locked
+     */
+    void writeEncryptedEntries(OutputStream output) throws IOException {
+        checkLocked();
+        if (_encryptedEntries != null) {
+            output.write(_encryptedEntries);
+        } else {
+            _storeFile.copyTo(_storedEntriesOffset, _storedEntriesLength, output);
+        }
+    }
+
+    /**
+     * @return true if the encrypted entries are not in memory but in storeFile,
+     *         at {@link #getStoredEntriesOffset()}
+     */
+    boolean isStoredIn(StoreFile storeFile) {
+        return _encryptedEntries == null && _storeFile != null && _storeFile == storeFile;
+    }
+
+    /**
+     * @return the position of the encrypted entries in the datastore file, see {@link #isStoredIn(StoreFile)}
+     */
+    long getStoredEntriesOffset() {
+        return _storedEntriesOffset;
+    }
+
+    /**
+     * Once the encrypted entries have been written to a datastore file, read them from there when next needed
+     * rather than keeping them in memory.
+     *
+     * @param storeFile the file they were written to
+     * @param offset where they were written
+     */
+    void setStoredEntries(StoreFile storeFile, long offset) {
+        assert (hasEncryptedEntries());
+        _storedEntriesLength = getEncryptedEntriesLength();
+        _storedEntriesOffset = offset;
+        _storeFile = storeFile;
+        _encryptedEntries = null;
+    }
+
+    /**
+     * Has this store changed since the datastore file was last written as a whole, in a way which leaves secrets in
+     * the file that this store no longer has? Such as the data key wrapped with an old key, or removed entries.
+     * Used to decide whether a datastore file in the log layout must be rewritten rather than appended to, see
+     * {@link PasswordStoreList#write(java.io.File)}. Must be locked first.
+     *
+     * @throws IllegalStateException if store is not locked
+     */
+    boolean hasRemovedSecrets() {
+        checkLocked();
+        return _removedSecretsCount != _removedSecretsWrittenCount;
+    }
+
+    /**
+     * Once the datastore file has been written as a whole, with this store as it is now, note that it no longer has
+     * the secrets removed so far, see {@link #hasRemovedSecrets()}
+     */
+    void removedSecretsWritten() {
+        _removedSecretsWrittenCount = _removedSecretsCount;
+    }
+
+    /**
+     * Copy this store for {@link PasswordStoreList#copyForSave()}, to be locked and written on another thread while
+     * this store carries on being used. The copy shares the encrypted entries, which are never modified in place.
+     * If this store is unlocked, the copy is unlocked too, with its own copies of the entries and key, so locking it
+     * leaves this store as it is.
+     *
+     * @return the copy, or null if this store is unlocked but has no key yet, so cannot be saved
+     */
+    PasswordStore copyForSave() {
+        if (!isLocked() && _key == null) {
+            return null;
+        }
+        return new PasswordStore(this);
+    }
+
+    /**
+     * Once this copy made by {@link #copyForSave()} has been written to a datastore file, point the store it was
+     * copied from at the encrypted entries in the file too, if they are still the same as its own: that is, if
+     * neither store has encrypted its entries again since copying. If the whole file was written, the removed
+     * secrets the copy knew of are no longer in it, see {@link #hasRemovedSecrets()}.
+     */
+    void copySaved() {
+        PasswordStore original = _copiedFrom;
+        _copiedFrom = null;
+        if (original != null) {
+            // Not any removed from the original since copying, which it counts beyond the copy's count
+            original._removedSecretsWrittenCount = Math.max(original._removedSecretsWrittenCount,
+                    _removedSecretsWrittenCount);
+        }
+        if (original == null || _encryptedEntries != null || _storeFile == null
+                || _encryptionCount != _copiedEncryptionCount
+                || original._encryptionCount != _copiedEncryptionCount) {
+            return;
+        }
+        original.setStoredEntries(_storeFile, _storedEntriesOffset);
+    }
+
+    /**
+     * @return the length of the fields written by {@link #writeIndexRecord(RecordWriter, long)}
+     */
+    int getIndexRecordLength() {
+        return RecordWriter.stringFieldLength(_storeName)
+                + RecordWriter.longFieldLength()
+                + ((_wrappedDataKey != null) ? RecordWriter.bytesFieldLength(_wrappedDataKey) : 0)
+                + RecordWriter.longFieldLength()
+                + RecordWriter.longFieldLength()
+                + RecordWriter.longFieldLength();
+    }
+
+    /**
+     * Write the fields of the datastore file index record for this store: everything but the encrypted entries,
+     * which are written separately by {@link #writeEncryptedEntries(OutputStream)}. Must be locked first.
+     *
+     * @param entriesOffset where the encrypted entries are written, relative to the start of the entries
+     * @throws IllegalStateException if store is not locked
+     */
+    void writeIndexRecord(RecordWriter writer, long entriesOffset) throws IOException {
+        checkLocked();
+        writer.writeString(TAG_STORE_NAME, _storeName);
+        writer.writeLong(TAG_ENCRYPTED_ENTRIES_FORMAT, _encryptedEntriesFormat);
+        if (_wrappedDataKey != null) {
+            writer.writeBytes(TAG_WRAPPED_DATA_KEY, _wrappedDataKey);
+        }
+        writer.writeLong(TAG_CIPHER_SUITE, _cipherSuite.getId());
+        writer.writeLong(TAG_ENCRYPTED_ENTRIES_OFFSET, entriesOffset);
+        writer.writeLong(TAG_ENCRYPTED_ENTRIES_LENGTH, getEncryptedEntriesLength());
+    }
+
+    /**
+     * Read the fields of an index record begun with {@link RecordReader#beginRecord()}, and end it.
+     *
+     * @param storeFile the datastore file containing the encrypted entries
+     * @param entriesBase the position in the file of the start of the entries
+     * @return the store, locked, which reads its encrypted entries from storeFile when unlocked
+     * @throws RecordReader.RecordFormatException if the record is invalid, or the entries are not within the file
+     */
+    static PasswordStore readIndexRecord(RecordReader reader, StoreFile storeFile, long entriesBase)
+            throws IOException {
+        String storeName = null;
+        long format = 0;
+        byte[] wrappedDataKey = null;
+        long suiteId = CipherSuite.getDefault().getId();
+        long offset = -1;
+        long length = -1;
+        while (reader.nextField()) {
+            switch (reader.getTag()) {
+                case TAG_STORE_NAME:
+                    storeName = reader.readString();
+                    break;
+                case TAG_ENCRYPTED_ENTRIES_FORMAT:
+                    format = reader.readLong();
+                    break;
+                case TAG_WRAPPED_DATA_KEY:
+                    wrappedDataKey = reader.readBytes();
+                    break;
+                case TAG_CIPHER_SUITE:
+                    suiteId = reader.readLong();
+                    break;
+                case TAG_ENCRYPTED_ENTRIES_OFFSET:
+                    offset = reader.readLong();
+                    break;
+                case TAG_ENCRYPTED_ENTRIES_LENGTH:
+                    length = reader.readLong();
+                    break;
+                default:
+                    reader.skipField();
+            }
+        }
+        reader.endRecord();
+        if (storeName == null || "".equals(storeName)) {
+            throw new RecordReader.RecordFormatException("Store name missing");
+        }
+        if (format != ENCRYPTED_ENTRIES_SINGLE_SHOT && format != ENCRYPTED_ENTRIES_SEGMENTED
+                && format != ENCRYPTED_ENTRIES_ENVELOPE) {
+            throw new RecordReader.RecordFormatException("Unsupported encrypted entries format " + format);
+        }
+        if ((wrappedDataKey != null) != (format == ENCRYPTED_ENTRIES_ENVELOPE)) {
+            throw new RecordReader.RecordFormatException("Wrapped data key does not match encrypted entries format "
+                    + format);
+        }
+        CipherSuite suite = (suiteId == (byte) suiteId) ? CipherSuite.fromId((byte) suiteId) : null;
+        if (suite == null) {
+            throw new RecordReader.RecordFormatException("Unsupported cipher suite " + suiteId);
+        }
+        if (offset < 0 || length < 0 || length > Integer.MAX_VALUE) {
+            throw new RecordReader.RecordFormatException("Encrypted entries position missing or invalid");
+        }
+        try {
+            storeFile.checkRange(entriesBase + offset, length);
+        } catch (IOException e) {
+            throw new RecordReader.RecordFormatException("Encrypted entries of store '" + storeName
+                    + "' are missing: " + e.getMessage());
+        }
+        return new PasswordStore(storeName, (byte) format, wrappedDataKey, suite, storeFile, entriesBase + offset,
+                (int) length);
     }
 
     /**
@@ -289,6 +869,12 @@ public final class PasswordStore implements Serializable, Comparable<PasswordSto
             _key.destroySecrets();
             _key = null;
         }
+        if (_dataKey != null) {
+            Arrays.fill(_dataKey, (byte) 0);
+            _dataKey = null;
+        }
+        _encryptedEntriesCurrent = false;
+        _wrappedDataKeyCurrent = false;
     }
 
     @Override
@@ -308,10 +894,13 @@ public final class PasswordStore implements Serializable, Comparable<PasswordSto
             ioe.initCause(e);
             throw ioe;
         }
-        assert (_encryptedEntries != null);
+        assert (hasEncryptedEntries());
         out.writeByte(VERSION);
         out.writeObject(_storeName);
-        out.writeObject(_encryptedEntries);
+        out.writeByte(_encryptedEntriesFormat);
+        out.writeObject(getEncryptedEntries());
+        out.writeObject(_wrappedDataKey);
+        out.writeByte(_cipherSuite.getId());
     }
 
     /**
@@ -324,6 +913,15 @@ public final class PasswordStore implements Serializable, Comparable<PasswordSto
             case 0x1:
                 readObjectVersion1(in);
                 break;
+            case 0x2:
+                readObjectVersion2(in);
+                break;
+            case 0x3:
+                readObjectVersion3(in);
+                break;
+            case 0x4:
+                readObjectVersion4(in);
+                break;
             default:
                 throw new InvalidClassException(getClass().getName(),
                         "The VERSION '" + version + "' was read from the stream "
@@ -334,7 +932,36 @@ public final class PasswordStore implements Serializable, Comparable<PasswordSto
     private void readObjectVersion1(ObjectInputStream in) throws IOException, ClassNotFoundException {
         _entries = null;
         _key = null;
+        _cipherSuite = CipherSuite.getDefault();
+        _storeName = (String) in.readObject();
+        _encryptedEntries = (byte[]) in.readObject();
+        _encryptedEntriesFormat = ENCRYPTED_ENTRIES_SINGLE_SHOT;
+    }
+
+    private void readObjectVersion2(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        _entries = null;
+        _key = null;
+        _cipherSuite = CipherSuite.getDefault();
         _storeName = (String) in.readObject();
+        _encryptedEntriesFormat = in.readByte();
         _encryptedEntries = (byte[]) in.readObject();
     }
+
+    private void readObjectVersion3(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        readObjectVersion2(in);
+        _wrappedDataKey = (byte[]) in.readObject();
+        if ((_wrappedDataKey != null) != (_encryptedEntriesFormat == ENCRYPTED_ENTRIES_ENVELOPE)) {
+            throw new InvalidObjectException("Wrapped data key does not match encrypted entries format "
+                    + _encryptedEntriesFormat);
+        }
+    }
+
+    private void readObjectVersion4(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        readObjectVersion3(in);
+        byte suiteId = in.readByte();
+        _cipherSuite = CipherSuite.fromId(suiteId);
+        if (_cipherSuite == null) {
+            throw new InvalidObjectException("Unsupported cipher suite " + suiteId);
+        }
+    }
 }
@@ -8,6 +8,9 @@ import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Date;
 
+import pwsafe.util.RecordReader;
+import pwsafe.util.RecordWriter;
+
 /**
  * A single account record.
  * <p>
@@ -37,8 +40,24 @@ public final class PasswordStoreEntry implements Serializable, Comparable<Passwo
      */
     private static final byte VERSION = 0x1;
 
+    /**
+     * Field tags in the record format, see {@link PasswordStoreEntryList#write(java.io.OutputStream)}.
+     * Never reuse a tag for a different field.
+     */
+    private static final int TAG_DISPLAY_NAME = 1;
+    private static final int TAG_ENTRY_CREATED = 2;
+    private static final int TAG_USER_ID = 3;
+    private static final int TAG_USER_ID_LAST_CHANGED = 4;
+    private static final int TAG_PASSWORD = 5;
+    private static final int TAG_PASSWORD_LAST_CHANGED = 6;
+    private static final int TAG_ADDITIONAL_INFO = 7;
+    private static final int TAG_ADDITIONAL_INFO_LAST_CHANGED = 8;
+    private static final int TAG_ATTACHMENT_LIST = 9;
+
 
     private transient boolean _destroyed = false;
+    // Set when a field is changed, see isModified()
+    private transient boolean _modified = false;
 
     private String _displayName;
     private Date _entryCreated;
@@ -93,6 +112,33 @@ public final class PasswordStoreEntry implements Serializable, Comparable<Passwo
         _attachmentList = new AttachmentList();
     }
 
+    /**
+     * Construct a PasswordStoreEntry by deep-copying another PasswordStoreEntry
+     */
+    private PasswordStoreEntry(final PasswordStoreEntry other) {
+        other.checkNotDestroyed();
+        _displayName               =          other._displayName;
+        _entryCreated              = (Date)   other._entryCreated.clone();
+        _userID                    =          other._userID;
+        _userIDLastChanged         = (Date)   other._userIDLastChanged.clone();
+        _password                  =          other._password.clone();
+        _passwordLastChanged       = (Date)   other._passwordLastChanged.clone();
+        _additionalInfo            =          other._additionalInfo.clone();
+        _additionalInfoLastChanged = (Date)   other._additionalInfoLastChanged.clone();
+        _attachmentList            =          other._attachmentList.clone();
+    }
+
+    /**
+     * Deep-copy this PasswordStoreEntry. The copy has its own copies of the secret data, and must have its secrets
+     * destroyed separately.
+     *
+     * @throws IllegalStateException if {@link #destroySecrets()} method has been called
+     */
+    @Override
+    public PasswordStoreEntry clone() {
+        return new PasswordStoreEntry(this);
+    }
+
     /**
      * Save all fields at once, with the same timestamp for any modified fields.
      * <p>
@@ -194,6 +240,9 @@ public final class PasswordStoreEntry implements Serializable, Comparable<Passwo
      */
     private void setDisplayName(String displayName) {
         checkDisplayName(displayName);
+        if (!displayName.equals(_displayName)) {
+            _modified = true;
+        }
         _displayName = displayName;
     }
 
@@ -215,6 +264,7 @@ public final class PasswordStoreEntry implements Serializable, Comparable<Passwo
     private void setUserID(String userID, Date savedTime) {
         if (!stringsEqual(userID, _userID)) {
             _userIDLastChanged = savedTime;
+            _modified = true;
         }
         _userID = userID;
     }
@@ -233,7 +283,8 @@ public final class PasswordStoreEntry implements Serializable, Comparable<Passwo
      * Get the account password (secret) for this record, if any.
      * <p>
      * <b>IMPORTANT:</b> this returns the internal array itself, not a copy,
-     * so any modifications to the array will be written back to the store with this record.
+     * so any modifications to the array will be written back to the store with this record
+     * (though they are not seen by {@link #isModified()}).
      * <p>
      * For security, caller should avoid storing references longer than necessary,
      * and if the caller copies the data, it MUST ensure it is zero-overwritten and discarded when finished.
@@ -268,6 +319,7 @@ public final class PasswordStoreEntry implements Serializable, Comparable<Passwo
         _password = password;
         if (changed) {
             _passwordLastChanged = savedTime;
+            _modified = true;
         }
     }
 
@@ -285,7 +337,8 @@ public final class PasswordStoreEntry implements Serializable, Comparable<Passwo
      * Get the additional login info (secret) for this record, if any.
      * <p>
      * <b>IMPORTANT:</b> this returns the internal array itself, not a copy,
-     * so any modifications to the array will be written back to the store with this record.
+     * so any modifications to the array will be written back to the store with this record
+     * (though they are not seen by {@link #isModified()}).
      * <p>
      * For security, caller should avoid storing references longer than necessary,
      * and if the caller copies the data, it MUST ensure it is zero-overwritten and discarded when finished.
@@ -320,6 +373,7 @@ public final class PasswordStoreEntry implements Serializable, Comparable<Passwo
         _additionalInfo = additionalInfo;
         if (changed) {
             _additionalInfoLastChanged = savedTime;
+            _modified = true;
         }
     }
 
@@ -355,10 +409,29 @@ public final class PasswordStoreEntry implements Serializable, Comparable<Passwo
      */
     private void setAttachmentList(AttachmentList attachmentList) {
         checkNotDestroyed();
+        // Usually an edited copy of the existing list, which may not have been changed
+        if (_attachmentList == null || !attachmentList.contentEquals(_attachmentList)) {
+            _modified = true;
+        }
         clearAttachmentList();
         _attachmentList = attachmentList;
     }
 
+    /**
+     * Has any field, including the attachments, been changed since this PasswordStoreEntry was created or
+     * deserialized?
+     * <p>
+     * Changes made directly to the arrays returned by {@link #getPassword()} and {@link #getAdditionalInfo()}
+     * are not detected: use {@link #setAllFields(String, String, char[], char[], AttachmentList)} instead.
+     *
+     * @return true if changed
+     * @throws IllegalStateException if {@link #destroySecrets()} method has been called
+     */
+    public boolean isModified() {
+        checkNotDestroyed();
+        return _modified || _attachmentList.isModified();
+    }
+
     /**
      * Sort by _displayName then by _userID.
      * <p>
@@ -435,6 +508,128 @@ public final class PasswordStoreEntry implements Serializable, Comparable<Passwo
         }
     }
 
+    /**
+     * @return the length of the fields written by {@link #writeRecord(RecordWriter)}
+     */
+    int getRecordLength() {
+        checkNotDestroyed();
+        return RecordWriter.stringFieldLength(_displayName)
+                + RecordWriter.dateFieldLength()
+                + RecordWriter.stringFieldLength(_userID)
+                + RecordWriter.dateFieldLength()
+                + RecordWriter.charsFieldLength(_password)
+                + RecordWriter.dateFieldLength()
+                + RecordWriter.charsFieldLength(_additionalInfo)
+                + RecordWriter.dateFieldLength()
+                + RecordWriter.recordFieldLength(_attachmentList.getRecordLength());
+    }
+
+    /**
+     * Write the fields of this PasswordStoreEntry in the record format
+     */
+    void writeRecord(RecordWriter writer) throws IOException {
+        checkNotDestroyed();
+        writer.writeString(TAG_DISPLAY_NAME, _displayName);
+        writer.writeDate(TAG_ENTRY_CREATED, _entryCreated);
+        writer.writeString(TAG_USER_ID, _userID);
+        writer.writeDate(TAG_USER_ID_LAST_CHANGED, _userIDLastChanged);
+        writer.writeChars(TAG_PASSWORD, _password);
+        writer.writeDate(TAG_PASSWORD_LAST_CHANGED, _passwordLastChanged);
+        writer.writeChars(TAG_ADDITIONAL_INFO, _additionalInfo);
+        writer.writeDate(TAG_ADDITIONAL_INFO_LAST_CHANGED, _additionalInfoLastChanged);
+        writer.writeRecordStart(TAG_ATTACHMENT_LIST, _attachmentList.getRecordLength());
+        _attachmentList.writeRecord(writer);
+    }
+
+    /**
+     * Read the fields of a record begun with {@link RecordReader#beginRecord()}, and end it.
+     * Only the display name and creation time are required.
+     */
+    static PasswordStoreEntry readRecord(RecordReader reader) throws IOException {
+        String displayName = null;
+        Date entryCreated = null;
+        String userID = "";
+        Date userIDLastChanged = null;
+        char[] password = null;
+        Date passwordLastChanged = null;
+        char[] additionalInfo = null;
+        Date additionalInfoLastChanged = null;
+        AttachmentList attachmentList = null;
+        boolean ok = false;
+        try {
+            while (reader.nextField()) {
+                switch (reader.getTag()) {
+                    case TAG_DISPLAY_NAME:
+                        displayName = reader.readString();
+                        break;
+                    case TAG_ENTRY_CREATED:
+                        entryCreated = reader.readDate();
+                        break;
+                    case TAG_USER_ID:
+                        userID = reader.readString();
+                        break;
+                    case TAG_USER_ID_LAST_CHANGED:
+                        userIDLastChanged = reader.readDate();
+                        break;
+                    case TAG_PASSWORD:
+                        clear(password);
+                        password = reader.readChars();
+                        break;
+                    case TAG_PASSWORD_LAST_CHANGED:
+                        passwordLastChanged = reader.readDate();
+                        break;
+                    case TAG_ADDITIONAL_INFO:
+                        clear(additionalInfo);
+                        additionalInfo = reader.readChars();
+                        break;
+                    case TAG_ADDITIONAL_INFO_LAST_CHANGED:
+                        additionalInfoLastChanged = reader.readDate();
+                        break;
+                    case TAG_ATTACHMENT_LIST:
+                        if (attachmentList != null) {
+                            attachmentList.destroySecrets();
+                        }
+                        reader.beginRecord();
+                        attachmentList = AttachmentList.readRecord(reader);
+                        break;
+                    default:
+                        reader.skipField();
+                }
+            }
+            reader.endRecord();
+            if (displayName == null || "".equals(displayName) || entryCreated == null) {
+                throw new RecordReader.RecordFormatException("Entry display name or creation time missing");
+            }
+            ok = true;
+        } finally {
+            if (!ok) {
+                clear(password);
+                clear(additionalInfo);
+                if (attachmentList != null) {
+                    attachmentList.destroySecrets();
+                }
+            }
+        }
+        PasswordStoreEntry entry = new PasswordStoreEntry(displayName, userID,
+                (password != null) ? password : new char[0],
+                (additionalInfo != null) ? additionalInfo : new char[0]);
+        entry._entryCreated = entryCreated;
+        entry._userIDLastChanged = (userIDLastChanged != null) ? userIDLastChanged : entryCreated;
+        entry._passwordLastChanged = (passwordLastChanged != null) ? passwordLastChanged : entryCreated;
+        entry._additionalInfoLastChanged = (additionalInfoLastChanged != null) ? additionalInfoLastChanged
+                                                                               : entryCreated;
+        if (attachmentList != null) {
+            entry._attachmentList = attachmentList;
+        }
+        return entry;
+    }
+
+    private static void clear(char[] secret) {
+        if (secret != null) {
+            Arrays.fill(secret, (char) 0);
+        }
+    }
+
     /**
      * Explicit serialization to guarantee we can handle old versions if implementation evolves
      */
@@ -1,21 +1,31 @@
 package pwsafe.store;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.io.InvalidClassException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
+import pwsafe.util.RecordReader;
+import pwsafe.util.RecordWriter;
+import pwsafe.util.SerializationUtils;
+
 /**
  * Wrapper for the list of password store entries to be encrypted / decrypted as a unit
  *
  * @author Nick Clarke
  */
-public final class PasswordStoreEntryList implements Serializable {
+public final class PasswordStoreEntryList implements Serializable, Cloneable {
     /**
      * serialVersionUID for this class.
      * <p>
@@ -37,8 +47,18 @@ public final class PasswordStoreEntryList implements Serializable {
      */
     private static final byte VERSION = 0x1;
 
+    /**
+     * Field tags in the record format, see {@link #write(OutputStream)}.
+     * Never reuse a tag for a different field.
+     */
+    private static final int TAG_ENTRY = 1;
+
 
     private List<PasswordStoreEntry> _entries;
+    // Set when an entry is added or removed, see isModified()
+    private transient boolean _modified = false;
+    // Set when an entry is removed, see clearRemoved()
+    private transient boolean _removed = false;
 
     /**
      * Construct an empty PasswordStoreEntryList
@@ -47,6 +67,28 @@ public final class PasswordStoreEntryList implements Serializable {
         _entries = new ArrayList<PasswordStoreEntry>();
     }
 
+    /**
+     * Construct a PasswordStoreEntryList by deep-copying another PasswordStoreEntryList
+     */
+    private PasswordStoreEntryList(final PasswordStoreEntryList other) {
+        this();
+        other.checkNotDestroyed();
+        for (PasswordStoreEntry entry : other._entries) {
+            _entries.add(entry.clone());
+        }
+    }
+
+    /**
+     * Deep-copy this PasswordStoreEntryList. The copy is not modified, see {@link #isModified()}, and must have its
+     * secrets destroyed separately.
+     *
+     * @throws IllegalStateException if {@link #destroySecrets()} has already been called
+     */
+    @Override
+    public PasswordStoreEntryList clone() {
+        return new PasswordStoreEntryList(this);
+    }
+
     /**
      * @throws IllegalStateException if {@link #destroySecrets()} has already been called
      */
@@ -89,6 +131,7 @@ public final class PasswordStoreEntryList implements Serializable {
         checkNotDestroyed();
         PasswordStoreEntry entry = new PasswordStoreEntry(displayName, "", new char[0], new char[0]);
         _entries.add(entry);
+        _modified = true;
         return entry;
     }
 
@@ -108,11 +151,159 @@ public final class PasswordStoreEntryList implements Serializable {
             if (!_entries.remove(entry)) {
                 throw new IllegalArgumentException("Entry not present");
             }
+            _modified = true;
+            _removed = true;
         } finally {
             entry.destroySecrets();
         }
     }
 
+    /**
+     * Has an entry been removed since this PasswordStoreEntryList was created or deserialized, or since this was
+     * last called? Used to drop removed entries from the datastore file, see {@link PasswordStore#lock()}.
+     *
+     * @return true if an entry has been removed
+     */
+    boolean clearRemoved() {
+        boolean removed = _removed;
+        _removed = false;
+        return removed;
+    }
+
+    /**
+     * Has an entry been added, removed or changed since this PasswordStoreEntryList was created or deserialized?
+     * Used to avoid encrypting the entries again when they have not changed.
+     *
+     * @return true if changed
+     * @throws IllegalStateException if {@link #destroySecrets()} has already been called
+     */
+    public boolean isModified() {
+        checkNotDestroyed();
+        if (_modified) {
+            return true;
+        }
+        for (PasswordStoreEntry entry : _entries) {
+            if (entry.isModified()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the entries in the compact record format (see {@link RecordWriter}), which is much faster to read and
+     * write than Java serialization.
+     *
+     * @param output the stream to write to, which is left open
+     * @throws IllegalStateException if {@link #destroySecrets()} has already been called
+     */
+    void write(OutputStream output) throws IOException {
+        checkNotDestroyed();
+        RecordWriter writer = new RecordWriter(output);
+        try {
+            writer.writeHeader(getRecordLength());
+            writeRecord(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Read entries written by {@link #write(OutputStream)}, or by Java serialization in older versions.
+     *
+     * @param input the stream to read from, which is left open and not read beyond the end of the entries
+     * @return the entries, never null
+     */
+    static PasswordStoreEntryList read(InputStream input)
+            throws IOException, SerializationUtils.SerializationException {
+        byte[] start = new byte[RecordWriter.MAGIC.length];
+        int count = 0;
+        while (count < start.length) {
+            int read = input.read(start, count, start.length - count);
+            if (read == -1) {
+                break;
+            }
+            count += read;
+        }
+        if (!RecordReader.isRecordFormat(start, count)) {
+            InputStream rest = new SequenceInputStream(new ByteArrayInputStream(start, 0, count), input);
+            return SerializationUtils.deserialize(rest, PasswordStoreEntryList.class);
+        }
+        // Given the decrypting stream itself, the reader decodes straight from its decrypted segments
+        RecordReader reader = new RecordReader(input);
+        try {
+            reader.readHeaderAfterMagic();
+            return readRecord(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read entries written by {@link #write(OutputStream)}, or by Java serialization in older versions,
+     * decoding them in place.
+     * <p>
+     * <b>IMPORTANT:</b> this zeroes the data once read.
+     *
+     * @param data the plaintext, must not be null
+     * @return the entries, never null
+     */
+    static PasswordStoreEntryList read(byte[] data) throws IOException, SerializationUtils.SerializationException {
+        try {
+            if (!RecordReader.isRecordFormat(data, data.length)) {
+                return SerializationUtils.deserialize(data, PasswordStoreEntryList.class);
+            }
+            RecordReader reader = new RecordReader(ByteBuffer.wrap(data));
+            try {
+                reader.readHeader();
+                return readRecord(reader);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            Arrays.fill(data, (byte) 0);
+        }
+    }
+
+    private int getRecordLength() {
+        int length = 0;
+        for (PasswordStoreEntry entry : _entries) {
+            length += RecordWriter.recordFieldLength(entry.getRecordLength());
+        }
+        return length;
+    }
+
+    private void writeRecord(RecordWriter writer) throws IOException {
+        for (PasswordStoreEntry entry : _entries) {
+            writer.writeRecordStart(TAG_ENTRY, entry.getRecordLength());
+            entry.writeRecord(writer);
+        }
+    }
+
+    private static PasswordStoreEntryList readRecord(RecordReader reader) throws IOException {
+        PasswordStoreEntryList list = new PasswordStoreEntryList();
+        boolean ok = false;
+        try {
+            while (reader.nextField()) {
+                switch (reader.getTag()) {
+                    case TAG_ENTRY:
+                        reader.beginRecord();
+                        list._entries.add(PasswordStoreEntry.readRecord(reader));
+                        break;
+                    default:
+                        reader.skipField();
+                }
+            }
+            reader.endRecord();
+            ok = true;
+        } finally {
+            if (!ok) {
+                list.destroySecrets();
+            }
+        }
+        return list;
+    }
+
     /**
      * Explicit serialization to guarantee we can handle old versions if implementation evolves
      */
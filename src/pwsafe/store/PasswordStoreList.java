@@ -1,13 +1,41 @@
 package pwsafe.store;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InvalidClassException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pwsafe.DecryptionException;
+import pwsafe.EncryptionException;
+import pwsafe.PWSafeException;
+import pwsafe.WrongPasswordException;
+import pwsafe.util.AtomicFileOutputStream;
+import pwsafe.util.ByteBufferInputStream;
+import pwsafe.util.CryptoUtils;
+import pwsafe.util.EncryptionKey;
+import pwsafe.util.IOUtils;
+import pwsafe.util.RecordReader;
+import pwsafe.util.RecordWriter;
+import pwsafe.util.SerializationUtils;
+import pwsafe.util.SystemProperties;
 
 /**
  * Wrapper for a list of PasswordStore objects to be serialized as a unit
@@ -36,8 +64,52 @@ public class PasswordStoreList implements Serializable {
      */
     private static final byte VERSION = 0x1;
 
+    /**
+     * The first bytes of a datastore file in the indexed or log layout, see {@link #write(File)}.
+     * Files written by Java serialization in older versions start with 0xACED instead.
+     */
+    static final byte[] FILE_MAGIC = {0x50, 0x57, 0x53, 0x49}; // "PWSI"
+
+    /**
+     * Follows the magic bytes, identifying the layout of the rest of the file.
+     * Add a new value when changing a layout in a way old readers could not handle, and update
+     * {@link #readFile(File, StoreFile)} to handle the new and old versions.
+     */
+    static final byte FILE_VERSION_INDEXED = 0x1;
+    static final byte FILE_VERSION_LOG = 0x2; // see DatastoreLog
+
+    // The magic bytes, version and index length
+    private static final int INDEXED_HEADER_LENGTH = FILE_MAGIC.length + 1 + 4;
+
+    /**
+     * Field tags in the datastore file index, see {@link #write(File)}.
+     * Never reuse a tag for a different field.
+     */
+    private static final int TAG_STORE = 1;
+
+    /**
+     * System property choosing how {@link #write(File)} writes the datastore file: "indexed" (the default) to rewrite
+     * the whole file every time, or "log" to append only the stores which have changed, see {@link DatastoreLog}.
+     * Files in either layout are read whatever this is set to, and converted when next written.
+     */
+    public static final String STORAGE_PROPERTY = "pwsafe.datastore.storage";
+
+    private static final boolean LOG_STORAGE = selectLogStorage();
+
+    /* Threads for working on whole stores in parallel, see forEachInParallel. Separate from the CryptoUtils threads, which
+       each store's work itself uses, so that a store waiting for those can't hold up the threads it is waiting for.
+       Guarded by PasswordStoreList.class */
+    private static ExecutorService _storeExecutor = null;
+
 
     private List<PasswordStore> _stores;
+    // The indexed datastore file the locked stores read their encrypted entries from, if any
+    private transient StoreFile _storeFile;
+    // Or the log-structured datastore file, which they read from and which saving appends to
+    private transient DatastoreLog _log;
+    // The number of stores removed, and that number when the whole file was last written, see write(File)
+    private transient int _removedStoreCount = 0;
+    private transient int _removedStoreWrittenCount = 0;
 
     /**
      * Construct a PasswordStoreList
@@ -93,11 +165,565 @@ public class PasswordStoreList implements Serializable {
             if (!_stores.remove(store)) {
                 throw new IllegalArgumentException("Store not present");
             }
+            _removedStoreCount++;
         } finally {
             store.destroySecrets();
         }
     }
 
+    /**
+     * Lock all the unlocked stores, encrypting them in parallel (up to {@link CryptoUtils#getParallelism()} at
+     * once), so that saving many unlocked stores takes about as long as locking the slowest one.
+     * Serialization locks any stores still unlocked, one after another, so call this first.
+     * <p>
+     * Every store is locked, or has its secrets destroyed, even if locking some of them fails.
+     *
+     * @throws EncryptionException if locking any store fails, the first such failure
+     */
+    public void lockAll() throws EncryptionException {
+        List<PasswordStore> unlocked = new ArrayList<PasswordStore>();
+        for (PasswordStore store : _stores) {
+            if (!store.isLocked()) {
+                unlocked.add(store);
+            }
+        }
+        Map<PasswordStore, Throwable> failures = forEachInParallel(unlocked, new StoreTask() {
+                public void run(PasswordStore store) throws EncryptionException {
+                    store.lock();
+                }
+            });
+        for (Throwable failure : failures.values()) {
+            rethrowUnchecked(failure);
+            if (failure instanceof EncryptionException) {
+                throw (EncryptionException) failure;
+            }
+            throw new EncryptionException("Failed to lock datastore", failure);
+        }
+    }
+
+    /**
+     * Try to unlock every locked store with the same password, in parallel (up to
+     * {@link CryptoUtils#getParallelism()} at once). Each store is unlocked as by
+     * {@link PasswordStore#unlock(EncryptionKey)}, with its own {@link EncryptionKey} made from the password;
+     * stores for which the password is wrong are left locked.
+     * <p>
+     * <b>IMPORTANT:</b> as with {@link EncryptionKey#EncryptionKey(char[])}, this takes responsibility for the
+     * password: it is zero-overwritten before returning.
+     *
+     * @param password the password to try, must not be null or empty
+     * @return the stores which were unlocked, and those which failed for reasons other than a wrong password
+     * @throws IllegalArgumentException if password is null or empty
+     */
+    public UnlockAllResult unlockAll(final char[] password) {
+        if (password == null) {
+            throw new IllegalArgumentException("password must not be null");
+        }
+        if (password.length == 0) {
+            throw new IllegalArgumentException("password must not be zero length");
+        }
+        List<PasswordStore> locked = new ArrayList<PasswordStore>();
+        for (PasswordStore store : _stores) {
+            if (store.isLocked()) {
+                locked.add(store);
+            }
+        }
+        // Each store gets a copy up front, as EncryptionKey destroys its password when the store is locked again
+        final Map<PasswordStore, EncryptionKey> keys = new HashMap<PasswordStore, EncryptionKey>();
+        try {
+            for (PasswordStore store : locked) {
+                keys.put(store, new EncryptionKey(password.clone()));
+            }
+        } finally {
+            Arrays.fill(password, (char) 0);
+        }
+        Map<PasswordStore, Throwable> failures = forEachInParallel(locked, new StoreTask() {
+                public void run(PasswordStore store) throws DecryptionException {
+                    EncryptionKey key = keys.get(store);
+                    boolean ok = false;
+                    try {
+                        store.unlock(key);
+                        // Store is now responsible for the key - keeps it for locking again later
+                        ok = true;
+                    } finally {
+                        if (!ok) {
+                            key.destroySecrets();
+                        }
+                    }
+                }
+            });
+
+        List<PasswordStore> unlocked = new ArrayList<PasswordStore>();
+        Map<PasswordStore, DecryptionException> errors = new LinkedHashMap<PasswordStore, DecryptionException>();
+        for (PasswordStore store : locked) {
+            Throwable failure = failures.get(store);
+            if (failure == null) {
+                unlocked.add(store);
+            } else if (failure instanceof WrongPasswordException) {
+                // Expected for the stores with other passwords
+            } else if (failure instanceof DecryptionException) {
+                errors.put(store, (DecryptionException) failure);
+            } else {
+                rethrowUnchecked(failure);
+                errors.put(store, new DecryptionException("Failed to unlock datastore", failure));
+            }
+        }
+        return new UnlockAllResult(unlocked, errors);
+    }
+
+    /**
+     * Run the task on each of the stores, on the store thread pool plus this thread, and wait for all to finish
+     * whether or not any fail
+     *
+     * @return the failures, by store, in store order; empty if all succeeded
+     */
+    private static Map<PasswordStore, Throwable> forEachInParallel(List<PasswordStore> stores, final StoreTask task) {
+        Map<PasswordStore, Throwable> failures = new LinkedHashMap<PasswordStore, Throwable>();
+        if (stores.size() <= 1 || CryptoUtils.getParallelism() == 1) {
+            for (PasswordStore store : stores) {
+                try {
+                    task.run(store);
+                } catch (Exception e) {
+                    failures.put(store, e);
+                }
+            }
+            return failures;
+        }
+
+        // Do the last store on this thread while the others are done on the pool
+        ExecutorService executor = getStoreExecutor();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(stores.size() - 1);
+        for (final PasswordStore store : stores.subList(0, stores.size() - 1)) {
+            futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws PWSafeException {
+                        task.run(store);
+                        return null;
+                    }
+                }));
+        }
+        PasswordStore last = stores.get(stores.size() - 1);
+        Throwable lastFailure = null;
+        try {
+            task.run(last);
+        } catch (Exception e) {
+            lastFailure = e;
+        }
+        // Must wait for every store, even after a failure, as the pool threads are still changing them
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            while (true) {
+                try {
+                    futures.get(i).get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    failures.put(stores.get(i), e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (lastFailure != null) {
+            failures.put(last, lastFailure);
+        }
+        return failures;
+    }
+
+    /**
+     * Rethrow failure if it is a RuntimeException or Error
+     */
+    private static void rethrowUnchecked(Throwable failure) {
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    private static synchronized ExecutorService getStoreExecutor() {
+        if (_storeExecutor == null) {
+            _storeExecutor = Executors.newFixedThreadPool(CryptoUtils.getParallelism(), new ThreadFactory() {
+                    private final AtomicInteger _threadCount = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "pwsafe-store-" + _threadCount.incrementAndGet());
+                        // Don't keep the JVM running after the main window has closed
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return _storeExecutor;
+    }
+
+    /**
+     * Read a datastore file written by {@link #write(File)}, or by Java serialization in older versions.
+     * <p>
+     * Only the header and index of a file in the indexed or log layout are read here: each store reads its
+     * encrypted entries from the file when it is unlocked, so this takes as long for a file of a hundred megabytes
+     * as for an empty one with the same stores. The file is kept open until {@link #close()}. Files in the older
+     * format are read whole.
+     *
+     * @param file the file to read, must not be null. An empty file gives an empty list.
+     * @return the stores read, all locked
+     * @throws IllegalArgumentException if file is null
+     * @throws IOException if reading fails, or the file is invalid
+     * @throws SerializationUtils.SerializationException if a file in the older format cannot be deserialized
+     */
+    public static PasswordStoreList read(File file) throws IOException, SerializationUtils.SerializationException {
+        if (file == null) {
+            throw new IllegalArgumentException("file must not be null");
+        }
+        // Writable where possible, in case it is a log to append to
+        StoreFile storeFile = new StoreFile(file, file.canWrite());
+        boolean keepOpen = false;
+        try {
+            if (storeFile.size() == 0) {
+                return new PasswordStoreList();
+            }
+            if (!hasFileMagic(storeFile)) {
+                // Mapped where possible, so the file is not copied onto the heap before deserializing
+                ByteBuffer serialized = IOUtils.readFileBuffer(file);
+                return SerializationUtils.deserialize(new ByteBufferInputStream(serialized), PasswordStoreList.class);
+            }
+            PasswordStoreList list = readFile(file, storeFile);
+            keepOpen = true;
+            return list;
+        } finally {
+            if (!keepOpen) {
+                storeFile.close();
+            }
+        }
+    }
+
+    private static boolean hasFileMagic(StoreFile storeFile) throws IOException {
+        if (storeFile.size() < FILE_MAGIC.length + 1) {
+            return false;
+        }
+        return Arrays.equals(storeFile.read(0, FILE_MAGIC.length), FILE_MAGIC);
+    }
+
+    private static PasswordStoreList readFile(File file, StoreFile storeFile) throws IOException {
+        byte version = storeFile.read(FILE_MAGIC.length, 1)[0];
+        // Add new versions here when adding a FILE_VERSION
+        switch (version) {
+            case FILE_VERSION_INDEXED:
+                return readIndexedFile(storeFile);
+            case FILE_VERSION_LOG:
+                return DatastoreLog.read(file, storeFile);
+            default:
+                throw new RecordReader.RecordFormatException("Unsupported datastore file version " + version);
+        }
+    }
+
+    private static PasswordStoreList readIndexedFile(StoreFile storeFile) throws IOException {
+        if (storeFile.size() < INDEXED_HEADER_LENGTH) {
+            throw new RecordReader.RecordFormatException("Datastore file header truncated");
+        }
+        int indexLength = ByteBuffer.wrap(storeFile.read(FILE_MAGIC.length + 1, 4)).getInt();
+        if (indexLength < 0 || indexLength > storeFile.size() - INDEXED_HEADER_LENGTH) {
+            throw new RecordReader.RecordFormatException("Datastore file index truncated");
+        }
+        byte[] index = storeFile.read(INDEXED_HEADER_LENGTH, indexLength);
+        PasswordStoreList list = readIndex(index, storeFile, INDEXED_HEADER_LENGTH + (long) indexLength);
+        list._storeFile = storeFile;
+        return list;
+    }
+
+    /**
+     * Read an index written by {@link #writeIndex(List, long[])}
+     *
+     * @param index the index, which is zeroed once read
+     * @param storeFile the file containing the encrypted entries
+     * @param entriesBase the position in the file the entries offsets in the index are relative to
+     * @return the stores, locked, which read their encrypted entries from storeFile when unlocked
+     * @throws RecordReader.RecordFormatException if the index is invalid
+     */
+    static PasswordStoreList readIndex(byte[] index, StoreFile storeFile, long entriesBase) throws IOException {
+        RecordReader reader = new RecordReader(ByteBuffer.wrap(index));
+        try {
+            reader.readHeader();
+            PasswordStoreList list = new PasswordStoreList();
+            while (reader.nextField()) {
+                switch (reader.getTag()) {
+                    case TAG_STORE:
+                        reader.beginRecord();
+                        list._stores.add(PasswordStore.readIndexRecord(reader, storeFile, entriesBase));
+                        break;
+                    default:
+                        reader.skipField();
+                }
+            }
+            reader.endRecord();
+            return list;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Write the index of a datastore file, in the record format (see {@link RecordWriter}), with a record for each
+     * store with its name, how its entries are encrypted, and where they are in the file.
+     *
+     * @param stores the stores, all locked
+     * @param entriesOffsets where each store's encrypted entries are in the file
+     * @return the index
+     */
+    static byte[] writeIndex(List<PasswordStore> stores, long[] entriesOffsets) throws IOException {
+        int indexRecordLength = 0;
+        for (PasswordStore store : stores) {
+            indexRecordLength += RecordWriter.recordFieldLength(store.getIndexRecordLength());
+        }
+        // Nothing secret in the index, so no need to zero it
+        ByteArrayOutputStream index = new ByteArrayOutputStream(indexRecordLength + 16);
+        RecordWriter writer = new RecordWriter(index);
+        try {
+            writer.writeHeader(indexRecordLength);
+            for (int i = 0; i < stores.size(); i++) {
+                PasswordStore store = stores.get(i);
+                writer.writeRecordStart(TAG_STORE, store.getIndexRecordLength());
+                store.writeIndexRecord(writer, entriesOffsets[i]);
+            }
+        } finally {
+            writer.close();
+        }
+        return index.toByteArray();
+    }
+
+    /**
+     * Write the stores to a datastore file. Any unlocked stores are locked first, as by {@link #lockAll()}.
+     * <p>
+     * By default the file is replaced atomically (see {@link AtomicFileOutputStream}) with one in the indexed
+     * layout: {@link #FILE_MAGIC}, {@link #FILE_VERSION_INDEXED}, the length of the index as 4 bytes big-endian,
+     * the index (see {@link #writeIndex(List, long[])}), then the encrypted entries of each store, one after
+     * another, where the index says relative to the end of the index. So {@link #read(File)} need not read the
+     * entries at all.
+     * <p>
+     * With the {@link #STORAGE_PROPERTY} system property set to "log", a file in the log layout which this list was
+     * read from or last written to is instead appended to, with only the stores whose entries have changed: see
+     * {@link DatastoreLog}. Any other file is replaced with a new log, as is the log itself if anything has been
+     * removed since it was last written as a whole, which its earlier commits still hold: stores, entries, or a
+     * store's data key wrapped with an old password (see {@link PasswordStore#hasRemovedSecrets()}).
+     * <p>
+     * Afterwards the stores read their encrypted entries from the new file when next needed, rather than keeping
+     * them in memory.
+     *
+     * @param file the file to write, must not be null
+     * @throws IllegalArgumentException if file is null
+     * @throws EncryptionException if locking any store fails
+     * @throws IOException if writing fails, in which case the file is left as it was
+     */
+    public void write(File file) throws EncryptionException, IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("file must not be null");
+        }
+        lockAll();
+        List<PasswordStore> stores = new ArrayList<PasswordStore>(_stores);
+        if (LOG_STORAGE) {
+            boolean written = false;
+            boolean appended = false;
+            if (_log != null) {
+                if (hasRemovedSecrets(stores)) {
+                    // Appending would leave them in the earlier commits, so write a new log with just this one
+                    written = _log.rewrite(file, stores);
+                } else {
+                    appended = _log.append(file, stores);
+                    written = appended;
+                }
+            }
+            if (!written) {
+                DatastoreLog log = DatastoreLog.create(file, stores);
+                if (log != null) {
+                    close();
+                    _log = log;
+                }
+            }
+            if (!appended) {
+                removedSecretsWritten(stores);
+            }
+            return;
+        }
+
+        long[] entriesOffsets = new long[stores.size()];
+        long entriesLength = 0;
+        for (int i = 0; i < stores.size(); i++) {
+            entriesOffsets[i] = entriesLength;
+            entriesLength += stores.get(i).getEncryptedEntriesLength();
+        }
+        byte[] index = writeIndex(stores, entriesOffsets);
+        AtomicFileOutputStream output = new AtomicFileOutputStream(file);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(INDEXED_HEADER_LENGTH);
+            header.put(FILE_MAGIC).put(FILE_VERSION_INDEXED).putInt(index.length);
+            output.write(header.array());
+            output.write(index);
+            for (PasswordStore store : stores) {
+                // Copied from the old file where not in memory
+                store.writeEncryptedEntries(output);
+            }
+            output.commit();
+        } finally {
+            output.close();
+        }
+        useStoredEntries(file, stores, INDEXED_HEADER_LENGTH + (long) index.length, entriesOffsets, entriesLength);
+        removedSecretsWritten(stores);
+    }
+
+    /**
+     * @param stores the stores to be written, all locked
+     * @return true if anything has been removed since the whole file was last written, which is still in it:
+     *         stores, or entries or data keys of the stores, see {@link PasswordStore#hasRemovedSecrets()}
+     */
+    private boolean hasRemovedSecrets(List<PasswordStore> stores) {
+        if (_removedStoreCount != _removedStoreWrittenCount) {
+            return true;
+        }
+        for (PasswordStore store : stores) {
+            if (store.hasRemovedSecrets()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Once the whole file has been written with the stores, note that nothing removed so far is in it
+     */
+    private void removedSecretsWritten(List<PasswordStore> stores) {
+        _removedStoreWrittenCount = _removedStoreCount;
+        for (PasswordStore store : stores) {
+            store.removedSecretsWritten();
+        }
+    }
+
+    /**
+     * Point the stores just written at their encrypted entries in the new file, and close the old one.
+     * If the new file cannot be opened, or has already been replaced, the stores carry on as they were.
+     */
+    private void useStoredEntries(File file, List<PasswordStore> stores, long entriesBase, long[] entriesOffsets,
+            long entriesLength) {
+        StoreFile storeFile;
+        try {
+            storeFile = new StoreFile(file);
+        } catch (IOException e) {
+            return;
+        }
+        if (storeFile.size() != entriesBase + entriesLength) {
+            storeFile.close();
+            return;
+        }
+        for (int i = 0; i < stores.size(); i++) {
+            stores.get(i).setStoredEntries(storeFile, entriesBase + entriesOffsets[i]);
+        }
+        // Any stores removed since reading can no longer be unlocked, but they have been destroyed anyway
+        close();
+        _storeFile = storeFile;
+    }
+
+    /**
+     * Copy the stores, so that the copy can be written by {@link #write(File)} on another thread while these stores
+     * carry on being used: for example to save changes in the background. Unlike writing these stores, writing the
+     * copy leaves them as they are: unlocked stores are copied unlocked, with their own copies of the entries and
+     * keys, and only the copies are locked. Unlocked stores with no key yet cannot be saved, so are left out.
+     * <p>
+     * Locked stores share their encrypted entries with their copies, so copying is quick, unless unlocked stores
+     * hold large attachments.
+     * <p>
+     * Once the copy has been written, pass it to {@link #copySaved(PasswordStoreList)}; if writing fails, destroy its
+     * secrets instead. Meanwhile, writing the copy may close the datastore file these stores read from, so none of
+     * them can be unlocked, and these stores must not be written.
+     *
+     * @return the copy, never null
+     */
+    public PasswordStoreList copyForSave() {
+        PasswordStoreList copy = new PasswordStoreList();
+        for (PasswordStore store : _stores) {
+            PasswordStore storeCopy = store.copyForSave();
+            if (storeCopy != null) {
+                copy._stores.add(storeCopy);
+            }
+        }
+        // The copy appends to the same log, or replaces the same file
+        copy._storeFile = _storeFile;
+        copy._log = _log;
+        copy._removedStoreCount = _removedStoreCount;
+        copy._removedStoreWrittenCount = _removedStoreWrittenCount;
+        return copy;
+    }
+
+    /**
+     * Once a copy made by {@link #copyForSave()} has been written, use the file it was written to as if these stores
+     * had been: stores whose encrypted entries have not changed since copying read them from the new file when next
+     * needed, and the next write appends to the same log. The copy's secrets are destroyed.
+     *
+     * @param copy the copy just written, must not be null
+     * @throws IllegalArgumentException if copy is null
+     */
+    public void copySaved(PasswordStoreList copy) {
+        if (copy == null) {
+            throw new IllegalArgumentException("copy must not be null");
+        }
+        for (PasswordStore store : copy._stores) {
+            store.copySaved();
+        }
+        // Writing the copy closed the old file, if it replaced it
+        _storeFile = copy._storeFile;
+        _log = copy._log;
+        // Not any stores removed since copying
+        _removedStoreWrittenCount = Math.max(_removedStoreWrittenCount, copy._removedStoreWrittenCount);
+        copy._storeFile = null;
+        copy._log = null;
+        copy.destroySecrets();
+    }
+
+    /**
+     * Close the datastore file the stores were read from, if any, once the stores are no longer needed: after this,
+     * locked stores whose entries are still in the file cannot be unlocked. Any compaction of a log in progress is
+     * abandoned. This method can safely be called repeatedly.
+     */
+    public void close() {
+        if (_storeFile != null) {
+            _storeFile.close();
+            _storeFile = null;
+        }
+        if (_log != null) {
+            _log.close();
+            _log = null;
+        }
+    }
+
+    /**
+     * @return the exception which made compacting the log file in the background fail (see {@link DatastoreLog}),
+     *         if it has failed since this method was last called, otherwise null. The stores are unaffected: the
+     *         file is left as it was, with the old values of edited entries still in it.
+     */
+    public IOException takeCompactionFailure() {
+        return (_log != null) ? _log.takeCompactionFailure() : null;
+    }
+
+    /**
+     * @param log the log this list was read from, see {@link DatastoreLog#read(File, StoreFile)}
+     */
+    void setLog(DatastoreLog log) {
+        _log = log;
+    }
+
+    private static boolean selectLogStorage() {
+        return SystemProperties.get(STORAGE_PROPERTY, new SystemProperties.Parser<Boolean>() {
+                public Boolean parse(String value) {
+                    if ("indexed".equalsIgnoreCase(value)) {
+                        return Boolean.FALSE;
+                    }
+                    if ("log".equalsIgnoreCase(value)) {
+                        return Boolean.TRUE;
+                    }
+                    throw new IllegalArgumentException("expected 'indexed' or 'log'");
+                }
+            }, Boolean.FALSE).booleanValue();
+    }
+
     /**
      * Explicit serialization to guarantee we can handle old versions if implementation evolves
      */
@@ -151,4 +777,40 @@ public class PasswordStoreList implements Serializable {
     protected void finalize() throws Throwable {
         destroySecrets();
     }
+
+    /**
+     * Work to do on each store, see forEachInParallel
+     */
+    private static interface StoreTask {
+        void run(PasswordStore store) throws PWSafeException;
+    }
+
+    /**
+     * Value object for returning the outcome of {@link PasswordStoreList#unlockAll(char[])}
+     */
+    public static final class UnlockAllResult {
+
+        private final List<PasswordStore> _unlocked;
+        private final Map<PasswordStore, DecryptionException> _failures;
+
+        UnlockAllResult(final List<PasswordStore> unlocked, final Map<PasswordStore, DecryptionException> failures) {
+            _unlocked = Collections.unmodifiableList(unlocked);
+            _failures = Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * @return the stores the password unlocked, never null
+         */
+        public List<PasswordStore> getUnlocked() {
+            return _unlocked;
+        }
+
+        /**
+         * @return the stores which could not be decrypted for reasons other than a wrong password (for example
+         *         corrupted data), with the reason; never null
+         */
+        public Map<PasswordStore, DecryptionException> getFailures() {
+            return _failures;
+        }
+    }
 }
@@ -0,0 +1,278 @@
+package pwsafe.store;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A datastore file in the indexed or log layout, kept open so that stores read from it can read their encrypted entries
+ * when they are unlocked rather than when the file is loaded, see {@link PasswordStoreList#read(File)}.
+ * <p>
+ * Reads are positional, so any number of stores can read at once, from different threads.
+ * The file is opened through a {@link FileChannel}, which unlike a FileInputStream does not stop Windows replacing
+ * the file while it is open. An open file keeps the contents it was opened with when replaced
+ * by {@link pwsafe.util.AtomicFileOutputStream}.
+ * <p>
+ * A file opened for writing can also be appended to, see {@link DatastoreLog}. Writes must not overlap data which
+ * may be being read.
+ *
+ * @author Nick Clarke
+ */
+final class StoreFile {
+
+    private static final int COPY_BUFFER_LENGTH = 64 * 1024;
+
+    private final FileChannel _channel;
+    private final boolean _writable;
+    private volatile long _size;
+
+    /**
+     * Open a StoreFile for reading only
+     *
+     * @param file the file to read, must not be null
+     * @throws IOException if the file cannot be opened
+     */
+    StoreFile(final File file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Open a StoreFile
+     *
+     * @param file the file to read, must not be null
+     * @param writable true to open the file for writing too
+     * @throws IOException if the file cannot be opened
+     */
+    StoreFile(final File file, final boolean writable) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("file must not be null");
+        }
+        _channel = writable ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                            : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        _writable = writable;
+        boolean ok = false;
+        try {
+            _size = _channel.size();
+            ok = true;
+        } finally {
+            if (!ok) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * @return the length of the file when it was opened, as changed since by this StoreFile
+     */
+    long size() {
+        return _size;
+    }
+
+    /**
+     * @return true if the file was opened for writing
+     */
+    boolean isWritable() {
+        return _writable;
+    }
+
+    /**
+     * @throws IOException if the range is not within the file
+     */
+    void checkRange(long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset > _size - length) {
+            throw new IOException("Data at " + offset + " length " + length
+                    + " is beyond the end of the file (length " + _size + ")");
+        }
+    }
+
+    /**
+     * @param offset the position in the file to start reading
+     * @param length the number of bytes to read, must be >= 0
+     * @return a new array of the bytes read
+     * @throws IOException if reading fails, or the range is not within the file
+     */
+    byte[] read(long offset, int length) throws IOException {
+        checkRange(offset, length);
+        byte[] data = new byte[length];
+        readFully(offset, ByteBuffer.wrap(data));
+        return data;
+    }
+
+    /**
+     * @param offset the position in the file to start reading
+     * @param length the number of bytes to read, must be >= 0
+     * @return a stream of the bytes, which can be read while other threads read the file. Closing it does nothing.
+     * @throws IOException if the range is not within the file
+     */
+    InputStream newInputStream(long offset, long length) throws IOException {
+        checkRange(offset, length);
+        return new RangeInputStream(offset, offset + length);
+    }
+
+    /**
+     * Copy bytes from the file to a stream
+     *
+     * @param offset the position in the file to start reading
+     * @param length the number of bytes to copy, must be >= 0
+     * @param output the stream to write to, which is left open
+     * @throws IOException if reading or writing fails, or the range is not within the file
+     */
+    void copyTo(long offset, long length, OutputStream output) throws IOException {
+        checkRange(offset, length);
+        byte[] buffer = new byte[(int) Math.min(length, COPY_BUFFER_LENGTH)];
+        while (length > 0) {
+            int count = (int) Math.min(length, buffer.length);
+            readFully(offset, ByteBuffer.wrap(buffer, 0, count));
+            output.write(buffer, 0, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * @param position the position in the file to start writing, which may be at or before the end of the file
+     * @return a stream writing to the file from that position, which is not buffered. Closing it does nothing.
+     * @throws IllegalStateException if the file was not opened for writing
+     */
+    OutputStream newOutputStream(long position) {
+        if (!_writable) {
+            throw new IllegalStateException("Not opened for writing");
+        }
+        return new PositionOutputStream(position);
+    }
+
+    /**
+     * Discard the end of the file
+     *
+     * @param size the new length of the file, if it is longer than that
+     * @throws IllegalStateException if the file was not opened for writing
+     */
+    void truncate(long size) throws IOException {
+        if (!_writable) {
+            throw new IllegalStateException("Not opened for writing");
+        }
+        _channel.truncate(size);
+        _size = Math.min(_size, size);
+    }
+
+    /**
+     * Force everything written so far to disk
+     */
+    void force() throws IOException {
+        _channel.force(true);
+    }
+
+    /**
+     * Close the file: reading fails afterwards. This method can safely be called repeatedly.
+     */
+    void close() {
+        try {
+            _channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void readFully(long offset, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = _channel.read(buffer, offset);
+            if (read == -1) {
+                // Only if truncated in place by another process
+                throw new EOFException("Unexpected end of datastore file");
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * Writes to the file, from its own position
+     */
+    private final class PositionOutputStream extends OutputStream {
+
+        private long _position;
+
+        PositionOutputStream(final long position) {
+            _position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (b == null) {
+                throw new NullPointerException();
+            }
+            if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+                throw new IndexOutOfBoundsException();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                _position += _channel.write(buffer, _position);
+            }
+            if (_position > _size) {
+                _size = _position;
+            }
+        }
+    }
+
+    /**
+     * Reads a range of the file, from its own position
+     */
+    private final class RangeInputStream extends InputStream {
+
+        private long _position;
+        private final long _end;
+
+        RangeInputStream(final long position, final long end) {
+            _position = position;
+            _end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (b == null) {
+                throw new NullPointerException();
+            }
+            if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (_position == _end) {
+                return -1;
+            }
+            int count = (int) Math.min(len, _end - _position);
+            readFully(_position, ByteBuffer.wrap(b, off, count));
+            _position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            if (n <= 0) {
+                return 0;
+            }
+            long count = Math.min(n, _end - _position);
+            _position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(_end - _position, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package pwsafe.util;
+
+/**
+ * Cost parameters for hashing a password with {@link Argon2id}: memory, passes over the memory, and lanes.
+ * The lanes can be filled in parallel, one per core, so more lanes make the hash faster for us without making it
+ * any cheaper for an attacker.
+ * <p>
+ * Immutable.
+ *
+ * @author Nick Clarke
+ */
+public final class Argon2Parameters {
+
+    /**
+     * The smallest and largest values accepted, including from encrypted data, which might have been tampered with
+     */
+    public static final int MIN_MEMORY_KIB = 8;
+    public static final int MAX_MEMORY_KIB = 1024 * 1024; // 1GiB
+    public static final int MAX_ITERATIONS = 1024;
+    public static final int MAX_LANES = 64;
+
+    private final int _memoryKiB;
+    private final int _iterations;
+    private final int _lanes;
+
+    /**
+     * Construct an Argon2Parameters
+     *
+     * @param memoryKiB the memory to fill, in kibibytes, at least 8 per lane
+     * @param iterations the number of passes over the memory, at least 1
+     * @param lanes the number of lanes, at least 1
+     * @throws IllegalArgumentException if any value is out of range
+     */
+    public Argon2Parameters(final int memoryKiB, final int iterations, final int lanes) {
+        if (lanes < 1 || lanes > MAX_LANES) {
+            throw new IllegalArgumentException("lanes must be 1 to " + MAX_LANES + ", got " + lanes);
+        }
+        if (memoryKiB < MIN_MEMORY_KIB * lanes || memoryKiB > MAX_MEMORY_KIB) {
+            throw new IllegalArgumentException("memoryKiB must be " + (MIN_MEMORY_KIB * lanes) + " to "
+                    + MAX_MEMORY_KIB + " for " + lanes + " lanes, got " + memoryKiB);
+        }
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("iterations must be 1 to " + MAX_ITERATIONS + ", got " + iterations);
+        }
+        _memoryKiB = memoryKiB;
+        _iterations = iterations;
+        _lanes = lanes;
+    }
+
+    /**
+     * Parse parameters in the form returned by {@link #toString()}: memory in KiB, iterations and lanes,
+     * separated by commas
+     *
+     * @throws IllegalArgumentException if the value is not in that form, or any value is out of range
+     */
+    public static Argon2Parameters parse(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Expected memoryKiB,iterations,lanes but got '" + value + "'");
+        }
+        try {
+            return new Argon2Parameters(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                                        Integer.parseInt(parts[2].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected memoryKiB,iterations,lanes but got '" + value + "'", e);
+        }
+    }
+
+    public int getMemoryKiB() {
+        return _memoryKiB;
+    }
+
+    public int getIterations() {
+        return _iterations;
+    }
+
+    public int getLanes() {
+        return _lanes;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Argon2Parameters)) {
+            return false;
+        }
+        Argon2Parameters other = (Argon2Parameters) obj;
+        return _memoryKiB == other._memoryKiB && _iterations == other._iterations && _lanes == other._lanes;
+    }
+
+    @Override
+    public int hashCode() {
+        return (31 * _memoryKiB + _iterations) * 31 + _lanes;
+    }
+
+    /**
+     * @return memoryKiB,iterations,lanes
+     */
+    @Override
+    public String toString() {
+        return _memoryKiB + "," + _iterations + "," + _lanes;
+    }
+}
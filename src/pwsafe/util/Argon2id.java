@@ -0,0 +1,420 @@
+package pwsafe.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The Argon2id memory-hard password hash, version 0x13 (RFC 9106).
+ * <p>
+ * The memory is divided into lanes, which are filled in four slices per pass. Within a slice each lane only refers
+ * to blocks outside the other lanes' current slices, so the lanes of a slice are filled in parallel on the
+ * executor, with the calling thread waiting for them all at the end of each slice.
+ *
+ * @author Nick Clarke
+ */
+final class Argon2id {
+
+    private static final int VERSION = 0x13;
+    private static final int TYPE = 2; // Argon2id
+    private static final int BLOCK_LENGTH_BYTES = 1024;
+    private static final int BLOCK_LONGS = BLOCK_LENGTH_BYTES / 8;
+    private static final int SLICES = 4; // synchronization points per pass
+    private static final int ADDRESSES_PER_BLOCK = BLOCK_LONGS;
+    private static final int PREHASH_LENGTH = 64;
+    private static final long LOW_INT = 0xFFFFFFFFL;
+
+    private final Argon2Parameters _parameters;
+    private final int _laneLength; // blocks per lane
+    private final int _segmentLength; // blocks per lane per slice
+    private final int _blockCount;
+    private long[] _memory;
+
+    private Argon2id(final Argon2Parameters parameters) {
+        _parameters = parameters;
+        int lanes = parameters.getLanes();
+        _segmentLength = parameters.getMemoryKiB() / (SLICES * lanes);
+        _laneLength = _segmentLength * SLICES;
+        _blockCount = _laneLength * lanes;
+    }
+
+    /**
+     * Hash a password.
+     * <p>
+     * <b>IMPORTANT:</b> the caller MUST ensure the returned array is zero-overwritten and discarded when finished.
+     *
+     * @param password the password bytes
+     * @param salt the salt, at least 8 bytes
+     * @param parameters the cost parameters
+     * @param outputLength the number of bytes of output, at least 4
+     * @param executor where to fill lanes in parallel, or null to fill them all on the calling thread
+     * @param progress told after each slice, or null
+     * @return a newly-allocated key
+     * @throws InterruptedException if the calling thread is interrupted, checked after each slice
+     */
+    static byte[] hash(byte[] password, byte[] salt, Argon2Parameters parameters, int outputLength,
+            ExecutorService executor, ProgressListener progress) throws InterruptedException {
+        return hash(password, salt, new byte[0], new byte[0], parameters, outputLength, executor, progress);
+    }
+
+    /**
+     * As {@link #hash(byte[], byte[], Argon2Parameters, int, ExecutorService, ProgressListener)}, with the optional
+     * secret and associated data inputs, which are only needed to check against the RFC 9106 test vector
+     */
+    static byte[] hash(byte[] password, byte[] salt, byte[] secret, byte[] associatedData,
+            Argon2Parameters parameters, int outputLength, ExecutorService executor, ProgressListener progress)
+            throws InterruptedException {
+        if (salt.length < 8) {
+            throw new IllegalArgumentException("salt must be at least 8 bytes, got " + salt.length);
+        }
+        if (outputLength < 4) {
+            throw new IllegalArgumentException("outputLength must be at least 4, got " + outputLength);
+        }
+        Argon2id argon2 = new Argon2id(parameters);
+        argon2._memory = new long[argon2._blockCount * BLOCK_LONGS];
+        try {
+            byte[] prehash = argon2.prehash(password, salt, secret, associatedData, outputLength);
+            try {
+                argon2.fillFirstBlocks(prehash);
+            } finally {
+                Arrays.fill(prehash, (byte) 0);
+            }
+            long totalSlices = (long) parameters.getIterations() * SLICES;
+            for (int pass = 0; pass < parameters.getIterations(); pass++) {
+                for (int slice = 0; slice < SLICES; slice++) {
+                    argon2.fillSlice(pass, slice, executor);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException("Interrupted while hashing password");
+                    }
+                    if (progress != null) {
+                        progress.progress((long) pass * SLICES + slice + 1, totalSlices);
+                    }
+                }
+            }
+            return argon2.finish(outputLength);
+        } finally {
+            Arrays.fill(argon2._memory, 0L);
+            argon2._memory = null;
+        }
+    }
+
+    /**
+     * H0, the hash of all the inputs
+     */
+    private byte[] prehash(byte[] password, byte[] salt, byte[] secret, byte[] associatedData, int outputLength) {
+        Blake2b blake2b = new Blake2b(PREHASH_LENGTH);
+        blake2b.updateInt(_parameters.getLanes());
+        blake2b.updateInt(outputLength);
+        blake2b.updateInt(_parameters.getMemoryKiB());
+        blake2b.updateInt(_parameters.getIterations());
+        blake2b.updateInt(VERSION);
+        blake2b.updateInt(TYPE);
+        for (byte[] input : new byte[][] {password, salt, secret, associatedData}) {
+            blake2b.updateInt(input.length);
+            blake2b.update(input, 0, input.length);
+        }
+        byte[] prehash = new byte[PREHASH_LENGTH];
+        blake2b.doFinal(prehash, 0);
+        return prehash;
+    }
+
+    /**
+     * The first two blocks of each lane are made directly from H0
+     */
+    private void fillFirstBlocks(byte[] prehash) {
+        byte[] input = new byte[PREHASH_LENGTH + 8];
+        byte[] block = new byte[BLOCK_LENGTH_BYTES];
+        System.arraycopy(prehash, 0, input, 0, PREHASH_LENGTH);
+        try {
+            for (int lane = 0; lane < _parameters.getLanes(); lane++) {
+                for (int i = 0; i < 2; i++) {
+                    putInt(input, PREHASH_LENGTH, i);
+                    putInt(input, PREHASH_LENGTH + 4, lane);
+                    variableLengthHash(input, block);
+                    int offset = (lane * _laneLength + i) * BLOCK_LONGS;
+                    for (int j = 0; j < BLOCK_LONGS; j++) {
+                        _memory[offset + j] = Blake2b.getLong(block, j * 8);
+                    }
+                }
+            }
+        } finally {
+            Arrays.fill(input, (byte) 0);
+            Arrays.fill(block, (byte) 0);
+        }
+    }
+
+    private void fillSlice(final int pass, final int slice, ExecutorService executor) throws InterruptedException {
+        int lanes = _parameters.getLanes();
+        if (executor == null || lanes == 1) {
+            for (int lane = 0; lane < lanes; lane++) {
+                fillSegment(pass, slice, lane);
+            }
+            return;
+        }
+        List<Future<Object>> results = new ArrayList<Future<Object>>(lanes - 1);
+        try {
+            for (int i = 1; i < lanes; i++) {
+                final int lane = i;
+                results.add(executor.submit(new Callable<Object>() {
+                        public Object call() {
+                            fillSegment(pass, slice, lane);
+                            return null;
+                        }
+                    }));
+            }
+            // Do a share of the work while waiting
+            fillSegment(pass, slice, 0);
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException("Unexpected error filling Argon2 lane", e.getCause());
+        } finally {
+            // Don't let remaining tasks write into memory which the caller may be about to clear, even if interrupted
+            boolean interrupted = false;
+            for (Future<Object> result : results) {
+                while (!result.cancel(false)) {
+                    try {
+                        result.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException ignored) {
+                        break;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Fill one lane's blocks for one slice of a pass
+     */
+    private void fillSegment(int pass, int slice, int lane) {
+        // Argon2id: data-independent addressing for the first half of the first pass, data-dependent after
+        boolean dataIndependent = (pass == 0 && slice < SLICES / 2);
+        long[] zeroBlock = null;
+        long[] inputBlock = null;
+        long[] addressBlock = null;
+        long[] scratch = new long[BLOCK_LONGS * 2];
+        if (dataIndependent) {
+            zeroBlock = new long[BLOCK_LONGS];
+            inputBlock = new long[BLOCK_LONGS];
+            addressBlock = new long[BLOCK_LONGS];
+            inputBlock[0] = pass;
+            inputBlock[1] = lane;
+            inputBlock[2] = slice;
+            inputBlock[3] = _blockCount;
+            inputBlock[4] = _parameters.getIterations();
+            inputBlock[5] = TYPE;
+        }
+        int startIndex = 0;
+        if (pass == 0 && slice == 0) {
+            // The first two blocks were made from H0
+            startIndex = 2;
+            if (dataIndependent) {
+                nextAddresses(zeroBlock, inputBlock, addressBlock, scratch);
+            }
+        }
+        int currentOffset = lane * _laneLength + slice * _segmentLength + startIndex;
+        int previousOffset = (currentOffset % _laneLength == 0) ? currentOffset + _laneLength - 1 : currentOffset - 1;
+
+        for (int index = startIndex; index < _segmentLength; index++, currentOffset++, previousOffset++) {
+            if (currentOffset % _laneLength == 1) {
+                previousOffset = currentOffset - 1;
+            }
+            long pseudoRandom;
+            if (dataIndependent) {
+                if (index % ADDRESSES_PER_BLOCK == 0) {
+                    nextAddresses(zeroBlock, inputBlock, addressBlock, scratch);
+                }
+                pseudoRandom = addressBlock[index % ADDRESSES_PER_BLOCK];
+            } else {
+                pseudoRandom = _memory[previousOffset * BLOCK_LONGS];
+            }
+            int referenceLane = (int) ((pseudoRandom >>> 32) % _parameters.getLanes());
+            if (pass == 0 && slice == 0) {
+                referenceLane = lane;
+            }
+            int referenceIndex = referenceIndex(pass, slice, index, pseudoRandom & LOW_INT, referenceLane == lane);
+            fillBlock(_memory, previousOffset * BLOCK_LONGS,
+                      _memory, (referenceLane * _laneLength + referenceIndex) * BLOCK_LONGS,
+                      _memory, currentOffset * BLOCK_LONGS, pass > 0, scratch);
+        }
+        Arrays.fill(scratch, 0L);
+        if (addressBlock != null) {
+            Arrays.fill(addressBlock, 0L);
+        }
+    }
+
+    /**
+     * Map the low 32 bits of the pseudo-random value to a block in the reference lane which may be referred to
+     */
+    private int referenceIndex(int pass, int slice, int index, long pseudoRandom, boolean sameLane) {
+        long referenceAreaSize;
+        if (pass == 0) {
+            if (slice == 0) {
+                referenceAreaSize = index - 1;
+            } else if (sameLane) {
+                referenceAreaSize = slice * _segmentLength + index - 1;
+            } else {
+                referenceAreaSize = slice * _segmentLength + ((index == 0) ? -1 : 0);
+            }
+        } else {
+            if (sameLane) {
+                referenceAreaSize = _laneLength - _segmentLength + index - 1;
+            } else {
+                referenceAreaSize = _laneLength - _segmentLength + ((index == 0) ? -1 : 0);
+            }
+        }
+        long relativePosition = (pseudoRandom * pseudoRandom) >>> 32;
+        relativePosition = referenceAreaSize - 1 - ((referenceAreaSize * relativePosition) >>> 32);
+        long startPosition = 0;
+        if (pass != 0 && slice != SLICES - 1) {
+            startPosition = (slice + 1) * _segmentLength;
+        }
+        return (int) ((startPosition + relativePosition) % _laneLength);
+    }
+
+    private static void nextAddresses(long[] zeroBlock, long[] inputBlock, long[] addressBlock, long[] scratch) {
+        inputBlock[6]++;
+        fillBlock(zeroBlock, 0, inputBlock, 0, addressBlock, 0, false, scratch);
+        fillBlock(zeroBlock, 0, addressBlock, 0, addressBlock, 0, false, scratch);
+    }
+
+    /**
+     * The compression function G: next = P(previous ^ reference) ^ previous ^ reference, also XORed with the old
+     * value of next if withXor (every pass after the first)
+     */
+    private static void fillBlock(long[] previous, int previousOffset, long[] reference, int referenceOffset,
+            long[] next, int nextOffset, boolean withXor, long[] scratch) {
+        // scratch holds R = previous ^ reference, then the value to XOR with P(R)
+        long[] r = scratch;
+        int tmp = BLOCK_LONGS;
+        for (int i = 0; i < BLOCK_LONGS; i++) {
+            r[i] = previous[previousOffset + i] ^ reference[referenceOffset + i];
+            r[tmp + i] = withXor ? r[i] ^ next[nextOffset + i] : r[i];
+        }
+        // Apply the BLAKE2b-based permutation to the rows, then the columns, of the 8x8 matrix of 16-byte registers
+        for (int row = 0; row < 8; row++) {
+            int o = row * 16;
+            permute(r, o, o + 1, o + 2, o + 3, o + 4, o + 5, o + 6, o + 7,
+                    o + 8, o + 9, o + 10, o + 11, o + 12, o + 13, o + 14, o + 15);
+        }
+        for (int column = 0; column < 8; column++) {
+            int o = column * 2;
+            permute(r, o, o + 1, o + 16, o + 17, o + 32, o + 33, o + 48, o + 49,
+                    o + 64, o + 65, o + 80, o + 81, o + 96, o + 97, o + 112, o + 113);
+        }
+        for (int i = 0; i < BLOCK_LONGS; i++) {
+            next[nextOffset + i] = r[tmp + i] ^ r[i];
+        }
+    }
+
+    private static void permute(long[] v, int v0, int v1, int v2, int v3, int v4, int v5, int v6, int v7,
+            int v8, int v9, int v10, int v11, int v12, int v13, int v14, int v15) {
+        mix(v, v0, v4, v8, v12);
+        mix(v, v1, v5, v9, v13);
+        mix(v, v2, v6, v10, v14);
+        mix(v, v3, v7, v11, v15);
+        mix(v, v0, v5, v10, v15);
+        mix(v, v1, v6, v11, v12);
+        mix(v, v2, v7, v8, v13);
+        mix(v, v3, v4, v9, v14);
+    }
+
+    /**
+     * BLAKE2b's G function, with the additions replaced by a + b + 2 * lo(a) * lo(b)
+     */
+    private static void mix(long[] v, int a, int b, int c, int d) {
+        v[a] = v[a] + v[b] + 2 * (v[a] & LOW_INT) * (v[b] & LOW_INT);
+        v[d] = Long.rotateRight(v[d] ^ v[a], 32);
+        v[c] = v[c] + v[d] + 2 * (v[c] & LOW_INT) * (v[d] & LOW_INT);
+        v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+        v[a] = v[a] + v[b] + 2 * (v[a] & LOW_INT) * (v[b] & LOW_INT);
+        v[d] = Long.rotateRight(v[d] ^ v[a], 16);
+        v[c] = v[c] + v[d] + 2 * (v[c] & LOW_INT) * (v[d] & LOW_INT);
+        v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+    }
+
+    /**
+     * Hash the XOR of the last block of every lane to the output
+     */
+    private byte[] finish(int outputLength) {
+        long[] last = new long[BLOCK_LONGS];
+        for (int lane = 0; lane < _parameters.getLanes(); lane++) {
+            int offset = (lane * _laneLength + _laneLength - 1) * BLOCK_LONGS;
+            for (int i = 0; i < BLOCK_LONGS; i++) {
+                last[i] ^= _memory[offset + i];
+            }
+        }
+        byte[] block = new byte[BLOCK_LENGTH_BYTES];
+        for (int i = 0; i < BLOCK_LONGS; i++) {
+            for (int j = 0; j < 8; j++) {
+                block[i * 8 + j] = (byte) (last[i] >>> (8 * j));
+            }
+        }
+        Arrays.fill(last, 0L);
+        byte[] output = new byte[outputLength];
+        try {
+            variableLengthHash(block, output);
+        } finally {
+            Arrays.fill(block, (byte) 0);
+        }
+        return output;
+    }
+
+    /**
+     * H', BLAKE2b extended to any output length: a chain of 64-byte hashes, taking the first half of each
+     */
+    private static void variableLengthHash(byte[] input, byte[] output) {
+        byte[] length = new byte[4];
+        putInt(length, 0, output.length);
+        if (output.length <= Blake2b.MAX_DIGEST_LENGTH) {
+            Blake2b blake2b = new Blake2b(output.length);
+            blake2b.update(length, 0, length.length);
+            blake2b.update(input, 0, input.length);
+            blake2b.doFinal(output, 0);
+            return;
+        }
+        Blake2b blake2b = new Blake2b(Blake2b.MAX_DIGEST_LENGTH);
+        byte[] v = new byte[Blake2b.MAX_DIGEST_LENGTH];
+        blake2b.update(length, 0, length.length);
+        blake2b.update(input, 0, input.length);
+        blake2b.doFinal(v, 0);
+        int half = Blake2b.MAX_DIGEST_LENGTH / 2;
+        int position = 0;
+        System.arraycopy(v, 0, output, position, half);
+        position += half;
+        while (output.length - position > Blake2b.MAX_DIGEST_LENGTH) {
+            blake2b.update(v, 0, v.length);
+            blake2b.doFinal(v, 0);
+            System.arraycopy(v, 0, output, position, half);
+            position += half;
+        }
+        Blake2b lastHash = new Blake2b(output.length - position);
+        lastHash.update(v, 0, v.length);
+        lastHash.doFinal(output, position);
+        Arrays.fill(v, (byte) 0);
+    }
+
+    private static void putInt(byte[] dest, int offset, int value) {
+        dest[offset] = (byte) value;
+        dest[offset + 1] = (byte) (value >>> 8);
+        dest[offset + 2] = (byte) (value >>> 16);
+        dest[offset + 3] = (byte) (value >>> 24);
+    }
+}
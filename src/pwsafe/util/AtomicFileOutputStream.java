@@ -0,0 +1,189 @@
+package pwsafe.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replaces a file atomically and durably: data is written to a temporary file in the same directory, which only
+ * replaces the target file when {@link #commit()} is called, after it has been forced to disk. Until then the
+ * target file is untouched, so a crash or a failed write at any point leaves either the old contents or the new,
+ * never a mixture or an empty file.
+ * <p>
+ * Usage:
+ * <pre>
+ *     AtomicFileOutputStream output = new AtomicFileOutputStream(file);
+ *     try {
+ *         ... write to output ...
+ *         output.commit();
+ *     } finally {
+ *         output.close(); // deletes the temporary file if not committed
+ *     }
+ * </pre>
+ * Data is buffered and written through a {@link FileChannel} from a direct buffer, so nothing larger than the
+ * buffer is held in memory. The temporary file is created readable and writable by its owner only, where the file
+ * system supports that.
+ *
+ * @author Nick Clarke
+ */
+public final class AtomicFileOutputStream extends OutputStream {
+
+    private static final int BUFFER_LENGTH = 64 * 1024;
+
+    private final Path _target;
+    private final Path _temp;
+    private FileChannel _channel;
+    private ByteBuffer _buffer = ByteBuffer.allocateDirect(BUFFER_LENGTH);
+    private boolean _finished = false; // committed, or closed and the temporary file deleted
+
+    /**
+     * Construct an AtomicFileOutputStream, creating the temporary file
+     *
+     * @param file the file to replace, must not be null. If it is a symbolic link, the file it points to is
+     *        replaced.
+     * @throws IllegalArgumentException if file is null
+     * @throws IOException if the temporary file cannot be created, e.g. the directory is not writable
+     */
+    public AtomicFileOutputStream(final File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("file must not be null");
+        }
+        Path target = file.toPath().toAbsolutePath();
+        if (Files.isSymbolicLink(target)) {
+            target = target.toRealPath();
+        }
+        _target = target;
+        _temp = Files.createTempFile(target.getParent(), target.getFileName() + ".", ".tmp");
+        boolean ok = false;
+        try {
+            _channel = FileChannel.open(_temp, StandardOpenOption.WRITE);
+            ok = true;
+        } finally {
+            if (!ok) {
+                Files.deleteIfExists(_temp);
+            }
+        }
+    }
+
+    /**
+     * @throws IOException if the stream has already been committed or closed
+     */
+    private void checkOpen() throws IOException {
+        if (_channel == null) {
+            throw new IOException("Stream already closed");
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        if (!_buffer.hasRemaining()) {
+            writeBuffer();
+        }
+        _buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        checkOpen();
+        while (len > 0) {
+            if (!_buffer.hasRemaining()) {
+                writeBuffer();
+            }
+            int count = Math.min(len, _buffer.remaining());
+            _buffer.put(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Write out the buffered data to the temporary file. The target file is not changed until {@link #commit()}.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        writeBuffer();
+    }
+
+    /**
+     * Write out the buffered data, force the temporary file to disk, and rename it over the target file.
+     * The stream is closed afterwards. If this fails, the target file is left as it was.
+     *
+     * @throws IOException if writing, forcing or renaming fails
+     */
+    public void commit() throws IOException {
+        checkOpen();
+        writeBuffer();
+        _channel.force(true);
+        _channel.close();
+        _channel = null;
+        _buffer = null;
+        try {
+            Files.move(_temp, _target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            // Can't happen within one directory on any common file system, but better than not saving
+            Files.move(_temp, _target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        _finished = true;
+        forceDirectory();
+    }
+
+    /**
+     * Force the rename itself to disk, where the platform allows a directory to be opened for that
+     */
+    private void forceDirectory() {
+        try {
+            FileChannel directory = FileChannel.open(_target.getParent(), StandardOpenOption.READ);
+            try {
+                directory.force(true);
+            } finally {
+                directory.close();
+            }
+        } catch (IOException ignored) {
+            // Not possible on Windows: the rename is still atomic, it may just not be on disk yet
+        }
+    }
+
+    /**
+     * If {@link #commit()} has not succeeded, discard the temporary file, leaving the target file as it was.
+     * This method can safely be called repeatedly, and after commit.
+     */
+    @Override
+    public void close() throws IOException {
+        if (_finished) {
+            return;
+        }
+        try {
+            if (_channel != null) {
+                _channel.close();
+                _channel = null;
+            }
+        } finally {
+            _buffer = null;
+            _finished = true;
+            Files.deleteIfExists(_temp);
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        _buffer.flip();
+        while (_buffer.hasRemaining()) {
+            _channel.write(_buffer);
+        }
+        _buffer.clear();
+    }
+}
@@ -0,0 +1,371 @@
+package pwsafe.util;
+
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.engines.SerpentEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * Serpent engine which can encrypt two blocks at once, giving identical output to BouncyCastle's SerpentEngine.
+ * <p>
+ * Serpent is designed to be computed bitsliced: each round applies its S-box to 32 columns of bits in parallel with
+ * bitwise operations on four 32-bit words. Here the words of two blocks are packed into the high and low halves of
+ * four longs, so the same operations process 64 columns, and the S-boxes (the bulk of the work) cost the same for two
+ * blocks as for one. Rotations and shifts in the linear transformation have to be masked to keep the two halves
+ * apart. This suits counter mode, where many blocks are encrypted at once, see {@link #processBlocks}.
+ * <p>
+ * Single blocks (as used by CMAC) and decryption are passed to a SerpentEngine initialized with the same key.
+ *
+ * @author Nick Clarke
+ */
+final class BitslicedSerpentEngine implements BlockCipher {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int ROUNDS = 32;
+    private static final int PHI = 0x9E3779B9; // (sqrt(5) - 1) * 2^31
+    private static final long LOW_HALF = 0xFFFFFFFFL;
+
+    private final SerpentEngine _engine = new SerpentEngine();
+    private boolean _forEncryption;
+    // The round subkeys, with each word repeated in both halves of a long. Null until initialized.
+    private long[] _workingKey;
+    // The state of two blocks: block 1 in the high halves, block 2 in the low halves
+    private long _x0;
+    private long _x1;
+    private long _x2;
+    private long _x3;
+
+    BitslicedSerpentEngine() {
+    }
+
+    public void init(boolean forEncryption, CipherParameters params) {
+        // SerpentEngine checks the parameter type
+        _engine.init(forEncryption, params);
+        _forEncryption = forEncryption;
+        _workingKey = makeWorkingKey(((KeyParameter) params).getKey());
+    }
+
+    public String getAlgorithmName() {
+        return _engine.getAlgorithmName();
+    }
+
+    public int getBlockSize() {
+        return BLOCK_SIZE;
+    }
+
+    public int processBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        return _engine.processBlock(in, inOff, out, outOff);
+    }
+
+    public void reset() {
+        _engine.reset();
+    }
+
+    /**
+     * Process a number of consecutive blocks; equivalent to calling {@link #processBlock} for each in turn.
+     * When encrypting, blocks are processed two at a time.
+     *
+     * @return the number of bytes processed
+     * @throws IllegalStateException if the engine has not been initialized
+     * @throws DataLengthException if the input or output is too short
+     */
+    int processBlocks(byte[] in, int inOff, byte[] out, int outOff, int blockCount) {
+        if (_workingKey == null) {
+            throw new IllegalStateException("Serpent not initialised");
+        }
+        int length = blockCount * BLOCK_SIZE;
+        if (inOff + length > in.length) {
+            throw new DataLengthException("input buffer too short");
+        }
+        if (outOff + length > out.length) {
+            throw new DataLengthException("output buffer too short");
+        }
+        int block = 0;
+        if (_forEncryption) {
+            for (; block + 1 < blockCount; block += 2) {
+                int offset = block * BLOCK_SIZE;
+                encryptBlockPair(in, inOff + offset, out, outOff + offset);
+            }
+        }
+        for (; block < blockCount; block++) {
+            int offset = block * BLOCK_SIZE;
+            _engine.processBlock(in, inOff + offset, out, outOff + offset);
+        }
+        return length;
+    }
+
+    /**
+     * Encrypt two consecutive blocks
+     */
+    private void encryptBlockPair(byte[] in, int inOff, byte[] out, int outOff) {
+        _x3 = pack(in, inOff);
+        _x2 = pack(in, inOff + 4);
+        _x1 = pack(in, inOff + 8);
+        _x0 = pack(in, inOff + 12);
+
+        long[] key = _workingKey;
+        for (int k = 0; ; k += 32) {
+            sb0(key[k] ^ _x0, key[k + 1] ^ _x1, key[k + 2] ^ _x2, key[k + 3] ^ _x3); lt();
+            sb1(key[k + 4] ^ _x0, key[k + 5] ^ _x1, key[k + 6] ^ _x2, key[k + 7] ^ _x3); lt();
+            sb2(key[k + 8] ^ _x0, key[k + 9] ^ _x1, key[k + 10] ^ _x2, key[k + 11] ^ _x3); lt();
+            sb3(key[k + 12] ^ _x0, key[k + 13] ^ _x1, key[k + 14] ^ _x2, key[k + 15] ^ _x3); lt();
+            sb4(key[k + 16] ^ _x0, key[k + 17] ^ _x1, key[k + 18] ^ _x2, key[k + 19] ^ _x3); lt();
+            sb5(key[k + 20] ^ _x0, key[k + 21] ^ _x1, key[k + 22] ^ _x2, key[k + 23] ^ _x3); lt();
+            sb6(key[k + 24] ^ _x0, key[k + 25] ^ _x1, key[k + 26] ^ _x2, key[k + 27] ^ _x3); lt();
+            sb7(key[k + 28] ^ _x0, key[k + 29] ^ _x1, key[k + 30] ^ _x2, key[k + 31] ^ _x3);
+            if (k + 32 == ROUNDS * 4) {
+                break;
+            }
+            lt();
+        }
+
+        unpack(key[131] ^ _x3, out, outOff);
+        unpack(key[130] ^ _x2, out, outOff + 4);
+        unpack(key[129] ^ _x1, out, outOff + 8);
+        unpack(key[128] ^ _x0, out, outOff + 12);
+    }
+
+    /**
+     * The key schedule from SerpentEngine, with each subkey word repeated in both halves.
+     * The S-boxes are applied with the same methods as for encryption, so both halves get the same result.
+     */
+    private long[] makeWorkingKey(byte[] key) {
+        if (key.length % 4 != 0) {
+            throw new IllegalArgumentException("key must be a multiple of 4 bytes");
+        }
+        // Pad the key to 256 bits: little-endian word order, with a single 1 bit after the key
+        int[] kPad = new int[16];
+        int length = 0;
+        for (int offset = key.length - 4; offset >= 0; offset -= 4) {
+            kPad[length++] = wordAt(key, offset);
+        }
+        if (length < 8) {
+            kPad[length] = 1;
+        }
+
+        // Expand to 33 128-bit subkeys with the affine recurrence
+        int[] w = new int[(ROUNDS + 1) * 4];
+        for (int i = 8; i < 16; i++) {
+            kPad[i] = Integer.rotateLeft(kPad[i - 8] ^ kPad[i - 5] ^ kPad[i - 3] ^ kPad[i - 1] ^ PHI ^ (i - 8), 11);
+        }
+        System.arraycopy(kPad, 8, w, 0, 8);
+        for (int i = 8; i < w.length; i++) {
+            w[i] = Integer.rotateLeft(w[i - 8] ^ w[i - 5] ^ w[i - 3] ^ w[i - 1] ^ PHI ^ i, 11);
+        }
+
+        // Apply the S-boxes to each subkey, starting with S3 and working down
+        long[] workingKey = new long[w.length];
+        for (int i = 0; i < w.length; i += 4) {
+            int sbox = (3 - (i / 4)) & 7;
+            long a = duplicate(w[i]);
+            long b = duplicate(w[i + 1]);
+            long c = duplicate(w[i + 2]);
+            long d = duplicate(w[i + 3]);
+            switch (sbox) {
+            case 0: sb0(a, b, c, d); break;
+            case 1: sb1(a, b, c, d); break;
+            case 2: sb2(a, b, c, d); break;
+            case 3: sb3(a, b, c, d); break;
+            case 4: sb4(a, b, c, d); break;
+            case 5: sb5(a, b, c, d); break;
+            case 6: sb6(a, b, c, d); break;
+            case 7: sb7(a, b, c, d); break;
+            default: throw new AssertionError(sbox);
+            }
+            workingKey[i] = _x0;
+            workingKey[i + 1] = _x1;
+            workingKey[i + 2] = _x2;
+            workingKey[i + 3] = _x3;
+        }
+        Arrays.fill(w, 0);
+        Arrays.fill(kPad, 0);
+        _x0 = _x1 = _x2 = _x3 = 0;
+        return workingKey;
+    }
+
+    private static int wordAt(byte[] src, int offset) {
+        return ((src[offset] & 0xFF) << 24) | ((src[offset + 1] & 0xFF) << 16)
+                | ((src[offset + 2] & 0xFF) << 8) | (src[offset + 3] & 0xFF);
+    }
+
+    private static long duplicate(int word) {
+        return (((long) word) << 32) | (word & LOW_HALF);
+    }
+
+    /**
+     * @return the big-endian word at the offset in the first block in the high half, and the word at the same
+     *         offset in the following block in the low half
+     */
+    private static long pack(byte[] src, int offset) {
+        return (((long) wordAt(src, offset)) << 32) | (wordAt(src, offset + BLOCK_SIZE) & LOW_HALF);
+    }
+
+    /**
+     * The reverse of {@link #pack}
+     */
+    private static void unpack(long words, byte[] dest, int offset) {
+        putWord((int) (words >>> 32), dest, offset);
+        putWord((int) words, dest, offset + BLOCK_SIZE);
+    }
+
+    private static void putWord(int word, byte[] dest, int offset) {
+        dest[offset] = (byte) (word >>> 24);
+        dest[offset + 1] = (byte) (word >>> 16);
+        dest[offset + 2] = (byte) (word >>> 8);
+        dest[offset + 3] = (byte) word;
+    }
+
+    /**
+     * Rotate both halves left by the same distance
+     */
+    private static long rotl(long x, int distance) {
+        long wrapped = ((1L << distance) - 1) * 0x100000001L; // the low bits of each half, filled by wrapping
+        return ((x << distance) & ~wrapped) | ((x >>> (32 - distance)) & wrapped);
+    }
+
+    /**
+     * Shift both halves left by the same distance
+     */
+    private static long shl(long x, int distance) {
+        return (x << distance) & ~(((1L << distance) - 1) * 0x100000001L);
+    }
+
+    // The S-boxes, as in SerpentEngine: each takes the four input words and sets _x0 to _x3
+
+    private void sb0(long a, long b, long c, long d) {
+        long t1 = a ^ d;
+        long t2 = c ^ t1;
+        long t3 = b ^ t2;
+        _x3 = (a & d) ^ t3;
+        long t4 = a ^ (b & t1);
+        _x2 = t3 ^ (c | t4);
+        long t5 = _x3 & (t2 ^ t4);
+        _x1 = ~t2 ^ t5;
+        _x0 = t5 ^ ~t4;
+    }
+
+    private void sb1(long a, long b, long c, long d) {
+        long t1 = b ^ ~a;
+        long t2 = c ^ (a | t1);
+        _x2 = d ^ t2;
+        long t3 = b ^ (d | t1);
+        long t4 = t1 ^ _x2;
+        _x3 = t4 ^ (t2 & t3);
+        long t5 = t2 ^ t3;
+        _x1 = _x3 ^ t5;
+        _x0 = t2 ^ (t4 & t5);
+    }
+
+    private void sb2(long a, long b, long c, long d) {
+        long t1 = ~a;
+        long t2 = b ^ d;
+        long t3 = c & t1;
+        _x0 = t2 ^ t3;
+        long t4 = c ^ t1;
+        long t5 = c ^ _x0;
+        long t6 = b & t5;
+        _x3 = t4 ^ t6;
+        _x2 = a ^ ((d | t6) & (_x0 | t4));
+        _x1 = (t2 ^ _x3) ^ (_x2 ^ (d | t1));
+    }
+
+    private void sb3(long a, long b, long c, long d) {
+        long t1 = a ^ b;
+        long t2 = a & c;
+        long t3 = a | d;
+        long t4 = c ^ d;
+        long t5 = t1 & t3;
+        long t6 = t2 | t5;
+        _x2 = t4 ^ t6;
+        long t7 = b ^ t3;
+        long t8 = t6 ^ t7;
+        long t9 = t4 & t8;
+        _x0 = t1 ^ t9;
+        long t10 = _x2 & _x0;
+        _x1 = t8 ^ t10;
+        _x3 = (b | d) ^ (t4 ^ t10);
+    }
+
+    private void sb4(long a, long b, long c, long d) {
+        long t1 = a ^ d;
+        long t2 = d & t1;
+        long t3 = c ^ t2;
+        long t4 = b | t3;
+        _x3 = t1 ^ t4;
+        long t5 = ~b;
+        long t6 = t1 | t5;
+        _x0 = t3 ^ t6;
+        long t7 = a & _x0;
+        long t8 = t1 ^ t5;
+        long t9 = t4 & t8;
+        _x2 = t7 ^ t9;
+        _x1 = (a ^ t3) ^ (t8 & _x2);
+    }
+
+    private void sb5(long a, long b, long c, long d) {
+        long t1 = ~a;
+        long t2 = a ^ b;
+        long t3 = a ^ d;
+        long t4 = c ^ t1;
+        long t5 = t2 | t3;
+        _x0 = t4 ^ t5;
+        long t6 = d & _x0;
+        long t7 = t2 ^ _x0;
+        _x1 = t6 ^ t7;
+        long t8 = t1 | _x0;
+        long t9 = t2 | t6;
+        long t10 = t3 ^ t8;
+        _x2 = t9 ^ t10;
+        _x3 = (b ^ t6) ^ (_x1 & t10);
+    }
+
+    private void sb6(long a, long b, long c, long d) {
+        long t1 = ~a;
+        long t2 = a ^ d;
+        long t3 = b ^ t2;
+        long t4 = t1 | t2;
+        long t5 = c ^ t4;
+        _x1 = b ^ t5;
+        long t6 = t2 | _x1;
+        long t7 = d ^ t6;
+        long t8 = t5 & t7;
+        _x2 = t3 ^ t8;
+        long t9 = t5 ^ t7;
+        _x0 = _x2 ^ t9;
+        _x3 = ~t5 ^ (t3 & t9);
+    }
+
+    private void sb7(long a, long b, long c, long d) {
+        long t1 = b ^ c;
+        long t2 = c & t1;
+        long t3 = d ^ t2;
+        long t4 = a ^ t3;
+        long t5 = d | t1;
+        long t6 = t4 & t5;
+        _x1 = b ^ t6;
+        long t7 = t3 | _x1;
+        long t8 = a & t4;
+        _x3 = t1 ^ t8;
+        long t9 = t4 ^ t7;
+        long t10 = _x3 & t9;
+        _x2 = t3 ^ t10;
+        _x0 = ~t9 ^ (_x3 & _x2);
+    }
+
+    /**
+     * The linear transformation applied between rounds
+     */
+    private void lt() {
+        long t1 = rotl(_x0, 13);
+        long t2 = rotl(_x2, 3);
+        long t3 = (_x1 ^ t1) ^ t2;
+        long t4 = (_x3 ^ t2) ^ shl(t1, 3);
+        _x1 = rotl(t3, 1);
+        _x3 = rotl(t4, 7);
+        _x0 = rotl((t1 ^ _x1) ^ _x3, 5);
+        _x2 = rotl((t2 ^ _x3) ^ shl(_x1, 7), 22);
+    }
+}
@@ -0,0 +1,157 @@
+package pwsafe.util;
+
+import java.util.Arrays;
+
+/**
+ * The BLAKE2b hash function (RFC 7693), unkeyed, with any output length from 1 to 64 bytes.
+ * Used by {@link Argon2id}; BouncyCastle 1.41 does not have it.
+ *
+ * @author Nick Clarke
+ */
+final class Blake2b {
+
+    static final int MAX_DIGEST_LENGTH = 64;
+    private static final int BLOCK_LENGTH = 128;
+    private static final int ROUNDS = 12;
+
+    private static final long[] IV = {
+            0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+            0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L};
+
+    private static final byte[][] SIGMA = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15},
+            {14, 10, 4, 8, 9, 15, 13, 6, 1, 12, 0, 2, 11, 7, 5, 3},
+            {11, 8, 12, 0, 5, 2, 15, 13, 10, 14, 3, 6, 7, 1, 9, 4},
+            {7, 9, 3, 1, 13, 12, 11, 14, 2, 6, 5, 10, 4, 0, 15, 8},
+            {9, 0, 5, 7, 2, 4, 10, 15, 14, 1, 11, 12, 6, 8, 3, 13},
+            {2, 12, 6, 10, 0, 11, 8, 3, 4, 13, 7, 5, 15, 14, 1, 9},
+            {12, 5, 1, 15, 14, 13, 4, 10, 0, 7, 6, 3, 9, 2, 8, 11},
+            {13, 11, 7, 14, 12, 1, 3, 9, 5, 0, 15, 4, 8, 6, 2, 10},
+            {6, 15, 14, 9, 11, 3, 0, 8, 12, 2, 13, 7, 1, 4, 10, 5},
+            {10, 2, 8, 4, 7, 6, 1, 5, 15, 11, 9, 14, 3, 12, 13, 0}};
+
+    private final int _digestLength;
+    private final long[] _h = new long[8];
+    private final long[] _m = new long[16];
+    private final long[] _v = new long[16];
+    private final byte[] _buffer = new byte[BLOCK_LENGTH];
+    private int _bufferLength;
+    private long _counter; // bytes compressed so far; inputs here are far too short to need the high word
+
+    /**
+     * @param digestLength the output length in bytes, 1 to 64
+     */
+    Blake2b(final int digestLength) {
+        if (digestLength < 1 || digestLength > MAX_DIGEST_LENGTH) {
+            throw new IllegalArgumentException("digestLength must be 1 to " + MAX_DIGEST_LENGTH + ", got "
+                    + digestLength);
+        }
+        _digestLength = digestLength;
+        reset();
+    }
+
+    int getDigestLength() {
+        return _digestLength;
+    }
+
+    void reset() {
+        System.arraycopy(IV, 0, _h, 0, IV.length);
+        // Parameter block: digest length, no key, fanout 1, depth 1
+        _h[0] ^= 0x01010000L | _digestLength;
+        _bufferLength = 0;
+        _counter = 0;
+    }
+
+    void update(byte[] input, int offset, int length) {
+        while (length > 0) {
+            // Keep the last block buffered until doFinal, as it has to be compressed differently
+            if (_bufferLength == BLOCK_LENGTH) {
+                _counter += BLOCK_LENGTH;
+                compress(_buffer, 0, false);
+                _bufferLength = 0;
+            }
+            int count = Math.min(length, BLOCK_LENGTH - _bufferLength);
+            System.arraycopy(input, offset, _buffer, _bufferLength, count);
+            _bufferLength += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Feed in an int, little-endian, as Argon2 does for lengths and parameters
+     */
+    void updateInt(int value) {
+        byte[] bytes = {(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)};
+        update(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write the digest to output, and reset to the initial state
+     *
+     * @return the number of bytes written
+     */
+    int doFinal(byte[] output, int offset) {
+        _counter += _bufferLength;
+        Arrays.fill(_buffer, _bufferLength, BLOCK_LENGTH, (byte) 0);
+        compress(_buffer, 0, true);
+        for (int i = 0; i < _digestLength; i++) {
+            output[offset + i] = (byte) (_h[i >>> 3] >>> (8 * (i & 7)));
+        }
+        Arrays.fill(_buffer, (byte) 0);
+        Arrays.fill(_m, 0L);
+        Arrays.fill(_v, 0L);
+        reset();
+        return _digestLength;
+    }
+
+    private void compress(byte[] block, int offset, boolean lastBlock) {
+        long[] m = _m;
+        long[] v = _v;
+        for (int i = 0; i < 16; i++) {
+            m[i] = getLong(block, offset + i * 8);
+        }
+        System.arraycopy(_h, 0, v, 0, 8);
+        System.arraycopy(IV, 0, v, 8, 8);
+        v[12] ^= _counter;
+        if (lastBlock) {
+            v[14] = ~v[14];
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] s = SIGMA[round % SIGMA.length];
+            g(v, 0, 4, 8, 12, m[s[0]], m[s[1]]);
+            g(v, 1, 5, 9, 13, m[s[2]], m[s[3]]);
+            g(v, 2, 6, 10, 14, m[s[4]], m[s[5]]);
+            g(v, 3, 7, 11, 15, m[s[6]], m[s[7]]);
+            g(v, 0, 5, 10, 15, m[s[8]], m[s[9]]);
+            g(v, 1, 6, 11, 12, m[s[10]], m[s[11]]);
+            g(v, 2, 7, 8, 13, m[s[12]], m[s[13]]);
+            g(v, 3, 4, 9, 14, m[s[14]], m[s[15]]);
+        }
+        for (int i = 0; i < 8; i++) {
+            _h[i] ^= v[i] ^ v[i + 8];
+        }
+    }
+
+    private static void g(long[] v, int a, int b, int c, int d, long x, long y) {
+        v[a] = v[a] + v[b] + x;
+        v[d] = Long.rotateRight(v[d] ^ v[a], 32);
+        v[c] = v[c] + v[d];
+        v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+        v[a] = v[a] + v[b] + y;
+        v[d] = Long.rotateRight(v[d] ^ v[a], 16);
+        v[c] = v[c] + v[d];
+        v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+    }
+
+    /**
+     * @return the little-endian long at the offset
+     */
+    static long getLong(byte[] src, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (src[offset + i] & 0xFFL);
+        }
+        return value;
+    }
+}
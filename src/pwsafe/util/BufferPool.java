@@ -0,0 +1,83 @@
+package pwsafe.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of the fixed-size byte arrays the record, compression and encryption streams hold plaintext in, so that
+ * locking and unlocking a store reuses the same few arrays rather than allocating new ones every time.
+ * <p>
+ * Arrays are zeroed when released, so an array in the pool never holds plaintext, whatever state the stream
+ * using it was left in. Only a few arrays of each length, and a limited total, are kept; the rest are left for
+ * the garbage collector, zeroed.
+ * <p>
+ * Heap arrays only: the ciphers all take byte arrays, so direct buffers would just add a copy.
+ *
+ * @author Nick Clarke
+ */
+final class BufferPool {
+
+    private static final int MAX_ARRAYS_PER_LENGTH = 8;
+    private static final long MAX_POOLED_BYTES = 4L * 1024 * 1024;
+
+    // Guarded by BufferPool.class
+    private static final Map<Integer, List<byte[]>> FREE_ARRAYS = new HashMap<Integer, List<byte[]>>();
+    private static long _pooledBytes = 0;
+
+    /**
+     * Static utility methods only, no instances
+     */
+    private BufferPool() {}
+
+    /**
+     * Take an array from the pool, or allocate one if there is none free.
+     * <p>
+     * <b>IMPORTANT:</b> the caller should pass the array to {@link #release(byte[])} when finished with it, and
+     * must not use it after that.
+     *
+     * @param length the length of the array, must be >= 0
+     * @return a zeroed array of exactly the specified length
+     */
+    static byte[] acquire(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length must be >= 0");
+        }
+        synchronized (BufferPool.class) {
+            List<byte[]> free = FREE_ARRAYS.get(length);
+            if (free != null && !free.isEmpty()) {
+                _pooledBytes -= length;
+                return free.remove(free.size() - 1);
+            }
+        }
+        return new byte[length];
+    }
+
+    /**
+     * Zero an array and return it to the pool, if there is room
+     *
+     * @param array an array from {@link #acquire(int)}, or null to do nothing
+     */
+    static void release(byte[] array) {
+        if (array == null) {
+            return;
+        }
+        Arrays.fill(array, (byte) 0);
+        synchronized (BufferPool.class) {
+            if (_pooledBytes + array.length > MAX_POOLED_BYTES) {
+                return;
+            }
+            List<byte[]> free = FREE_ARRAYS.get(array.length);
+            if (free == null) {
+                free = new ArrayList<byte[]>(MAX_ARRAYS_PER_LENGTH);
+                FREE_ARRAYS.put(array.length, free);
+            }
+            if (free.size() < MAX_ARRAYS_PER_LENGTH) {
+                free.add(array);
+                _pooledBytes += array.length;
+            }
+        }
+    }
+}
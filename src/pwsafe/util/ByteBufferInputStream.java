@@ -0,0 +1,87 @@
+package pwsafe.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a ByteBuffer as a stream, such as a file mapped by {@link IOUtils#readFileBuffer(java.io.File)}, without
+ * copying it first. Reading moves on the position of a duplicate, so the caller's buffer is left unchanged.
+ *
+ * @author Nick Clarke
+ */
+public final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer _buffer;
+    private int _mark = 0;
+
+    /**
+     * Construct a ByteBufferInputStream
+     *
+     * @param buffer the data to read, from its position to its limit, must not be null
+     * @throws IllegalArgumentException if buffer is null
+     */
+    public ByteBufferInputStream(final ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("buffer must not be null");
+        }
+        _buffer = buffer.duplicate();
+        _mark = _buffer.position();
+    }
+
+    @Override
+    public int read() {
+        if (!_buffer.hasRemaining()) {
+            return -1;
+        }
+        return _buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (b == null) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!_buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(len, _buffer.remaining());
+        _buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        int count = (int) Math.min(n, _buffer.remaining());
+        _buffer.position(_buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return _buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        _mark = _buffer.position();
+    }
+
+    @Override
+    public void reset() {
+        _buffer.position(_mark);
+    }
+}
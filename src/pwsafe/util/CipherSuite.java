@@ -0,0 +1,320 @@
+package pwsafe.util;
+
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import pwsafe.util.CryptoUtils.CryptoException;
+
+/**
+ * The authenticated ciphers available for encrypting segmented streams with a data key,
+ * see {@link CryptoUtils#newEncryptingStream(java.io.OutputStream, byte[], CipherSuite)}.
+ * <p>
+ * The suite ID is written in the authenticated stream preamble, so decryption uses whichever suite the data was
+ * encrypted with. Serpent-EAX is the implementation used everywhere else (see {@link SerpentEAXCipher}); the others
+ * use the JDK providers, which are typically much faster as HotSpot uses the CPU's AES and carry-less multiply
+ * instructions.
+ * ChaCha20-Poly1305 needs Java 11 or later.
+ * <p>
+ * Every suite uses a 256-bit key and a 128-bit tag.
+ *
+ * @author Nick Clarke
+ */
+public enum CipherSuite {
+
+    SERPENT_EAX((byte) 0x1, "Serpent-256 EAX") {
+        /**
+         * The base nonce, followed by the segment index and last-segment flag. EAX accepts nonces of any length.
+         */
+        @Override
+        byte[] makeSegmentNonce(byte[] nonce, long segmentIndex, boolean lastSegment) {
+            byte[] segmentNonce = new byte[nonce.length + BYTES_PER_LONG + 1];
+            System.arraycopy(nonce, 0, segmentNonce, 0, nonce.length);
+            int pos = putLong(segmentNonce, nonce.length, segmentIndex);
+            segmentNonce[pos++] = (byte) (lastSegment ? 1 : 0);
+            assert (pos == segmentNonce.length);
+            return segmentNonce;
+        }
+
+        @Override
+        int processSegment(boolean forEncryption, byte[] key, byte[] segmentNonce, byte[] associatedData,
+                byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset)
+                throws CryptoException {
+            return processSegment(null, forEncryption, key, segmentNonce, associatedData,
+                    input, inputOffset, inputLength, output, outputOffset);
+        }
+
+        /**
+         * Pipelines CTR and OMAC on two threads if an executor is given, see {@link SerpentEAXCipher}
+         */
+        @Override
+        int processSegment(ExecutorService executor, boolean forEncryption, byte[] key, byte[] segmentNonce,
+                byte[] associatedData, byte[] input, int inputOffset, int inputLength, byte[] output,
+                int outputOffset) throws CryptoException {
+            String operation = (forEncryption ? "encryption" : "decryption");
+            try {
+                return SerpentEAXCipher.process(executor, forEncryption, key, TAG_LENGTH_BYTES, segmentNonce,
+                        associatedData, input, inputOffset, inputLength, output, outputOffset);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CryptoException("Interrupted during " + operation, e);
+            } catch (IllegalStateException e) {
+                // Shouldn't happen if we are using the cipher correctly
+                throw new CryptoException("Unexpected error during " + operation, e);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // Shouldn't happen if we are using the cipher correctly
+                throw new CryptoException("Unexpected error during " + operation, e);
+            } catch (DataLengthException e) {
+                // Shouldn't happen if we are using the cipher correctly
+                throw new CryptoException("Unexpected error during " + operation, e);
+            } catch (InvalidCipherTextException e) {
+                throw new AuthenticationFailedException(e);
+            }
+        }
+    },
+
+    AES_GCM((byte) 0x2, "AES-256 GCM") {
+        @Override
+        byte[] makeSegmentNonce(byte[] nonce, long segmentIndex, boolean lastSegment) {
+            return makeShortSegmentNonce(segmentIndex, lastSegment);
+        }
+
+        @Override
+        int processSegment(boolean forEncryption, byte[] key, byte[] segmentNonce, byte[] associatedData,
+                byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset)
+                throws CryptoException {
+            return processSegmentWithJdkCipher("AES/GCM/NoPadding", new SecretKeySpec(key, "AES"),
+                    new GCMParameterSpec(TAG_LENGTH_BYTES * Byte.SIZE, segmentNonce),
+                    forEncryption, associatedData, input, inputOffset, inputLength, output, outputOffset);
+        }
+    },
+
+    CHACHA20_POLY1305((byte) 0x3, "ChaCha20-Poly1305") {
+        @Override
+        byte[] makeSegmentNonce(byte[] nonce, long segmentIndex, boolean lastSegment) {
+            return makeShortSegmentNonce(segmentIndex, lastSegment);
+        }
+
+        @Override
+        int processSegment(boolean forEncryption, byte[] key, byte[] segmentNonce, byte[] associatedData,
+                byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset)
+                throws CryptoException {
+            // The tag length is fixed at 128 bits for this cipher
+            return processSegmentWithJdkCipher("ChaCha20-Poly1305", new SecretKeySpec(key, "ChaCha20"),
+                    new IvParameterSpec(segmentNonce),
+                    forEncryption, associatedData, input, inputOffset, inputLength, output, outputOffset);
+        }
+    };
+
+    private static final int BYTES_PER_LONG = 8;
+    private static final int TAG_LENGTH_BYTES = 16;
+    private static final int KEY_LENGTH_BYTES = 32;
+    private static final int SHORT_NONCE_LENGTH_BYTES = 12; // the size GCM handles fastest, and all ChaCha20 allows
+    private static final byte[] STREAM_KEY_LABEL = {'p', 'w', 's', 'a', 'f', 'e', ' ', 's', 't', 'r', 'e', 'a', 'm'};
+
+    private final byte _id;
+    private final String _displayName;
+    private Boolean _available; // Computed on first use. Benign race: all threads compute the same value
+
+    private CipherSuite(final byte id, final String displayName) {
+        _id = id;
+        _displayName = displayName;
+    }
+
+    /**
+     * @return the ID stored in the encrypted data to identify this suite
+     */
+    public byte getId() {
+        return _id;
+    }
+
+    /**
+     * @return the suite name for display
+     */
+    @Override
+    public String toString() {
+        return _displayName;
+    }
+
+    /**
+     * @return the suite to use where none has been chosen: Serpent-EAX, as used for all data before suites existed
+     */
+    public static CipherSuite getDefault() {
+        return SERPENT_EAX;
+    }
+
+    /**
+     * @param id a value returned by {@link #getId()}
+     * @return the suite with the specified ID, or null if there is none (data from a newer version)
+     */
+    public static CipherSuite fromId(byte id) {
+        for (CipherSuite suite : values()) {
+            if (suite._id == id) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check whether this suite works on this JVM, by encrypting and decrypting a test segment.
+     *
+     * @return true if this suite can be used
+     */
+    public boolean isAvailable() {
+        if (_available == null) {
+            boolean available;
+            try {
+                byte[] key = new byte[KEY_LENGTH_BYTES];
+                byte[] nonce = makeSegmentNonce(new byte[KEY_LENGTH_BYTES], 0, true);
+                byte[] plaintext = {1, 2, 3};
+                byte[] encrypted = new byte[plaintext.length + TAG_LENGTH_BYTES];
+                byte[] decrypted = new byte[plaintext.length];
+                processSegment(true, key, nonce, plaintext, plaintext, 0, plaintext.length, encrypted, 0);
+                processSegment(false, key, nonce, plaintext, encrypted, 0, encrypted.length, decrypted, 0);
+                available = Arrays.equals(plaintext, decrypted);
+            } catch (CryptoException e) {
+                available = false;
+            }
+            _available = Boolean.valueOf(available);
+        }
+        return _available.booleanValue();
+    }
+
+    /**
+     * @return the number of bytes a segment of plaintext grows by when encrypted
+     */
+    int getTagLength() {
+        return TAG_LENGTH_BYTES;
+    }
+
+    /**
+     * Derive the key for a single stream from a data key and the stream's random base nonce, as
+     * HMAC-SHA256(dataKey, label || suite ID || nonce). Using a new key for every stream means the short segment
+     * nonces of GCM and ChaCha20 only need to be unique within a stream.
+     * <p>
+     * <b>IMPORTANT:</b> the caller MUST ensure the returned array is zero-overwritten and discarded when finished.
+     *
+     * @return a newly-allocated key
+     */
+    byte[] deriveStreamKey(byte[] dataKey, byte[] nonce) {
+        HMac mac = new HMac(new SHA256Digest());
+        mac.init(new KeyParameter(dataKey));
+        mac.update(STREAM_KEY_LABEL, 0, STREAM_KEY_LABEL.length);
+        mac.update(_id);
+        mac.update(nonce, 0, nonce.length);
+        byte[] streamKey = new byte[mac.getMacSize()];
+        mac.doFinal(streamKey, 0);
+        assert (streamKey.length == KEY_LENGTH_BYTES);
+        return streamKey;
+    }
+
+    /**
+     * Make the nonce for a single segment. Each segment gets a distinct nonce, derived from the segment position.
+     * Including the last-segment flag means truncating the stream at a segment boundary is detected.
+     *
+     * @param nonce the random base nonce from the stream preamble
+     * @param segmentIndex the position of the segment in the stream, starting at 0
+     * @param lastSegment true if this is the final segment in the stream
+     */
+    abstract byte[] makeSegmentNonce(byte[] nonce, long segmentIndex, boolean lastSegment);
+
+    /**
+     * Encrypt or decrypt-and-verify a single segment.
+     *
+     * @return the number of bytes written to output
+     * @throws AuthenticationFailedException if decryption fails authentication
+     * @throws CryptoException for any other problem
+     */
+    abstract int processSegment(boolean forEncryption, byte[] key, byte[] segmentNonce, byte[] associatedData,
+            byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset)
+            throws CryptoException;
+
+    /**
+     * Encrypt or decrypt-and-verify a single segment, using a thread from the executor to help if the suite is able
+     * to. By default this ignores the executor and uses {@link #processSegment(boolean, byte[], byte[], byte[],
+     * byte[], int, int, byte[], int)}.
+     *
+     * @param executor where to run work in parallel with the calling thread, or null to use the calling thread only.
+     *        Input and output must not overlap if this is not null.
+     */
+    int processSegment(ExecutorService executor, boolean forEncryption, byte[] key, byte[] segmentNonce,
+            byte[] associatedData, byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset)
+            throws CryptoException {
+        return processSegment(forEncryption, key, segmentNonce, associatedData,
+                input, inputOffset, inputLength, output, outputOffset);
+    }
+
+    /**
+     * A 96-bit segment nonce: three zero bytes, the last-segment flag, then the segment index
+     */
+    private static byte[] makeShortSegmentNonce(long segmentIndex, boolean lastSegment) {
+        byte[] segmentNonce = new byte[SHORT_NONCE_LENGTH_BYTES];
+        int pos = SHORT_NONCE_LENGTH_BYTES - BYTES_PER_LONG - 1;
+        segmentNonce[pos++] = (byte) (lastSegment ? 1 : 0);
+        pos = putLong(segmentNonce, pos, segmentIndex);
+        assert (pos == segmentNonce.length);
+        return segmentNonce;
+    }
+
+    /**
+     * Write a big-endian long into an array
+     *
+     * @return the position after the written value
+     */
+    private static int putLong(byte[] dest, int pos, long value) {
+        for (int shift = (BYTES_PER_LONG - 1) * Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            dest[pos++] = (byte) (value >>> shift);
+        }
+        return pos;
+    }
+
+    private static int processSegmentWithJdkCipher(String transformation, SecretKeySpec key,
+            AlgorithmParameterSpec parameters, boolean forEncryption, byte[] associatedData,
+            byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset)
+            throws CryptoException {
+        String operation = (forEncryption ? "encryption" : "decryption");
+        try {
+            // Cipher instances are not thread-safe, and segments are processed in parallel, so use one per segment
+            Cipher cipher = Cipher.getInstance(transformation);
+            cipher.init(forEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key, parameters);
+            cipher.updateAAD(associatedData);
+            return cipher.doFinal(input, inputOffset, inputLength, output, outputOffset);
+        } catch (AEADBadTagException e) {
+            throw new AuthenticationFailedException(e);
+        } catch (GeneralSecurityException e) {
+            // Includes the algorithm not being available on this JVM
+            throw new CryptoException("Unexpected error during " + operation + " with " + transformation, e);
+        } catch (RuntimeException e) {
+            // Shouldn't happen if we are using the cipher correctly
+            throw new CryptoException("Unexpected error during " + operation + " with " + transformation, e);
+        }
+    }
+
+    /**
+     * Thrown by processSegment when decryption fails authentication, so the caller can report which segment
+     */
+    static final class AuthenticationFailedException extends CryptoException {
+        /**
+         * serialVersionUID for this class.
+         */
+        private static final long serialVersionUID = 6722410374938146513L;
+
+        AuthenticationFailedException(final Throwable cause) {
+            super("Invalid key or corrupted ciphertext", cause);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package pwsafe.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compression applied to the plaintext of segmented streams before it is encrypted,
+ * see {@link CryptoUtils#newEncryptingStream(OutputStream, byte[], CipherSuite, CompressionCodec)}.
+ * <p>
+ * The codec ID is written in the authenticated stream preamble, so decryption uses whichever codec the data was
+ * compressed with. Compressing first means less data to encrypt and to write, so locking, saving and loading are
+ * faster for the entry lists and text attachments, which compress well. Data which does not compress costs little:
+ * LZ stores such blocks as they are.
+ * <p>
+ * As with any compression before encryption, the length of the encrypted data says something about how repetitive
+ * the plaintext is. That only matters where an attacker can both add their own data and watch the length change,
+ * which is not the case for a datastore file.
+ *
+ * @author Nick Clarke
+ */
+public enum CompressionCodec {
+
+    NONE((byte) 0x0, "None") {
+        @Override
+        OutputStream newCompressingStream(OutputStream output) {
+            return output;
+        }
+
+        @Override
+        InputStream newDecompressingStream(InputStream input) {
+            return input;
+        }
+    },
+
+    /**
+     * The JDK's zlib, which compresses further than LZ but takes several times as long. zlib keeps its own copies
+     * of recent plaintext in native memory, which cannot be zeroed: it is freed as soon as the stream is closed.
+     */
+    DEFLATE((byte) 0x1, "Deflate") {
+        @Override
+        OutputStream newCompressingStream(OutputStream output) {
+            return new DeflatingOutputStream(output);
+        }
+
+        @Override
+        InputStream newDecompressingStream(InputStream input) {
+            return new InflatingInputStream(input);
+        }
+    },
+
+    /**
+     * A simple LZ77 codec in the style of LZ4, see {@link LzOutputStream}, which is fast enough to more than pay
+     * for itself in the encryption saved. All its buffers are Java arrays, which it zeroes.
+     */
+    LZ((byte) 0x2, "LZ") {
+        @Override
+        OutputStream newCompressingStream(OutputStream output) {
+            return new LzOutputStream(output);
+        }
+
+        @Override
+        InputStream newDecompressingStream(InputStream input) {
+            return new LzInputStream(input);
+        }
+    };
+
+    private static final int DEFLATE_BUFFER_LENGTH = 8192;
+
+    private static final CompressionCodec DEFAULT = selectDefault();
+
+    private final byte _id;
+    private final String _displayName;
+
+    private CompressionCodec(final byte id, final String displayName) {
+        _id = id;
+        _displayName = displayName;
+    }
+
+    /**
+     * @return the ID stored in the encrypted data to identify this codec
+     */
+    public byte getId() {
+        return _id;
+    }
+
+    /**
+     * @return the codec name for display
+     */
+    @Override
+    public String toString() {
+        return _displayName;
+    }
+
+    /**
+     * @return the codec to use where none has been chosen: the one named by the
+     *         {@link CryptoUtils#COMPRESSION_PROPERTY} system property if set, otherwise LZ
+     */
+    public static CompressionCodec getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param id a value returned by {@link #getId()}
+     * @return the codec with the specified ID, or null if there is none (data from a newer version)
+     */
+    public static CompressionCodec fromId(byte id) {
+        for (CompressionCodec codec : values()) {
+            if (codec._id == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param output where to write the compressed data
+     * @return a stream accepting the data to compress, which closes the output stream when closed
+     */
+    abstract OutputStream newCompressingStream(OutputStream output);
+
+    /**
+     * @param input the compressed data, which is read to the end
+     * @return a stream returning the decompressed data, which closes the input stream when closed
+     */
+    abstract InputStream newDecompressingStream(InputStream input);
+
+    private static CompressionCodec selectDefault() {
+        return SystemProperties.get(CryptoUtils.COMPRESSION_PROPERTY, new SystemProperties.Parser<CompressionCodec>() {
+                public CompressionCodec parse(String value) {
+                    for (CompressionCodec codec : values()) {
+                        if (codec.name().equalsIgnoreCase(value)) {
+                            return codec;
+                        }
+                    }
+                    throw new IllegalArgumentException("unknown codec");
+                }
+            }, LZ);
+    }
+
+    /**
+     * Frees the deflater and zeroes the buffer of compressed output when closed
+     */
+    private static final class DeflatingOutputStream extends DeflaterOutputStream {
+
+        private boolean _closed = false;
+
+        DeflatingOutputStream(final OutputStream output) {
+            super(output, new Deflater(Deflater.DEFAULT_COMPRESSION), DEFLATE_BUFFER_LENGTH);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+            try {
+                super.close();
+            } finally {
+                def.end();
+                Arrays.fill(buf, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Frees the inflater and zeroes the buffer of compressed input when closed. At the end of the compressed data,
+     * checks that the input is at its end too, so that a decrypting stream underneath authenticates its final
+     * segment.
+     */
+    private static final class InflatingInputStream extends InflaterInputStream {
+
+        private boolean _ended = false;
+        private boolean _closed = false;
+
+        InflatingInputStream(final InputStream input) {
+            super(input, new Inflater(), DEFLATE_BUFFER_LENGTH);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1 && !_ended) {
+                _ended = true;
+                if (inf.getRemaining() != 0 || in.read() != -1) {
+                    throw new IOException("Unexpected data after end of compressed data");
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+            try {
+                super.close();
+            } finally {
+                inf.end();
+                Arrays.fill(buf, (byte) 0);
+            }
+        }
+    }
+}
@@ -1,18 +1,26 @@
 package pwsafe.util;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.bouncycastle.crypto.Digest;
 import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.crypto.DataLengthException;
 import org.bouncycastle.crypto.PBEParametersGenerator;
-import org.bouncycastle.crypto.digests.SHA256Digest;
-import org.bouncycastle.crypto.engines.SerpentEngine;
-import org.bouncycastle.crypto.modes.AEADBlockCipher;
-import org.bouncycastle.crypto.modes.EAXBlockCipher;
-import org.bouncycastle.crypto.params.AEADParameters;
-import org.bouncycastle.crypto.params.KeyParameter;
 
 /**
  * Static utility methods for encryption/decryption
@@ -32,9 +40,91 @@ public final class CryptoUtils {
     private static final int NONCE_LENGTH_BYTES         = 32; // 256-bit
     private static final int MAC_LENGTH_BYTES           = 16; // 128-bit - this EAX impl can't do > cipher block size
     private static final int BYTES_PER_INTEGER = 4;
+    private static final int BYTES_PER_LONG = 8;
     private static final int PREAMBLE_LENGTH = PASSWORD_SALT_LENGTH_BYTES + BYTES_PER_INTEGER + NONCE_LENGTH_BYTES;
 
+    /**
+     * First byte of the preamble of the segmented stream format, see {@link #newEncryptingStream}.
+     * Increment this when changing the segmented preamble layout, and update newDecryptingStream to handle
+     * the new and old versions.
+     * (The single-shot format of {@link #encrypt(byte[], EncryptionKey)} has no version byte.)
+     */
+    private static final byte SEGMENTED_FORMAT_VERSION = 0x1;
+    /**
+     * First byte of the preamble of the segmented stream format when encrypted with a data key rather than
+     * a password, see {@link #newEncryptingStream(OutputStream, byte[], CipherSuite, CompressionCodec)}.
+     * Version 0x3 had no compression codec ID, and was not compressed.
+     * Version 0x2 had no cipher suite ID either, and used the data key directly with Serpent-EAX.
+     */
+    private static final byte SEGMENTED_DATA_KEY_FORMAT_VERSION = 0x4;
+    private static final int SEGMENT_LENGTH_BYTES = 64 * 1024; // plaintext bytes per authenticated segment
+    private static final int MAX_SEGMENT_LENGTH_BYTES = 16 * 1024 * 1024; // sanity limit when reading preamble
+    // Version byte, password salt, iteration count, segment length - all included in authentication
+    private static final int SEGMENTED_ASSOCIATED_DATA_LENGTH =
+            1 + PASSWORD_SALT_LENGTH_BYTES + BYTES_PER_INTEGER + BYTES_PER_INTEGER;
+    // Version byte, cipher suite ID, compression codec ID, segment length - all included in authentication
+    private static final int SEGMENTED_DATA_KEY_ASSOCIATED_DATA_LENGTH = 1 + 1 + 1 + BYTES_PER_INTEGER;
+    // Version byte, cipher suite ID, segment length (format version 0x3)
+    private static final int SEGMENTED_DATA_KEY_V3_ASSOCIATED_DATA_LENGTH = 1 + 1 + BYTES_PER_INTEGER;
+    // Version byte, segment length (format version 0x2)
+    private static final int SEGMENTED_DATA_KEY_V2_ASSOCIATED_DATA_LENGTH = 1 + BYTES_PER_INTEGER;
+    private static final int DATA_KEY_LENGTH_BYTES = 32; // 256-bit, the largest Serpent key size
+    /**
+     * First byte of a wrapped data key, see {@link #wrapDataKey}.
+     * Increment this when changing the wrapped key layout, and update unwrapDataKey to handle the new and old
+     * versions. Version 0x1 (still written if Argon2 is turned off) hashed the password with iterated SHA-256.
+     */
+    private static final byte WRAPPED_DATA_KEY_VERSION = 0x2;
+    private static final byte WRAPPED_DATA_KEY_SHA256_VERSION = 0x1;
+    // Version byte, Argon2 memory, iterations and lanes, password salt - all included in authentication
+    private static final int WRAPPED_DATA_KEY_HEADER_LENGTH =
+            1 + BYTES_PER_INTEGER + BYTES_PER_INTEGER + BYTES_PER_INTEGER + PASSWORD_SALT_LENGTH_BYTES;
+    /**
+     * RFC 9106's second recommended option, for when 2GiB is too much: about half a second on one core
+     */
+    private static final Argon2Parameters DEFAULT_ARGON2_PARAMETERS = new Argon2Parameters(64 * 1024, 3, 4);
+
     private static final SecureRandom RANDOM = new SecureRandom();
+    // Iterated SHA-256 hashes between checks for cancellation and progress reports
+    private static final int HASH_ITERATIONS_PER_PROGRESS_CHECK = 8192;
+
+    // Per-thread, see setProgressListener
+    private static final ThreadLocal<ProgressListener> PROGRESS_LISTENER = new ThreadLocal<ProgressListener>();
+
+    /**
+     * System property which can be set to override the default parallelism, see {@link #setParallelism(int)}
+     */
+    public static final String PARALLELISM_PROPERTY = "pwsafe.crypto.parallelism";
+
+    /**
+     * System property which can be set to "jdk" or "bouncycastle" to choose the SHA-256 implementation used for
+     * hashing passwords. By default the JDK implementation is used if it passes a self-test at startup.
+     */
+    public static final String DIGEST_PROVIDER_PROPERTY = "pwsafe.crypto.digestProvider";
+
+    /**
+     * System property which can be set to override the default Argon2 parameters, see
+     * {@link #setArgon2Parameters(Argon2Parameters)}: either "memoryKiB,iterations,lanes" or "off"
+     */
+    public static final String ARGON2_PARAMETERS_PROPERTY = "pwsafe.crypto.argon2";
+
+    /**
+     * System property which can be set to override where the speed of the password hash on this machine is saved,
+     * see {@link #calibrateAndHashPasswordToKey}. Defaults to .pwsafe-calibration in the user's home directory.
+     * Set it empty to measure the speed once per run instead.
+     */
+    public static final String CALIBRATION_FILE_PROPERTY = "pwsafe.crypto.calibrationFile";
+
+    /**
+     * System property which can be set to "none", "deflate" or "lz" to choose the compression applied before
+     * encrypting with a data key, see {@link CompressionCodec#getDefault()}
+     */
+    public static final String COMPRESSION_PROPERTY = "pwsafe.crypto.compression";
+
+    // Guarded by CryptoUtils.class
+    private static int _parallelism = getDefaultParallelism();
+    private static ExecutorService _segmentExecutor = null;
+    private static Argon2Parameters _argon2Parameters = getDefaultArgon2Parameters();
 
     /**
      * Encrypt arbitrary data with the supplied key. To decrypt again, supply the output and the same key
@@ -54,15 +144,14 @@ public final class CryptoUtils {
 
         // TODO: refactor / tidy
 
-        // Password salt info, see hashPasswordToKey
-        byte[] passwordSalt = randomBytes(PASSWORD_SALT_LENGTH_BYTES);
-
+        // Password salt info, see hashPasswordToKey and EncryptionKey.calibrateAndMakeKey
         KeyWithIterationCount keyInfo;
         try {
-            keyInfo = key.calibrateAndMakeKey(passwordSalt, PASSWORD_HASH_ITERATION_TIME_MILLIS);
+            keyInfo = key.calibrateAndMakeKey(PASSWORD_SALT_LENGTH_BYTES, PASSWORD_HASH_ITERATION_TIME_MILLIS);
         } catch (IllegalStateException e) {
             throw new CryptoException("Invalid key", e);
         }
+        byte[] passwordSalt = keyInfo.getSalt();
         byte[] encryptionKey = keyInfo.getKey();
         final int passwordHashIterations = keyInfo.getIterationCount();
 
@@ -86,13 +175,8 @@ public final class CryptoUtils {
             associatedData[pos++] = (byte) ((passwordHashIterations & 0xFF) + Byte.MIN_VALUE);
             assert (pos == associatedData.length);
 
-            AEADBlockCipher cipher = new EAXBlockCipher(new SerpentEngine());
-            cipher.init(true, new AEADParameters(new KeyParameter(encryptionKey),
-                                                 MAC_LENGTH_BYTES * Byte.SIZE,
-                                                 nonce,
-                                                 associatedData));
-
-            byte[] encrypted = new byte[PREAMBLE_LENGTH + cipher.getOutputSize(data.length)];
+            byte[] encrypted = new byte[PREAMBLE_LENGTH
+                                        + SerpentEAXCipher.getOutputSize(true, MAC_LENGTH_BYTES, data.length)];
 
             // Associated data is the first part of the output
             int offset = 0;
@@ -106,8 +190,8 @@ public final class CryptoUtils {
             // Generate the encrypted output and the MAC
             try {
                 assert (offset == PREAMBLE_LENGTH);
-                offset += cipher.processBytes(data, 0, data.length, encrypted, offset);
-                offset += cipher.doFinal(encrypted, offset);
+                offset += SerpentEAXCipher.process(getPipelineExecutor(), true, encryptionKey, MAC_LENGTH_BYTES,
+                                                   nonce, associatedData, data, 0, data.length, encrypted, offset);
                 assert (offset == encrypted.length);
             } catch (IllegalStateException e) {
                 // Shouldn't happen if we are using the cipher correctly
@@ -121,6 +205,9 @@ public final class CryptoUtils {
             } catch (InvalidCipherTextException e) {
                 // Shouldn't happen during encryption, only decryption
                 throw new CryptoException("Unexpected error during encryption", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CryptoException("Interrupted during encryption", e);
             }
 
             return encrypted;
@@ -130,6 +217,10 @@ public final class CryptoUtils {
         }
     }
 
+    /**
+     * @throws WrongKeyException if the data fails authentication, most likely due to an incorrect password
+     * @throws CryptoException for any other problem
+     */
     public static byte[] decrypt(byte[] encrypted, EncryptionKey key) throws CryptoException {
         if (encrypted == null) {
             throw new IllegalArgumentException("encrypted must not be null");
@@ -174,22 +265,18 @@ public final class CryptoUtils {
             System.arraycopy(encrypted, offset, nonce, 0, nonce.length);
             offset += nonce.length;
 
-            AEADBlockCipher cipher = new EAXBlockCipher(new SerpentEngine());
-            cipher.init(false, new AEADParameters(new KeyParameter(encryptionKey),
-                                                  MAC_LENGTH_BYTES * Byte.SIZE,
-                                                  nonce,
-                                                  associatedData));
-
             int encryptedDataLength = encrypted.length - PREAMBLE_LENGTH;
-            byte[] decrypted = new byte[cipher.getOutputSize(encryptedDataLength)];
+            byte[] decrypted = new byte[SerpentEAXCipher.getOutputSize(false, MAC_LENGTH_BYTES, encryptedDataLength)];
 
             /* Decrypt and verify the MAC (which is included in the ciphertext in CCM mode),
                and return the plaintext */
             try {
                 assert (offset == PREAMBLE_LENGTH);
                 int outputOffset = 0;
-                outputOffset += cipher.processBytes(encrypted, offset, encryptedDataLength, decrypted, outputOffset);
-                outputOffset += cipher.doFinal(decrypted, outputOffset);
+                outputOffset += SerpentEAXCipher.process(getPipelineExecutor(), false, encryptionKey,
+                                                         MAC_LENGTH_BYTES, nonce, associatedData,
+                                                         encrypted, offset, encryptedDataLength,
+                                                         decrypted, outputOffset);
                 assert (outputOffset == decrypted.length);
             } catch (IllegalStateException e) {
                 // Shouldn't happen if we are using the cipher correctly
@@ -201,7 +288,10 @@ public final class CryptoUtils {
                 // Shouldn't happen if we are using the cipher correctly
                 throw new CryptoException("Unexpected error during decryption", e);
             } catch (InvalidCipherTextException e) {
-                throw new CryptoException("Invalid key or corrupted ciphertext", e);
+                throw new WrongKeyException("Invalid key or corrupted ciphertext", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CryptoException("Interrupted during decryption", e);
             }
 
             return decrypted;
@@ -211,6 +301,759 @@ public final class CryptoUtils {
         }
     }
 
+    /**
+     * Start encrypting a stream of arbitrary length with the supplied key. To decrypt again, supply the output
+     * and the same key to the {@link #newDecryptingStream(InputStream, EncryptionKey)} method.
+     * <p>
+     * Unlike {@link #encrypt(byte[], EncryptionKey)}, the data is split into fixed-length segments, each of which
+     * is separately encrypted and authenticated under its own nonce, so only a fixed number of segments of
+     * plaintext need to be held in memory at a time, and they can be encrypted in parallel
+     * (see {@link #setParallelism(int)}). The preamble is written to the output immediately; segments are written
+     * in batches as they fill up, and the last batch is written when the returned stream is closed.
+     * <p>
+     * The caller MUST close the returned stream to complete the output, and this also closes the output stream.
+     *
+     * @param output the stream to write the encrypted data to, must not be null
+     * @param key the key to encrypt with, must not be null
+     * @return a stream accepting the plaintext to encrypt
+     * @throws CryptoException for any problem with setting up the encryption
+     * @throws IOException if writing the preamble to the output fails
+     */
+    public static OutputStream newEncryptingStream(OutputStream output, EncryptionKey key)
+            throws CryptoException, IOException {
+        if (output == null) {
+            throw new IllegalArgumentException("output must not be null");
+        }
+        if (key == null) {
+            throw new IllegalArgumentException("key must not be null");
+        }
+
+        // Password salt info, see hashPasswordToKey and EncryptionKey.calibrateAndMakeKey
+        KeyWithIterationCount keyInfo;
+        try {
+            keyInfo = key.calibrateAndMakeKey(PASSWORD_SALT_LENGTH_BYTES, PASSWORD_HASH_ITERATION_TIME_MILLIS);
+        } catch (IllegalStateException e) {
+            throw new CryptoException("Invalid key", e);
+        }
+        byte[] passwordSalt = keyInfo.getSalt();
+        byte[] encryptionKey = keyInfo.getKey();
+        boolean ok = false;
+        try {
+            // Encryption-related data included in authentication of every segment
+            byte[] associatedData = new byte[SEGMENTED_ASSOCIATED_DATA_LENGTH];
+            int pos = 0;
+            associatedData[pos++] = SEGMENTED_FORMAT_VERSION;
+            System.arraycopy(passwordSalt, 0, associatedData, pos, passwordSalt.length);
+            pos += passwordSalt.length;
+            pos = putInt(associatedData, pos, keyInfo.getIterationCount());
+            pos = putInt(associatedData, pos, SEGMENT_LENGTH_BYTES);
+            assert (pos == associatedData.length);
+
+            OutputStream stream = startEncryptingStream(output, CipherSuite.SERPENT_EAX, encryptionKey,
+                    randomBytes(NONCE_LENGTH_BYTES), associatedData);
+            ok = true;
+            return stream;
+        } finally {
+            if (!ok) {
+                Arrays.fill(encryptionKey, (byte) 0);
+            }
+            // Otherwise the stream is now responsible for the key, and will zero it when closed
+            encryptionKey = null;
+        }
+    }
+
+    /**
+     * Start encrypting a stream of arbitrary length with the supplied data key, using the default cipher suite
+     * and compression codec.
+     *
+     * @see #newEncryptingStream(OutputStream, byte[], CipherSuite, CompressionCodec)
+     * @see CipherSuite#getDefault()
+     */
+    public static OutputStream newEncryptingStream(OutputStream output, byte[] dataKey)
+            throws CryptoException, IOException {
+        return newEncryptingStream(output, dataKey, CipherSuite.getDefault());
+    }
+
+    /**
+     * Start encrypting a stream of arbitrary length with the supplied data key and cipher suite, using the default
+     * compression codec.
+     *
+     * @see #newEncryptingStream(OutputStream, byte[], CipherSuite, CompressionCodec)
+     * @see CompressionCodec#getDefault()
+     */
+    public static OutputStream newEncryptingStream(OutputStream output, byte[] dataKey, CipherSuite suite)
+            throws CryptoException, IOException {
+        return newEncryptingStream(output, dataKey, suite, CompressionCodec.getDefault());
+    }
+
+    /**
+     * Start encrypting a stream of arbitrary length with the supplied data key, e.g. one from
+     * {@link #generateDataKey()}. To decrypt again, supply the output and the same data key to the
+     * {@link #newDecryptingStream(InputStream, byte[])} method.
+     * <p>
+     * This is the same segmented format as {@link #newEncryptingStream(OutputStream, EncryptionKey)}, but without
+     * any password hashing, so the data key must be a full-length random key, not a password. The plaintext is
+     * compressed with the specified codec, then the segments are encrypted with the specified cipher suite, under
+     * a key derived from the data key and the random nonce in the preamble (see {@link CipherSuite#deriveStreamKey}).
+     * <p>
+     * The caller MUST close the returned stream to complete the output, and this also closes the output stream.
+     *
+     * @param output the stream to write the encrypted data to, must not be null
+     * @param dataKey the key to encrypt with, must not be null. The caller is still responsible for clearing it.
+     * @param suite the cipher suite to encrypt with, must not be null
+     * @param codec the compression to apply before encrypting, must not be null
+     * @return a stream accepting the plaintext to encrypt
+     * @throws CryptoException if the suite is not available on this JVM, or for any other problem with setting up
+     *         the encryption
+     * @throws IOException if writing the preamble to the output fails
+     */
+    public static OutputStream newEncryptingStream(OutputStream output, byte[] dataKey, CipherSuite suite,
+            CompressionCodec codec) throws CryptoException, IOException {
+        if (output == null) {
+            throw new IllegalArgumentException("output must not be null");
+        }
+        checkDataKey(dataKey);
+        if (suite == null) {
+            throw new IllegalArgumentException("suite must not be null");
+        }
+        if (!suite.isAvailable()) {
+            throw new CryptoException("Cipher suite " + suite + " is not available on this JVM");
+        }
+        if (codec == null) {
+            throw new IllegalArgumentException("codec must not be null");
+        }
+
+        // Encryption-related data included in authentication of every segment
+        byte[] associatedData = new byte[SEGMENTED_DATA_KEY_ASSOCIATED_DATA_LENGTH];
+        int pos = 0;
+        associatedData[pos++] = SEGMENTED_DATA_KEY_FORMAT_VERSION;
+        associatedData[pos++] = suite.getId();
+        associatedData[pos++] = codec.getId();
+        pos = putInt(associatedData, pos, SEGMENT_LENGTH_BYTES);
+        assert (pos == associatedData.length);
+
+        byte[] nonce = randomBytes(NONCE_LENGTH_BYTES);
+        byte[] encryptionKey = suite.deriveStreamKey(dataKey, nonce);
+        boolean ok = false;
+        try {
+            OutputStream stream = startEncryptingStream(output, suite, encryptionKey, nonce, associatedData);
+            ok = true;
+            return codec.newCompressingStream(stream);
+        } finally {
+            if (!ok) {
+                Arrays.fill(encryptionKey, (byte) 0);
+            }
+            // Otherwise the stream is now responsible for the key, and will zero it when closed
+            encryptionKey = null;
+        }
+    }
+
+    /**
+     * Write the preamble and wrap the output in a SegmentedEncryptingOutputStream, which assumes responsibility
+     * for the key
+     *
+     * @param nonce random base nonce, see encrypt: each segment then uses this plus its index as its own nonce
+     */
+    private static OutputStream startEncryptingStream(OutputStream output, CipherSuite suite, byte[] encryptionKey,
+            byte[] nonce, byte[] associatedData) throws IOException {
+        // Preamble is the associated data followed by the nonce - required for decryption; not secret
+        output.write(associatedData);
+        output.write(nonce);
+
+        return new SegmentedEncryptingOutputStream(output, suite, encryptionKey, nonce, associatedData,
+                SEGMENT_LENGTH_BYTES, getParallelism());
+    }
+
+    /**
+     * Start decrypting a stream previously written via {@link #newEncryptingStream(OutputStream, EncryptionKey)}.
+     * <p>
+     * This reads the preamble and hashes the key immediately. Each segment is authenticated before any of its
+     * plaintext is returned from the stream; an authentication failure (wrong key or corrupted data) causes an
+     * IOException from the read methods, with a {@link CryptoException} as its cause. Truncation of the encrypted
+     * data is only detected when the returned stream has been read to the end, so the caller should do so.
+     * <p>
+     * Closing the returned stream also closes the input stream.
+     *
+     * @param input the stream containing the encrypted data, must not be null
+     * @param key the key to decrypt with, must not be null
+     * @return a stream returning the decrypted plaintext
+     * @throws CryptoException if the preamble is invalid, or for any problem with setting up the decryption
+     * @throws IOException if reading the preamble from the input fails
+     */
+    public static InputStream newDecryptingStream(InputStream input, EncryptionKey key)
+            throws CryptoException, IOException {
+        if (key == null) {
+            throw new IllegalArgumentException("key must not be null");
+        }
+        return newDecryptingStream(input, key, null);
+    }
+
+    /**
+     * Start decrypting a stream previously written via
+     * {@link #newEncryptingStream(OutputStream, byte[], CipherSuite, CompressionCodec)}, with whichever cipher suite
+     * and compression codec it was written.
+     * <p>
+     * As for {@link #newDecryptingStream(InputStream, EncryptionKey)}, each segment is authenticated before any of
+     * its plaintext is returned, and the caller should read the returned stream to the end to detect truncation.
+     * <p>
+     * Closing the returned stream also closes the input stream.
+     *
+     * @param input the stream containing the encrypted data, must not be null
+     * @param dataKey the key to decrypt with, must not be null. The stream uses a copy, the caller is still
+     *         responsible for clearing this one.
+     * @return a stream returning the decrypted plaintext
+     * @throws CryptoException if the preamble is invalid, the cipher suite is not available on this JVM, or for
+     *         any other problem with setting up the decryption
+     * @throws IOException if reading the preamble from the input fails
+     */
+    public static InputStream newDecryptingStream(InputStream input, byte[] dataKey)
+            throws CryptoException, IOException {
+        checkDataKey(dataKey);
+        return newDecryptingStream(input, null, dataKey);
+    }
+
+    /**
+     * @param passwordKey the key if the stream was encrypted with a password, otherwise null
+     * @param dataKey the key if the stream was encrypted with a data key, otherwise null
+     */
+    private static InputStream newDecryptingStream(InputStream input, EncryptionKey passwordKey, byte[] dataKey)
+            throws CryptoException, IOException {
+        if (input == null) {
+            throw new IllegalArgumentException("input must not be null");
+        }
+        assert ((passwordKey == null) != (dataKey == null));
+        DataInputStream data = new DataInputStream(input);
+
+        byte version;
+        try {
+            version = data.readByte();
+        } catch (EOFException e) {
+            throw new CryptoException("Encrypted data not long enough: no preamble", e);
+        }
+        byte[] associatedData;
+        // Add new versions here when changing SEGMENTED_FORMAT_VERSION or SEGMENTED_DATA_KEY_FORMAT_VERSION
+        switch (version) {
+            case 0x1:
+                if (passwordKey == null) {
+                    throw new CryptoException("Encrypted data requires a password, not a data key");
+                }
+                associatedData = new byte[SEGMENTED_ASSOCIATED_DATA_LENGTH];
+                break;
+            case 0x2:
+                if (dataKey == null) {
+                    throw new CryptoException("Encrypted data requires a data key, not a password");
+                }
+                associatedData = new byte[SEGMENTED_DATA_KEY_V2_ASSOCIATED_DATA_LENGTH];
+                break;
+            case 0x3:
+                if (dataKey == null) {
+                    throw new CryptoException("Encrypted data requires a data key, not a password");
+                }
+                associatedData = new byte[SEGMENTED_DATA_KEY_V3_ASSOCIATED_DATA_LENGTH];
+                break;
+            case 0x4:
+                if (dataKey == null) {
+                    throw new CryptoException("Encrypted data requires a data key, not a password");
+                }
+                associatedData = new byte[SEGMENTED_DATA_KEY_ASSOCIATED_DATA_LENGTH];
+                break;
+            default:
+                throw new CryptoException("Unsupported encrypted data format version " + version);
+        }
+        associatedData[0] = version;
+        byte[] nonce = new byte[NONCE_LENGTH_BYTES];
+        try {
+            data.readFully(associatedData, 1, associatedData.length - 1);
+            data.readFully(nonce);
+        } catch (EOFException e) {
+            throw new CryptoException("Encrypted data not long enough: incomplete preamble", e);
+        }
+
+        int pos = 1;
+        byte[] passwordSalt = null;
+        int passwordHashIterations = 0;
+        CipherSuite suite = CipherSuite.SERPENT_EAX;
+        CompressionCodec codec = CompressionCodec.NONE;
+        if (version >= 0x3) {
+            suite = CipherSuite.fromId(associatedData[pos]);
+            if (suite == null) {
+                throw new CryptoException("Unsupported cipher suite " + associatedData[pos] + " in encrypted data");
+            }
+            if (!suite.isAvailable()) {
+                throw new CryptoException("Cipher suite " + suite + " is not available on this JVM");
+            }
+            pos++;
+        }
+        if (version >= 0x4) {
+            codec = CompressionCodec.fromId(associatedData[pos]);
+            if (codec == null) {
+                throw new CryptoException("Unsupported compression codec " + associatedData[pos]
+                        + " in encrypted data");
+            }
+            pos++;
+        }
+        if (passwordKey != null) {
+            // Password salt info, see hashPasswordToKey
+            passwordSalt = new byte[PASSWORD_SALT_LENGTH_BYTES];
+            System.arraycopy(associatedData, pos, passwordSalt, 0, passwordSalt.length);
+            pos += passwordSalt.length;
+            passwordHashIterations = getInt(associatedData, pos);
+            pos += BYTES_PER_INTEGER;
+            if (passwordHashIterations <= 0) {
+                throw new CryptoException("Invalid passwordHashIterations in encrypted data, got "
+                        + passwordHashIterations);
+            }
+        }
+        int segmentLength = getInt(associatedData, pos);
+        pos += BYTES_PER_INTEGER;
+        assert (pos == associatedData.length);
+        // Not yet authenticated, so check before allocating buffers based on it
+        if (segmentLength <= 0 || segmentLength > MAX_SEGMENT_LENGTH_BYTES) {
+            throw new CryptoException("Invalid segment length in encrypted data, got " + segmentLength);
+        }
+
+        byte[] encryptionKey;
+        if (passwordKey != null) {
+            try {
+                encryptionKey = passwordKey.makeKey(passwordSalt, passwordHashIterations);
+            } catch (IllegalStateException e) {
+                throw new CryptoException("Invalid key", e);
+            }
+        } else if (version == 0x2) {
+            encryptionKey = dataKey.clone();
+        } else {
+            encryptionKey = suite.deriveStreamKey(dataKey, nonce);
+        }
+        // The stream is now responsible for the key, and will zero it when closed
+        InputStream stream = new SegmentedDecryptingInputStream(input, suite, encryptionKey, nonce, associatedData,
+                segmentLength, getParallelism());
+        return codec.newDecompressingStream(stream);
+    }
+
+    /**
+     * Generate a new random data key, for use with {@link #newEncryptingStream(OutputStream, byte[])}.
+     * <p>
+     * A data key is typically stored wrapped (encrypted) under a password using
+     * {@link #wrapDataKey(byte[], EncryptionKey)}, so that changing the password only requires re-wrapping the
+     * data key, not re-encrypting the data.
+     * <p>
+     * <b>IMPORTANT:</b> the caller MUST ensure the returned array is zero-overwritten and discarded when finished.
+     *
+     * @return a newly-created random key
+     */
+    public static byte[] generateDataKey() {
+        return randomBytes(DATA_KEY_LENGTH_BYTES);
+    }
+
+    /**
+     * Encrypt a data key with a password, for storing alongside data encrypted with the data key.
+     * This hashes the password with Argon2id, using the parameters from {@link #getArgon2Parameters()}, so is slow.
+     * <p>
+     * The wrapped key also serves as a key check: it is small and authenticated, so unwrapping it rejects an
+     * incorrect password as soon as the password has been hashed, without touching the data.
+     * The output is a version byte, the Argon2 parameters and salt, then a nonce and the Serpent-EAX encrypted key,
+     * authenticating everything before the nonce. If Argon2 has been turned off, the output is instead version 0x1,
+     * followed by the output of {@link #encrypt(byte[], EncryptionKey)}.
+     *
+     * @param dataKey the data key to wrap, must be a key from {@link #generateDataKey()}
+     * @param key the password to wrap it with, must not be null
+     * @return the wrapped key
+     * @throws CryptoException for any problem with performing the encryption
+     */
+    public static byte[] wrapDataKey(byte[] dataKey, EncryptionKey key) throws CryptoException {
+        checkDataKey(dataKey);
+        if (key == null) {
+            throw new IllegalArgumentException("key must not be null");
+        }
+        Argon2Parameters argon2Parameters = getArgon2Parameters();
+        if (argon2Parameters == null) {
+            byte[] encrypted = encrypt(dataKey, key);
+            byte[] wrapped = new byte[1 + encrypted.length];
+            wrapped[0] = WRAPPED_DATA_KEY_SHA256_VERSION;
+            System.arraycopy(encrypted, 0, wrapped, 1, encrypted.length);
+            return wrapped;
+        }
+
+        KeyWithIterationCount keyInfo;
+        try {
+            keyInfo = key.makeArgon2Key(PASSWORD_SALT_LENGTH_BYTES, argon2Parameters);
+        } catch (IllegalStateException e) {
+            throw new CryptoException("Invalid key", e);
+        }
+        byte[] encryptionKey = keyInfo.getKey();
+        try {
+            byte[] wrapped = new byte[WRAPPED_DATA_KEY_HEADER_LENGTH + NONCE_LENGTH_BYTES
+                                      + SerpentEAXCipher.getOutputSize(true, MAC_LENGTH_BYTES, dataKey.length)];
+            int pos = 0;
+            wrapped[pos++] = WRAPPED_DATA_KEY_VERSION;
+            pos = putInt(wrapped, pos, argon2Parameters.getMemoryKiB());
+            pos = putInt(wrapped, pos, argon2Parameters.getIterations());
+            pos = putInt(wrapped, pos, argon2Parameters.getLanes());
+            System.arraycopy(keyInfo.getSalt(), 0, wrapped, pos, PASSWORD_SALT_LENGTH_BYTES);
+            pos += PASSWORD_SALT_LENGTH_BYTES;
+            assert (pos == WRAPPED_DATA_KEY_HEADER_LENGTH);
+            byte[] associatedData = new byte[WRAPPED_DATA_KEY_HEADER_LENGTH];
+            System.arraycopy(wrapped, 0, associatedData, 0, associatedData.length);
+
+            byte[] nonce = randomBytes(NONCE_LENGTH_BYTES);
+            System.arraycopy(nonce, 0, wrapped, pos, nonce.length);
+            pos += nonce.length;
+            try {
+                pos += SerpentEAXCipher.process(null, true, encryptionKey, MAC_LENGTH_BYTES, nonce, associatedData,
+                                                dataKey, 0, dataKey.length, wrapped, pos);
+            } catch (InvalidCipherTextException e) {
+                // Shouldn't happen during encryption, only decryption
+                throw new CryptoException("Unexpected error during encryption", e);
+            } catch (InterruptedException e) {
+                // Can't happen without an executor
+                throw new CryptoException("Unexpected error during encryption", e);
+            }
+            assert (pos == wrapped.length);
+            return wrapped;
+        } finally {
+            Arrays.fill(encryptionKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypt a data key wrapped by {@link #wrapDataKey(byte[], EncryptionKey)}.
+     * <p>
+     * <b>IMPORTANT:</b> the caller MUST ensure the returned array is zero-overwritten and discarded when finished.
+     *
+     * @param wrappedDataKey the output of wrapDataKey, must not be null
+     * @param key the password it was wrapped with, must not be null
+     * @return the data key
+     * @throws WrongKeyException if the wrapped key fails authentication, most likely due to an incorrect password
+     * @throws CryptoException if the wrapped key is malformed, or for any other problem with decryption
+     */
+    public static byte[] unwrapDataKey(byte[] wrappedDataKey, EncryptionKey key) throws CryptoException {
+        if (wrappedDataKey == null) {
+            throw new IllegalArgumentException("wrappedDataKey must not be null");
+        }
+        if (wrappedDataKey.length == 0) {
+            throw new CryptoException("Wrapped data key is empty");
+        }
+        if (key == null) {
+            throw new IllegalArgumentException("key must not be null");
+        }
+        byte[] dataKey;
+        // Add new versions here when changing WRAPPED_DATA_KEY_VERSION
+        switch (wrappedDataKey[0]) {
+            case 0x1:
+                byte[] encrypted = new byte[wrappedDataKey.length - 1];
+                System.arraycopy(wrappedDataKey, 1, encrypted, 0, encrypted.length);
+                dataKey = decrypt(encrypted, key);
+                break;
+            case 0x2:
+                dataKey = unwrapArgon2DataKey(wrappedDataKey, key);
+                break;
+            default:
+                throw new CryptoException("Unsupported wrapped data key version " + wrappedDataKey[0]);
+        }
+        if (dataKey.length != DATA_KEY_LENGTH_BYTES) {
+            Arrays.fill(dataKey, (byte) 0);
+            throw new CryptoException("Invalid wrapped data key length " + dataKey.length);
+        }
+        return dataKey;
+    }
+
+    /**
+     * Unwrap a version 0x2 wrapped data key, with the password hashed by Argon2id
+     */
+    private static byte[] unwrapArgon2DataKey(byte[] wrappedDataKey, EncryptionKey key) throws CryptoException {
+        if (wrappedDataKey.length < WRAPPED_DATA_KEY_HEADER_LENGTH + NONCE_LENGTH_BYTES + MAC_LENGTH_BYTES) {
+            throw new CryptoException("Wrapped data key not long enough: got " + wrappedDataKey.length + " bytes");
+        }
+        int pos = 1;
+        int memoryKiB = getInt(wrappedDataKey, pos);
+        pos += BYTES_PER_INTEGER;
+        int iterations = getInt(wrappedDataKey, pos);
+        pos += BYTES_PER_INTEGER;
+        int lanes = getInt(wrappedDataKey, pos);
+        pos += BYTES_PER_INTEGER;
+        Argon2Parameters argon2Parameters;
+        try {
+            argon2Parameters = new Argon2Parameters(memoryKiB, iterations, lanes);
+        } catch (IllegalArgumentException e) {
+            throw new CryptoException("Invalid password hash parameters in wrapped data key", e);
+        }
+        byte[] salt = new byte[PASSWORD_SALT_LENGTH_BYTES];
+        System.arraycopy(wrappedDataKey, pos, salt, 0, salt.length);
+        pos += salt.length;
+        assert (pos == WRAPPED_DATA_KEY_HEADER_LENGTH);
+        byte[] associatedData = new byte[WRAPPED_DATA_KEY_HEADER_LENGTH];
+        System.arraycopy(wrappedDataKey, 0, associatedData, 0, associatedData.length);
+        byte[] nonce = new byte[NONCE_LENGTH_BYTES];
+        System.arraycopy(wrappedDataKey, pos, nonce, 0, nonce.length);
+        pos += nonce.length;
+
+        byte[] encryptionKey;
+        try {
+            encryptionKey = key.makeKey(salt, argon2Parameters);
+        } catch (IllegalStateException e) {
+            throw new CryptoException("Invalid key", e);
+        }
+        try {
+            int encryptedLength = wrappedDataKey.length - pos;
+            byte[] dataKey = new byte[SerpentEAXCipher.getOutputSize(false, MAC_LENGTH_BYTES, encryptedLength)];
+            SerpentEAXCipher.process(null, false, encryptionKey, MAC_LENGTH_BYTES, nonce, associatedData,
+                                     wrappedDataKey, pos, encryptedLength, dataKey, 0);
+            return dataKey;
+        } catch (InvalidCipherTextException e) {
+            throw new WrongKeyException("Incorrect password or corrupted key data", e);
+        } catch (InterruptedException e) {
+            // Can't happen without an executor
+            throw new CryptoException("Unexpected error during decryption", e);
+        } finally {
+            Arrays.fill(encryptionKey, (byte) 0);
+        }
+    }
+
+    private static void checkDataKey(byte[] dataKey) {
+        if (dataKey == null) {
+            throw new IllegalArgumentException("dataKey must not be null");
+        }
+        if (dataKey.length != DATA_KEY_LENGTH_BYTES) {
+            throw new IllegalArgumentException("dataKey must be " + DATA_KEY_LENGTH_BYTES + " bytes, got "
+                    + dataKey.length);
+        }
+    }
+
+    /**
+     * Encrypt or decrypt-and-verify a single segment of the segmented stream format.
+     * Used by {@link SegmentedEncryptingOutputStream} and {@link SegmentedDecryptingInputStream}.
+     *
+     * @param suite the cipher suite from the preamble
+     * @param forEncryption true to encrypt, false to decrypt
+     * @param key the hashed or derived key for the stream
+     * @param nonce the base nonce from the preamble
+     * @param associatedData the authenticated part of the preamble
+     * @param segmentIndex the position of this segment in the stream, starting at 0
+     * @param lastSegment true if this is the final segment in the stream
+     * @param executor where the suite may run part of the work in parallel, or null to use the calling thread only
+     * @return the number of bytes written to output
+     * @throws WrongKeyException if the first segment fails authentication, most likely due to an incorrect key
+     * @throws CryptoException if decryption fails (incorrect key, corrupted or reordered segments)
+     */
+    static int processSegment(CipherSuite suite, boolean forEncryption, byte[] key, byte[] nonce,
+            byte[] associatedData, long segmentIndex, boolean lastSegment, ExecutorService executor,
+            byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset)
+            throws CryptoException {
+        byte[] segmentNonce = suite.makeSegmentNonce(nonce, segmentIndex, lastSegment);
+        try {
+            return suite.processSegment(executor, forEncryption, key, segmentNonce, associatedData,
+                    input, inputOffset, inputLength, output, outputOffset);
+        } catch (CipherSuite.AuthenticationFailedException e) {
+            if (segmentIndex == 0) {
+                // Nothing has been decrypted successfully yet
+                throw new WrongKeyException("Invalid key or corrupted ciphertext in segment 0", e);
+            }
+            throw new CryptoException("Invalid key or corrupted ciphertext in segment " + segmentIndex, e);
+        }
+    }
+
+    /**
+     * Encrypt or decrypt-and-verify a batch of consecutive segments of the segmented stream format,
+     * processing the segments in parallel when there is more than one. A batch of one segment may still use a second
+     * thread, if the cipher suite can split up the work for a single segment.
+     * Used by {@link SegmentedEncryptingOutputStream} and {@link SegmentedDecryptingInputStream}.
+     * <p>
+     * Segments are independently authenticated, so they can be processed in any order.
+     * This does not return until all segments in the batch have been processed, even if one of them fails.
+     *
+     * @param firstSegmentIndex the position in the stream of the first segment in the batch
+     * @param lastBatch true if the last segment in this batch is the final segment in the stream
+     * @param inputs the segments to process, the first segmentCount of which are used
+     * @param inputLengths the number of bytes to process from the start of each of inputs
+     * @param outputs arrays to write the output for each segment into, from the start
+     * @param outputLengths receives the number of bytes written to each of outputs
+     * @param segmentCount the number of segments in the batch, must be > 0
+     * @throws CryptoException if processing fails for any segment
+     */
+    static void processSegments(final CipherSuite suite, final boolean forEncryption, final byte[] key,
+            final byte[] nonce,
+            final byte[] associatedData, final long firstSegmentIndex, final boolean lastBatch,
+            final byte[][] inputs, final int[] inputLengths, final byte[][] outputs, final int[] outputLengths,
+            final int segmentCount) throws CryptoException {
+        assert (segmentCount > 0);
+        if (segmentCount == 1) {
+            // Not worth handing off to another thread, other than to split up the work within the segment
+            outputLengths[0] = processSegment(suite, forEncryption, key, nonce, associatedData, firstSegmentIndex,
+                    lastBatch, getPipelineExecutor(), inputs[0], 0, inputLengths[0], outputs[0], 0);
+            return;
+        }
+        String operation = (forEncryption ? "encryption" : "decryption");
+        ExecutorService executor = getSegmentExecutor();
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>(segmentCount);
+        try {
+            for (int i = 0; i < segmentCount; i++) {
+                final int segment = i;
+                results.add(executor.submit(new Callable<Integer>() {
+                        public Integer call() throws CryptoException {
+                            return processSegment(suite, forEncryption, key, nonce, associatedData,
+                                    firstSegmentIndex + segment, lastBatch && (segment == segmentCount - 1), null,
+                                    inputs[segment], 0, inputLengths[segment], outputs[segment], 0);
+                        }
+                    }));
+            }
+            for (int i = 0; i < segmentCount; i++) {
+                outputLengths[i] = results.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CryptoException("Interrupted during " + operation, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CryptoException) {
+                throw (CryptoException) e.getCause();
+            }
+            throw new CryptoException("Unexpected error during " + operation, e.getCause());
+        } finally {
+            // If anything failed, don't let remaining tasks write into buffers which the caller may be about to clear
+            for (Future<Integer> result : results) {
+                if (!result.cancel(false)) {
+                    try {
+                        result.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException ignored) {}
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of threads used to encrypt and decrypt the segmented stream format in parallel.
+     *
+     * @return the parallelism, > 0
+     * @see #setParallelism(int)
+     */
+    public static synchronized int getParallelism() {
+        return _parallelism;
+    }
+
+    /**
+     * Set the number of threads used to encrypt and decrypt the segmented stream format in parallel.
+     * This is also the number of segments buffered at once by each encrypting or decrypting stream.
+     * Defaults to the number of available processors, or the value of the {@link #PARALLELISM_PROPERTY}
+     * system property if set. Streams already created keep the parallelism they were created with.
+     *
+     * @param parallelism the number of threads, must be > 0. Use 1 to process segments on the calling thread only.
+     * @throws IllegalArgumentException if parallelism <= 0
+     */
+    public static synchronized void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be > 0, got " + parallelism);
+        }
+        if (parallelism != _parallelism) {
+            _parallelism = parallelism;
+            if (_segmentExecutor != null) {
+                // Lets any tasks already submitted finish
+                _segmentExecutor.shutdown();
+                _segmentExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * Get the Argon2id parameters used to hash the password when wrapping data keys.
+     *
+     * @return the parameters, or null if data keys are wrapped using iterated SHA-256 instead
+     * @see #setArgon2Parameters(Argon2Parameters)
+     */
+    public static synchronized Argon2Parameters getArgon2Parameters() {
+        return _argon2Parameters;
+    }
+
+    /**
+     * Set the Argon2id parameters used to hash the password when wrapping data keys. The parameters are stored with
+     * each wrapped key, so this does not affect unwrapping keys already wrapped.
+     * Defaults to 64MiB, 3 iterations and 4 lanes, or the value of the {@link #ARGON2_PARAMETERS_PROPERTY} system
+     * property if set.
+     * <p>
+     * The lanes are filled in parallel, up to the parallelism (see {@link #setParallelism(int)}), so on a machine
+     * with at least that many cores the hash takes about as long as filling a single lane.
+     *
+     * @param parameters the parameters, or null to use iterated SHA-256 (calibrated to take a fixed time) instead
+     */
+    public static synchronized void setArgon2Parameters(Argon2Parameters parameters) {
+        _argon2Parameters = parameters;
+    }
+
+    private static Argon2Parameters getDefaultArgon2Parameters() {
+        return SystemProperties.get(ARGON2_PARAMETERS_PROPERTY, new SystemProperties.Parser<Argon2Parameters>() {
+                public Argon2Parameters parse(String value) {
+                    return value.equalsIgnoreCase("off") ? null : Argon2Parameters.parse(value);
+                }
+            }, DEFAULT_ARGON2_PARAMETERS);
+    }
+
+    private static int getDefaultParallelism() {
+        return SystemProperties.getPositiveInt(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+    }
+
+    private static synchronized ExecutorService getSegmentExecutor() {
+        if (_segmentExecutor == null) {
+            _segmentExecutor = Executors.newFixedThreadPool(_parallelism, new ThreadFactory() {
+                    private final AtomicInteger _threadCount = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "pwsafe-crypto-" + _threadCount.incrementAndGet());
+                        // Don't keep the JVM running after the main window has closed
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return _segmentExecutor;
+    }
+
+    /**
+     * @return the executor to use for splitting up the work on a single piece of data across threads (see
+     *         {@link SerpentEAXCipher} and {@link Argon2id}), or null if the parallelism is 1
+     */
+    private static ExecutorService getPipelineExecutor() {
+        return (getParallelism() > 1) ? getSegmentExecutor() : null;
+    }
+
+    /**
+     * @return the length of salt hashed with the password, in bytes
+     */
+    static int getPasswordSaltLength() {
+        return PASSWORD_SALT_LENGTH_BYTES;
+    }
+
+    /**
+     * Get the length of an encrypted segment in the segmented stream format
+     *
+     * @param plaintextLength the length of the segment plaintext
+     */
+    static int getEncryptedSegmentLength(int plaintextLength) {
+        return plaintextLength + MAC_LENGTH_BYTES;
+    }
+
+    /**
+     * Write a big-endian int into an array
+     *
+     * @return the position following the written value
+     */
+    private static int putInt(byte[] dest, int pos, int value) {
+        dest[pos++] = (byte) (value >>> (3 * Byte.SIZE));
+        dest[pos++] = (byte) (value >>> (2 * Byte.SIZE));
+        dest[pos++] = (byte) (value >>> Byte.SIZE);
+        dest[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Read a big-endian int from an array
+     */
+    private static int getInt(byte[] src, int pos) {
+        return ((src[pos] & 0xFF) << (3 * Byte.SIZE))
+             | ((src[pos + 1] & 0xFF) << (2 * Byte.SIZE))
+             | ((src[pos + 2] & 0xFF) << Byte.SIZE)
+             | (src[pos + 3] & 0xFF);
+    }
+
     /**
      * Create an array of the specified length and fill with random bytes using java.security.SecureRandom.
      *
@@ -239,6 +1082,24 @@ public final class CryptoUtils {
         return RANDOM.nextInt(n);
     }
 
+    /**
+     * Set the listener told of progress while hashing passwords on the current thread, from here or from
+     * {@link EncryptionKey} (so including while decrypting or encrypting with a password). Only work done on the
+     * current thread itself is reported.
+     * <p>
+     * Password hashing can also be cancelled, by interrupting the thread: the hash then throws
+     * {@link CancellationException}, leaving the thread's interrupted status set.
+     *
+     * @param listener the listener, or null to remove it
+     */
+    public static void setProgressListener(ProgressListener listener) {
+        if (listener == null) {
+            PROGRESS_LISTENER.remove();
+        } else {
+            PROGRESS_LISTENER.set(listener);
+        }
+    }
+
     /**
      * Hash the password with the specified salt, then re-hash for the specified number of iterations.
      * Used during decryption.
@@ -252,6 +1113,8 @@ public final class CryptoUtils {
      * @param password, will be transformed into its UTF-16 bytes before hashing
      * @param salt a random salt to hash with the password
      * @param hashIterations the iteration count, must be > 0
+     * @throws CancellationException if the thread is interrupted while hashing, see
+     *         {@link #setProgressListener(ProgressListener)}
      */
     public static byte[] hashPasswordToKey(char[] password, byte[] salt, int hashIterations) {
         if (hashIterations <= 0) {
@@ -263,10 +1126,53 @@ public final class CryptoUtils {
     }
 
     /**
-     * Hash the password with the specified salt, then re-hash continuously until the specified time has elapsed,
-     * returning the resulting key and the actual iteration count used.
+     * Hash the password with Argon2id. Used for both encryption and decryption, as the cost is fixed by the
+     * parameters. The lanes are filled in parallel if the parallelism is more than 1.
+     *
+     * @param password, will be transformed into its UTF-16 bytes before hashing, as for
+     *        {@link #hashPasswordToKey(char[], byte[], int)}
+     * @param salt a random salt to hash with the password, at least 8 bytes
+     * @param parameters the Argon2 cost parameters
+     * @throws CancellationException if the thread is interrupted while hashing, see
+     *         {@link #setProgressListener(ProgressListener)}
+     */
+    public static byte[] hashPasswordToKey(char[] password, byte[] salt, Argon2Parameters parameters) {
+        if (password == null) {
+            throw new IllegalArgumentException("password must not be null");
+        }
+        if (salt == null) {
+            throw new IllegalArgumentException("salt must not be null");
+        }
+        if (parameters == null) {
+            throw new IllegalArgumentException("parameters must not be null");
+        }
+        if (password.length == 0) {
+            throw new IllegalArgumentException("password must not be zero length");
+        }
+        byte[] passwordBytes = PBEParametersGenerator.PKCS12PasswordToBytes(password);
+        try {
+            ExecutorService executor = (parameters.getLanes() > 1) ? getPipelineExecutor() : null;
+            return Argon2id.hash(passwordBytes, salt, parameters, DATA_KEY_LENGTH_BYTES, executor,
+                                 PROGRESS_LISTENER.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CancellationException cancelled = new CancellationException("Password hashing cancelled");
+            cancelled.initCause(e);
+            throw cancelled;
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Hash the password with the specified salt, then re-hash for as many iterations as take the specified time on
+     * this machine, returning the resulting key and the iteration count used.
      * Used during encryption.
      * <p>
+     * The iteration count comes from a per-machine profile of the hash speed, measured once and saved (see
+     * {@link #CALIBRATION_FILE_PROPERTY}), so the cost is the same for every encryption and the hash is not timed
+     * each time.
+     * <p>
      * Hashing the password many times (and using a salt) gives some degree of protection against use of
      * rainbow-table attacks. (These would work by testing each password in some pre-generated list of (password, hash),
      * by testing whether decryption succeeds using each hash.) Using a new random salt each time we encrypt forces a
@@ -282,6 +1188,21 @@ public final class CryptoUtils {
         if (hashIterationTimeMillis <= 0L) {
             throw new IllegalArgumentException("hashIterationTimeMillis must be > 0, got " + hashIterationTimeMillis);
         }
+        int hashIterations = PasswordHashCalibration.getIterationCount(hashIterationTimeMillis);
+        return new KeyWithIterationCount(hashPasswordToKey(password, salt, hashIterations), salt, hashIterations);
+    }
+
+    /**
+     * Hash the password with the specified salt, then re-hash continuously until the specified time has elapsed,
+     * returning the resulting key and the actual iteration count used. Used to measure the hash speed.
+     *
+     * @param hashIterationTimeMillis the time to hash for, must be > 0
+     */
+    static KeyWithIterationCount hashPasswordToKeyForTime(char[] password, byte[] salt,
+            long hashIterationTimeMillis) {
+        if (hashIterationTimeMillis <= 0L) {
+            throw new IllegalArgumentException("hashIterationTimeMillis must be > 0, got " + hashIterationTimeMillis);
+        }
         KeyWithIterationCount keyInfo = doHashPasswordToKey(password, salt, -1, hashIterationTimeMillis);
         assert (keyInfo.getIterationCount() > 0);
         return keyInfo;
@@ -307,50 +1228,117 @@ public final class CryptoUtils {
            This call avoids allocating a java.lang.String which might intern the password data,
            which would prevent us zeroing it. */
         byte[] passwordBytes = PBEParametersGenerator.PKCS12PasswordToBytes(password);
+        try {
+            PasswordHashIterator iterator = new PasswordHashIterator(salt, passwordBytes);
+            byte[] output = new byte[iterator.getOutputLength()];
+
+            // First iteration - hash salt and password, into output
+            iterator.hashFirst(output);
+
+            // Remaining iterations - re-hash output
+            if (hashIterations > 0) {
+                // Fixed iteration count (decryption)
+                ProgressListener progress = PROGRESS_LISTENER.get();
+                int i = 1; // 0th iteration was the initial one above
+                while (i < hashIterations) {
+                    int checkAt = (int) Math.min((long) i + HASH_ITERATIONS_PER_PROGRESS_CHECK, hashIterations);
+                    for (; i < checkAt; i++) {
+                        iterator.hashNext(output);
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        Arrays.fill(output, (byte) 0);
+                        throw new CancellationException("Password hashing cancelled");
+                    }
+                    if (progress != null) {
+                        progress.progress(i, hashIterations);
+                    }
+                }
+                return new KeyWithIterationCount(output, salt, hashIterations);
+            } else {
+                // Minimum iteration time (calibration)
+                final int iterationIncrement = 100;
+                int actualHashIterations = 1; // 0th iteration was the initial one above
+                final long stopTime = System.currentTimeMillis() + hashIterationTimeMillis;
+                do {
+                    for (int i = 0; i < iterationIncrement; i++) {
+                        iterator.hashNext(output);
+                    }
+                    actualHashIterations += iterationIncrement;
+                } while (System.currentTimeMillis() <= stopTime);
+                return new KeyWithIterationCount(output, salt, actualHashIterations);
+            }
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Computes the iterations of the password hash for doHashPasswordToKey:
+     * the first is SHA-256(salt || password), and each subsequent one is
+     * SHA-256(salt || password || output of previous iteration).
+     * <p>
+     * The salt and password prefix is the same for every iteration. When it fills at least one complete SHA-256
+     * input block, it is hashed only once, and each iteration continues from a copy of that intermediate digest
+     * state (the "midstate"), saving the compression of those blocks on every iteration. When it is shorter there
+     * is no compression to save, and copying the state costs more than re-hashing the prefix, so we don't.
+     * Either way the output is identical.
+     */
+    private static final class PasswordHashIterator {
 
-        Digest digest = new SHA256Digest();
-        byte[] output = new byte[digest.getDigestSize()];
-
-        // First iteration - hash salt and password, into output
-        digest.update(salt, 0, salt.length);
-        digest.update(passwordBytes, 0, passwordBytes.length);
-        // Note that doFinal also resets the digest's internal state, like constructing a new one
-        int outputLength = digest.doFinal(output, 0);
-        assert (outputLength == output.length);
-
-        // Remaining iterations - re-hash output
-        if (hashIterations > 0) {
-            // Fixed iteration count (decryption)
-            for (int i = 1; i < hashIterations; i++) { // 0th iteration was the initial one above
-                // First mix in the salt and password again
-                digest.update(salt, 0, salt.length);
-                digest.update(passwordBytes, 0, passwordBytes.length);
-                // Now mix in the output from the last iteration
+        private static final int SHA256_BLOCK_LENGTH_BYTES = 64;
+
+        private final byte[] _salt;
+        private final byte[] _passwordBytes;
+        // Digest state after hashing the salt and password, if using midstate; a working digest otherwise
+        private final DigestProvider.Sha256 _digest;
+        private final boolean _useMidstate;
+
+        PasswordHashIterator(final byte[] salt, final byte[] passwordBytes) {
+            _salt = salt;
+            _passwordBytes = passwordBytes;
+            _digest = DigestProvider.getSelected().newSha256();
+            _useMidstate = (salt.length + passwordBytes.length >= SHA256_BLOCK_LENGTH_BYTES);
+            if (_useMidstate) {
+                _digest.update(salt, 0, salt.length);
+                _digest.update(passwordBytes, 0, passwordBytes.length);
+            }
+        }
+
+        int getOutputLength() {
+            return _digest.getDigestSize();
+        }
+
+        /**
+         * Hash the salt and password, into output
+         */
+        void hashFirst(byte[] output) {
+            hash(output, false);
+        }
+
+        /**
+         * Hash the salt, password and output, overwriting output
+         */
+        void hashNext(byte[] output) {
+            hash(output, true);
+        }
+
+        private void hash(byte[] output, boolean includeOutput) {
+            DigestProvider.Sha256 digest;
+            if (_useMidstate) {
+                digest = _digest.copy();
+            } else {
+                // Note that doFinal resets the digest's internal state, like constructing a new one
+                digest = _digest;
+                digest.update(_salt, 0, _salt.length);
+                digest.update(_passwordBytes, 0, _passwordBytes.length);
+            }
+            if (includeOutput) {
+                // Mix in the output from the last iteration
                 digest.update(output, 0, output.length);
-                // Reuse (overwrite) output array
-                outputLength = digest.doFinal(output, 0);
-                assert (outputLength == output.length);
             }
-            return new KeyWithIterationCount(output, hashIterations);
-        } else {
-            // Minimum iteration time (encryption)
-            final int iterationIncrement = 100;
-            int actualHashIterations = 1; // 0th iteration was the initial one above
-            final long stopTime = System.currentTimeMillis() + hashIterationTimeMillis;
-            do {
-                for (int i = 0; i < iterationIncrement; i++) {
-                    // First mix in the salt and password again
-                    digest.update(salt, 0, salt.length);
-                    digest.update(passwordBytes, 0, passwordBytes.length);
-                    // Now mix in the output from the last iteration
-                    digest.update(output, 0, output.length);
-                    // Reuse (overwrite) output array
-                    outputLength = digest.doFinal(output, 0);
-                    assert (outputLength == output.length);
-                }
-                actualHashIterations += iterationIncrement;
-            } while (System.currentTimeMillis() <= stopTime);
-            return new KeyWithIterationCount(output, actualHashIterations);
+            // Reuse (overwrite) output array
+            int outputLength = digest.doFinal(output, 0);
+            assert (outputLength == output.length);
         }
     }
 
@@ -360,10 +1348,12 @@ public final class CryptoUtils {
     public static final class KeyWithIterationCount {
 
         private final byte[] _key;
+        private final byte[] _salt;
         private final int _iterationCount;
 
-        private KeyWithIterationCount(final byte[] key, final int iterationCount) {
+        KeyWithIterationCount(final byte[] key, final byte[] salt, final int iterationCount) {
             _key = key;
+            _salt = salt;
             _iterationCount = iterationCount;
         }
 
@@ -371,12 +1361,19 @@ public final class CryptoUtils {
             return _key;
         }
 
+        /**
+         * @return the salt the key was made with
+         */
+        public byte[] getSalt() {
+            return _salt;
+        }
+
         public int getIterationCount() {
             return _iterationCount;
         }
     }
 
-    public static final class CryptoException extends Exception {
+    public static class CryptoException extends Exception {
         /**
          * serialVersionUID for this class.
          */
@@ -390,4 +1387,24 @@ public final class CryptoUtils {
             super(message, cause);
         }
     }
+
+    /**
+     * Thrown when a key check fails, see {@link CryptoUtils#unwrapDataKey(byte[], EncryptionKey)}, or when the
+     * first data decrypted fails authentication. This almost always means an incorrect password, though corruption
+     * of that data looks the same.
+     */
+    public static final class WrongKeyException extends CryptoException {
+        /**
+         * serialVersionUID for this class.
+         */
+        private static final long serialVersionUID = -4400911236311862651L;
+
+        public WrongKeyException(final String message) {
+            super(message);
+        }
+
+        public WrongKeyException(final String message, final Throwable cause) {
+            super(message, cause);
+        }
+    }
 }
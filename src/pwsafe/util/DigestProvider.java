@@ -0,0 +1,210 @@
+package pwsafe.util;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+/**
+ * Source of the SHA-256 implementation used for hashing passwords to keys.
+ * <p>
+ * The JDK's MessageDigest is preferred, since HotSpot replaces its compression function with an intrinsic
+ * (using the SHA instruction set extensions where the CPU has them). The BouncyCastle digest is the fallback for
+ * JVMs where the JDK implementation is missing or fails the self-test.
+ * <p>
+ * Both produce identical output, so the choice does not affect the format of anything encrypted.
+ *
+ * @author Nick Clarke
+ */
+enum DigestProvider {
+
+    JDK("jdk") {
+        @Override
+        Sha256 newSha256() {
+            try {
+                return new JdkSha256(MessageDigest.getInstance("SHA-256"));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available from the JDK", e);
+            }
+        }
+    },
+
+    BOUNCY_CASTLE("bouncycastle") {
+        @Override
+        Sha256 newSha256() {
+            return new BouncyCastleSha256(new SHA256Digest());
+        }
+    };
+
+    /**
+     * SHA-256("abc"), from FIPS 180-2 appendix B.1
+     */
+    private static final byte[] SELF_TEST_INPUT = {'a', 'b', 'c'};
+    private static final byte[] SELF_TEST_OUTPUT = {
+            (byte) 0xba, (byte) 0x78, (byte) 0x16, (byte) 0xbf, (byte) 0x8f, (byte) 0x01, (byte) 0xcf, (byte) 0xea,
+            (byte) 0x41, (byte) 0x41, (byte) 0x40, (byte) 0xde, (byte) 0x5d, (byte) 0xae, (byte) 0x22, (byte) 0x23,
+            (byte) 0xb0, (byte) 0x03, (byte) 0x61, (byte) 0xa3, (byte) 0x96, (byte) 0x17, (byte) 0x7a, (byte) 0x9c,
+            (byte) 0xb4, (byte) 0x10, (byte) 0xff, (byte) 0x61, (byte) 0xf2, (byte) 0x00, (byte) 0x15, (byte) 0xad};
+
+    private static final DigestProvider SELECTED = select();
+
+    private final String _propertyValue;
+
+    private DigestProvider(final String propertyValue) {
+        _propertyValue = propertyValue;
+    }
+
+    /**
+     * @return a new SHA-256 digest from this provider
+     * @throws IllegalStateException if this provider is not available on this JVM
+     */
+    abstract Sha256 newSha256();
+
+    /**
+     * @return the provider chosen when this class was loaded: the one named by the
+     *         {@link CryptoUtils#DIGEST_PROVIDER_PROPERTY} system property if set, otherwise the first in
+     *         declaration order which passes its self-test
+     */
+    static DigestProvider getSelected() {
+        return SELECTED;
+    }
+
+    private static DigestProvider select() {
+        DigestProvider selected = SystemProperties.get(CryptoUtils.DIGEST_PROVIDER_PROPERTY,
+                new SystemProperties.Parser<DigestProvider>() {
+                    public DigestProvider parse(String value) {
+                        for (DigestProvider provider : values()) {
+                            if (provider._propertyValue.equalsIgnoreCase(value)) {
+                                if (!provider.selfTest()) {
+                                    throw new IllegalArgumentException("provider failed self-test");
+                                }
+                                return provider;
+                            }
+                        }
+                        throw new IllegalArgumentException("unknown provider");
+                    }
+                }, null);
+        if (selected != null) {
+            return selected;
+        }
+        for (DigestProvider provider : values()) {
+            if (provider.selfTest()) {
+                return provider;
+            }
+        }
+        // Can't happen unless the BouncyCastle jar is broken, in which case nothing else will work either
+        throw new IllegalStateException("No SHA-256 implementation passed self-test");
+    }
+
+    /**
+     * Check this provider gives the right answer for a known test vector, both directly and when continuing from
+     * a copied intermediate state (as the password hash does).
+     *
+     * @return true if the provider is available and correct
+     */
+    private boolean selfTest() {
+        try {
+            Sha256 digest = newSha256();
+            byte[] output = new byte[digest.getDigestSize()];
+
+            digest.update(SELF_TEST_INPUT, 0, SELF_TEST_INPUT.length);
+            digest.doFinal(output, 0);
+            if (!Arrays.equals(output, SELF_TEST_OUTPUT)) {
+                return false;
+            }
+
+            // doFinal must have reset the digest
+            digest.update(SELF_TEST_INPUT, 0, 1);
+            Sha256 copy = digest.copy();
+            digest.update(SELF_TEST_INPUT, 1, SELF_TEST_INPUT.length - 1);
+            digest.doFinal(output, 0);
+            if (!Arrays.equals(output, SELF_TEST_OUTPUT)) {
+                return false;
+            }
+            copy.update(SELF_TEST_INPUT, 1, SELF_TEST_INPUT.length - 1);
+            copy.doFinal(output, 0);
+            return Arrays.equals(output, SELF_TEST_OUTPUT);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Minimal SHA-256 digest interface, with the ability to copy the intermediate state
+     */
+    interface Sha256 {
+        int getDigestSize();
+
+        void update(byte[] input, int offset, int length);
+
+        /**
+         * Write the digest to output, and reset to the initial state
+         *
+         * @return the number of bytes written
+         */
+        int doFinal(byte[] output, int offset);
+
+        /**
+         * @return a new independent digest with the same intermediate state as this one
+         */
+        Sha256 copy();
+    }
+
+    private static final class JdkSha256 implements Sha256 {
+        private final MessageDigest _digest;
+
+        JdkSha256(final MessageDigest digest) {
+            _digest = digest;
+        }
+
+        public int getDigestSize() {
+            return _digest.getDigestLength();
+        }
+
+        public void update(byte[] input, int offset, int length) {
+            _digest.update(input, offset, length);
+        }
+
+        public int doFinal(byte[] output, int offset) {
+            try {
+                return _digest.digest(output, offset, output.length - offset);
+            } catch (DigestException e) {
+                throw new IllegalArgumentException("Output buffer too small", e);
+            }
+        }
+
+        public Sha256 copy() {
+            try {
+                return new JdkSha256((MessageDigest) _digest.clone());
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException("SHA-256 MessageDigest does not support copying", e);
+            }
+        }
+    }
+
+    private static final class BouncyCastleSha256 implements Sha256 {
+        private final SHA256Digest _digest;
+
+        BouncyCastleSha256(final SHA256Digest digest) {
+            _digest = digest;
+        }
+
+        public int getDigestSize() {
+            return _digest.getDigestSize();
+        }
+
+        public void update(byte[] input, int offset, int length) {
+            _digest.update(input, offset, length);
+        }
+
+        public int doFinal(byte[] output, int offset) {
+            return _digest.doFinal(output, offset);
+        }
+
+        public Sha256 copy() {
+            return new BouncyCastleSha256(new SHA256Digest(_digest));
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package pwsafe.util;
 
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import pwsafe.util.CryptoUtils;
 
@@ -13,8 +16,17 @@ import pwsafe.util.CryptoUtils;
  */
 public class EncryptionKey {
 
+    /**
+     * The maximum number of derived keys to keep, see {@link #makeKey(byte[], int)}
+     */
+    private static final int DERIVED_KEY_CACHE_SIZE = 8;
+
     private char[] _password;
 
+    /* Keys already derived from the password, so that decrypting and re-encrypting with the same salt and iteration
+       count does not pay for the password hash again. Least-recently-used first. Guarded by itself. */
+    private final DerivedKeyCache _derivedKeys = new DerivedKeyCache();
+
     /**
      * Construct a EncryptionKey
      * <p>
@@ -35,6 +47,31 @@ public class EncryptionKey {
         _password = password;
     }
 
+    /**
+     * Construct an EncryptionKey by copying another EncryptionKey, including the keys it has already made from the
+     * password, so that the copy does not need to hash the password again
+     */
+    private EncryptionKey(final EncryptionKey other) {
+        synchronized (other._derivedKeys) {
+            other.checkNotDestroyed();
+            _password = other._password.clone();
+            for (Map.Entry<DerivedKeyParameters, byte[]> entry : other._derivedKeys.entrySet()) {
+                _derivedKeys.put(entry.getKey(), entry.getValue().clone());
+            }
+        }
+    }
+
+    /**
+     * Copy this EncryptionKey: the copy has its own copy of the password, and must have its secrets destroyed
+     * separately.
+     *
+     * @throws IllegalStateException if {@link #destroySecrets()} method has been called
+     */
+    @Override
+    public EncryptionKey clone() {
+        return new EncryptionKey(this);
+    }
+
     /**
      * @throws IllegalStateException if {@link #destroySecrets()} has already been called
      */
@@ -48,6 +85,8 @@ public class EncryptionKey {
      * Make a decryption key (secret) by hashing the password contained in this EncryptionKey, given parameters for the
      * hashing algorithm. Used during decryption.
      * <p>
+     * The result is remembered, so asking again for the same salt and iteration count does not repeat the hashing.
+     * <p>
      * <b>IMPORTANT:</b> this returns a newly-allocated array which is the caller's responsibility.
      * For security, caller should avoid storing references longer than necessary,
      * and MUST ensure it is zero-overwritten and discarded when finished.
@@ -57,12 +96,25 @@ public class EncryptionKey {
      */
     protected byte[] makeKey(byte[] salt, int hashIterations) {
         checkNotDestroyed();
-        return CryptoUtils.hashPasswordToKey(_password, salt, hashIterations);
+        DerivedKeyParameters parameters = new DerivedKeyParameters(salt, hashIterations, null);
+        byte[] key = getRemembered(parameters);
+        if (key != null) {
+            return key;
+        }
+        // Hash a copy without holding the lock, so that keys for other salts can be made concurrently
+        char[] password = copyPassword();
+        try {
+            key = CryptoUtils.hashPasswordToKey(password, salt, hashIterations);
+        } finally {
+            Arrays.fill(password, (char) 0);
+        }
+        remember(parameters, key);
+        return key;
     }
 
     /**
-     * Make an encryption key (secret) by hashing the password contained in this EncryptionKey, given parameters for the
-     * hashing algorithm. Used during encryption.
+     * Make a decryption key (secret) by hashing the password contained in this EncryptionKey with Argon2id.
+     * As {@link #makeKey(byte[], int)}, the result is remembered.
      * <p>
      * <b>IMPORTANT:</b> this returns a newly-allocated array which is the caller's responsibility.
      * For security, caller should avoid storing references longer than necessary,
@@ -71,20 +123,176 @@ public class EncryptionKey {
      * @return a new array containing the key bytes, never null or empty
      * @throws IllegalStateException if {@link #destroySecrets()} method has been called
      */
-    protected CryptoUtils.KeyWithIterationCount calibrateAndMakeKey(byte[] salt, long hashIterationTimeMillis) {
+    protected byte[] makeKey(byte[] salt, Argon2Parameters argon2Parameters) {
+        checkNotDestroyed();
+        DerivedKeyParameters parameters =
+                new DerivedKeyParameters(salt, argon2Parameters.getIterations(), argon2Parameters);
+        byte[] key = getRemembered(parameters);
+        if (key != null) {
+            return key;
+        }
+        char[] password = copyPassword();
+        try {
+            key = CryptoUtils.hashPasswordToKey(password, salt, argon2Parameters);
+        } finally {
+            Arrays.fill(password, (char) 0);
+        }
+        remember(parameters, key);
+        return key;
+    }
+
+    /**
+     * Make an encryption key (secret) by hashing the password contained in this EncryptionKey. Used during
+     * encryption.
+     * <p>
+     * If this EncryptionKey has already made a key (for decryption or encryption), the salt and iteration count of
+     * the most recent one are reused, along with the key itself, so that re-encrypting data just decrypted with this
+     * EncryptionKey does not repeat the hashing. Otherwise a new random salt is generated, and the iteration count is
+     * calibrated by hashing for the specified time.
+     * <p>
+     * <b>IMPORTANT:</b> this returns a newly-allocated key array which is the caller's responsibility.
+     * For security, caller should avoid storing references longer than necessary,
+     * and MUST ensure it is zero-overwritten and discarded when finished.
+     *
+     * @param saltLengthBytes the length of salt to use, must be > 0
+     * @param hashIterationTimeMillis the time to hash for if a new key must be made, must be > 0
+     * @return a new array containing the key bytes, never null or empty, with the salt and iteration count used
+     * @throws IllegalStateException if {@link #destroySecrets()} method has been called
+     */
+    protected CryptoUtils.KeyWithIterationCount calibrateAndMakeKey(int saltLengthBytes,
+            long hashIterationTimeMillis) {
         checkNotDestroyed();
-        return CryptoUtils.calibrateAndHashPasswordToKey(_password, salt, hashIterationTimeMillis);
+        CryptoUtils.KeyWithIterationCount keyInfo = getMostRecent(saltLengthBytes, null);
+        if (keyInfo != null) {
+            return keyInfo;
+        }
+        byte[] salt = CryptoUtils.randomBytes(saltLengthBytes);
+        char[] password = copyPassword();
+        try {
+            keyInfo = CryptoUtils.calibrateAndHashPasswordToKey(password, salt, hashIterationTimeMillis);
+        } finally {
+            Arrays.fill(password, (char) 0);
+        }
+        remember(new DerivedKeyParameters(salt, keyInfo.getIterationCount(), null), keyInfo.getKey());
+        return keyInfo;
+    }
+
+    /**
+     * Make an encryption key (secret) by hashing the password contained in this EncryptionKey with Argon2id.
+     * Used during encryption.
+     * <p>
+     * As {@link #calibrateAndMakeKey(int, long)}, the salt and key of the most recent key made with the same Argon2
+     * parameters are reused if there is one, otherwise a new random salt is generated.
+     * <p>
+     * <b>IMPORTANT:</b> this returns a newly-allocated key array which is the caller's responsibility.
+     * For security, caller should avoid storing references longer than necessary,
+     * and MUST ensure it is zero-overwritten and discarded when finished.
+     *
+     * @param saltLengthBytes the length of salt to use, must be > 0
+     * @param argon2Parameters the Argon2 cost parameters, must not be null
+     * @return a new array containing the key bytes, never null or empty, with the salt and iterations used
+     * @throws IllegalStateException if {@link #destroySecrets()} method has been called
+     */
+    protected CryptoUtils.KeyWithIterationCount makeArgon2Key(int saltLengthBytes,
+            Argon2Parameters argon2Parameters) {
+        checkNotDestroyed();
+        CryptoUtils.KeyWithIterationCount keyInfo = getMostRecent(saltLengthBytes, argon2Parameters);
+        if (keyInfo != null) {
+            return keyInfo;
+        }
+        byte[] salt = CryptoUtils.randomBytes(saltLengthBytes);
+        byte[] key;
+        char[] password = copyPassword();
+        try {
+            key = CryptoUtils.hashPasswordToKey(password, salt, argon2Parameters);
+        } finally {
+            Arrays.fill(password, (char) 0);
+        }
+        remember(new DerivedKeyParameters(salt, argon2Parameters.getIterations(), argon2Parameters), key);
+        return new CryptoUtils.KeyWithIterationCount(key, salt, argon2Parameters.getIterations());
+    }
+
+    /**
+     * Copy the password to hash, so that {@link #destroySecrets()} on another thread can't zero it part way through.
+     * The caller must zero-overwrite the copy when finished.
+     *
+     * @throws IllegalStateException if {@link #destroySecrets()} method has been called
+     */
+    private char[] copyPassword() {
+        synchronized (_derivedKeys) {
+            checkNotDestroyed();
+            return _password.clone();
+        }
+    }
+
+    /**
+     * @return a copy of the remembered key for the parameters, or null if there is none
+     */
+    private byte[] getRemembered(DerivedKeyParameters parameters) {
+        synchronized (_derivedKeys) {
+            byte[] key = _derivedKeys.get(parameters);
+            return (key == null) ? null : key.clone();
+        }
+    }
+
+    /**
+     * @return a copy of the most recently used key with the salt length and Argon2 parameters (null for iterated
+     *         SHA-256), or null if there is none
+     */
+    private CryptoUtils.KeyWithIterationCount getMostRecent(int saltLengthBytes, Argon2Parameters argon2Parameters) {
+        synchronized (_derivedKeys) {
+            Map.Entry<DerivedKeyParameters, byte[]> mostRecent =
+                    _derivedKeys.getMostRecent(saltLengthBytes, argon2Parameters);
+            if (mostRecent == null) {
+                return null;
+            }
+            DerivedKeyParameters parameters = mostRecent.getKey();
+            return new CryptoUtils.KeyWithIterationCount(mostRecent.getValue().clone(),
+                    parameters._salt.clone(), parameters._iterationCount);
+        }
+    }
+
+    /**
+     * Keep a copy of a newly derived key
+     */
+    private void remember(DerivedKeyParameters parameters, byte[] key) {
+        synchronized (_derivedKeys) {
+            if (_password == null) {
+                // destroySecrets was called while we were hashing
+                return;
+            }
+            byte[] previous = _derivedKeys.put(parameters, key.clone());
+            if (previous != null) {
+                Arrays.fill(previous, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Zero-overwrite and discard the keys already made from the password, so that the next key made for
+     * encryption uses a new random salt.
+     *
+     * @throws IllegalStateException if {@link #destroySecrets()} method has been called
+     */
+    public void forgetDerivedKeys() {
+        synchronized (_derivedKeys) {
+            checkNotDestroyed();
+            _derivedKeys.destroySecrets();
+        }
     }
 
     /**
-     * Zero-overwrite and discard the secret key data.
+     * Zero-overwrite and discard the secret key data, including any keys already made from it.
      * This method can safely be called repeatedly.
      * Once called, getKey method is no longer available.
      */
     public void destroySecrets() {
-        if (_password != null) {
-            Arrays.fill(_password, (char) 0);
-            _password = null;
+        synchronized (_derivedKeys) {
+            if (_password != null) {
+                Arrays.fill(_password, (char) 0);
+                _password = null;
+            }
+            _derivedKeys.destroySecrets();
         }
     }
 
@@ -92,4 +300,91 @@ public class EncryptionKey {
     protected void finalize() throws Throwable {
         destroySecrets();
     }
+
+    /**
+     * Cache key for derived keys: the password hash parameters
+     */
+    private static final class DerivedKeyParameters {
+        private final byte[] _salt;
+        private final int _iterationCount;
+        // Null for iterated SHA-256
+        private final Argon2Parameters _argon2Parameters;
+
+        DerivedKeyParameters(final byte[] salt, final int iterationCount, final Argon2Parameters argon2Parameters) {
+            _salt = salt.clone();
+            _iterationCount = iterationCount;
+            _argon2Parameters = argon2Parameters;
+        }
+
+        boolean hasArgon2Parameters(Argon2Parameters argon2Parameters) {
+            return (_argon2Parameters == null) ? (argon2Parameters == null)
+                                               : _argon2Parameters.equals(argon2Parameters);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof DerivedKeyParameters)) {
+                return false;
+            }
+            DerivedKeyParameters other = (DerivedKeyParameters) obj;
+            return _iterationCount == other._iterationCount && Arrays.equals(_salt, other._salt)
+                    && hasArgon2Parameters(other._argon2Parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(_salt) + _iterationCount;
+        }
+    }
+
+    /**
+     * Bounded map of derived keys in access order, which zero-overwrites keys as they are evicted
+     */
+    private static final class DerivedKeyCache extends LinkedHashMap<DerivedKeyParameters, byte[]> {
+        /**
+         * serialVersionUID for this class.
+         */
+        private static final long serialVersionUID = 1L;
+
+        DerivedKeyCache() {
+            super(DERIVED_KEY_CACHE_SIZE * 2, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<DerivedKeyParameters, byte[]> eldest) {
+            if (size() > DERIVED_KEY_CACHE_SIZE) {
+                Arrays.fill(eldest.getValue(), (byte) 0);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return the most recently used entry with a salt of the specified length and the specified Argon2
+         *         parameters (null for iterated SHA-256), or null if there is none
+         */
+        Map.Entry<DerivedKeyParameters, byte[]> getMostRecent(int saltLengthBytes,
+                Argon2Parameters argon2Parameters) {
+            Map.Entry<DerivedKeyParameters, byte[]> mostRecent = null;
+            for (Map.Entry<DerivedKeyParameters, byte[]> entry : entrySet()) {
+                if (entry.getKey()._salt.length == saltLengthBytes
+                        && entry.getKey().hasArgon2Parameters(argon2Parameters)) {
+                    mostRecent = entry;
+                }
+            }
+            if (mostRecent != null) {
+                // Mark as used
+                get(mostRecent.getKey());
+            }
+            return mostRecent;
+        }
+
+        void destroySecrets() {
+            Iterator<byte[]> i = values().iterator();
+            while (i.hasNext()) {
+                Arrays.fill(i.next(), (byte) 0);
+                i.remove();
+            }
+        }
+    }
 }
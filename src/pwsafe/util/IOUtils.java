@@ -6,6 +6,8 @@ import java.io.IOException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * IO-related utility methods
@@ -13,6 +15,13 @@ import java.io.FileOutputStream;
  * @author Nick Clarke
  */
 public final class IOUtils {
+
+    /**
+     * Files smaller than this are read rather than mapped by {@link #readFileBuffer(File)}: setting up a mapping
+     * costs more than copying a small file.
+     */
+    private static final long MAP_THRESHOLD_BYTES = 1024 * 1024;
+
     /**
      * Static utility methods only, no instances
      */
@@ -56,6 +65,60 @@ public final class IOUtils {
         return output.toByteArray();
     }
 
+    /**
+     * Get the entire contents of a file as a read-only buffer, without the copies {@link #readFile(File)} makes.
+     * <p>
+     * Large files are memory-mapped, so their contents are paged in from the file as they are read, and are not
+     * held on the Java heap at all. Smaller files, and all files on Windows, are read into a heap buffer of exactly
+     * the file's length. (Windows refuses to replace a file while a mapping of it is open, and Java only releases
+     * a mapping when the buffer is garbage collected, so a mapped datastore could not then be saved.)
+     * <p>
+     * The contents of a mapped file change if the file is changed in place, and reading a mapped file which has
+     * been truncated by another process fails with an InternalError. {@link AtomicFileOutputStream} replaces the
+     * file rather than changing it, so an existing mapping keeps the old contents.
+     *
+     * @param file the file to read, must not be null
+     * @return a read-only buffer of the file contents, from position 0 to the file length
+     * @throws IllegalArgumentException if file is null
+     * @throws IOException if reading fails or file is a directory, doesn't exist, is not readable,
+     *         or is larger than 2GB
+     */
+    public static ByteBuffer readFileBuffer(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("file must not be null");
+        }
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File is too large: " + length + " bytes");
+            }
+            if (length >= MAP_THRESHOLD_BYTES && !isWindows()) {
+                // The mapping remains valid after the channel is closed
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    // Truncated by another process while reading
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static boolean isWindows() {
+        String osName = System.getProperty("os.name");
+        return osName != null && osName.startsWith("Windows");
+    }
+
     /**
      * Write data to a file, replacing any existing contents.
      *
@@ -0,0 +1,23 @@
+package pwsafe.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Implemented by streams which hold their plaintext in buffers of their own, so {@link RecordReader} can read it
+ * in place rather than copying it into yet another buffer which would need zeroing.
+ *
+ * @author Nick Clarke
+ */
+interface InPlaceReadable {
+
+    /**
+     * Read up to maxLength bytes in place: rather than copying them, return a read-only view of them in the
+     * stream's buffer. The view is only valid until the next read or close, after which the buffer may be reused
+     * or zeroed.
+     *
+     * @param maxLength the most bytes to read, must be > 0
+     * @return the view, with at least one byte remaining, or null at the end of the stream
+     */
+    ByteBuffer readBuffer(int maxLength) throws IOException;
+}
@@ -0,0 +1,244 @@
+package pwsafe.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decompresses the output of {@link LzOutputStream}, for {@link CompressionCodec#LZ}.
+ * <p>
+ * The decompressed block buffer is zeroed as each block is used up, and the compressed block buffer as soon as it
+ * has been decompressed. Both come from {@link BufferPool}, and are returned to it when the stream is closed.
+ * <p>
+ * Once the end marker has been read, the underlying stream must be at its end too, so that a decrypting stream
+ * underneath is read to the end and authenticates its final segment.
+ *
+ * @author Nick Clarke
+ */
+final class LzInputStream extends InputStream implements InPlaceReadable {
+
+    private final InputStream _input;
+    private byte[] _block = BufferPool.acquire(LzOutputStream.BLOCK_LENGTH);
+    private int _blockLength = 0;
+    private int _blockPosition = 0;
+    private byte[] _compressed; // allocated when the first compressed block is read
+    private boolean _ended = false;
+
+    /**
+     * Construct an LzInputStream
+     *
+     * @param input the stream to read the compressed data from. It is closed when this stream is closed.
+     */
+    LzInputStream(final InputStream input) {
+        _input = input;
+    }
+
+    /**
+     * @throws IOException if the stream has already been closed
+     */
+    private void checkNotClosed() throws IOException {
+        if (_block == null) {
+            throw new IOException("Stream already closed");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkNotClosed();
+        if (!findUnreadData()) {
+            return -1;
+        }
+        return _block[_blockPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        checkNotClosed();
+        if (len == 0) {
+            return 0;
+        }
+        if (!findUnreadData()) {
+            return -1;
+        }
+        int count = Math.min(len, _blockLength - _blockPosition);
+        System.arraycopy(_block, _blockPosition, b, off, count);
+        _blockPosition += count;
+        return count;
+    }
+
+    /**
+     * Read in place from the decompressed block buffer, see {@link InPlaceReadable#readBuffer(int)}
+     */
+    public ByteBuffer readBuffer(int maxLength) throws IOException {
+        if (maxLength <= 0) {
+            throw new IllegalArgumentException("maxLength must be > 0");
+        }
+        checkNotClosed();
+        if (!findUnreadData()) {
+            return null;
+        }
+        int count = Math.min(maxLength, _blockLength - _blockPosition);
+        ByteBuffer view = ByteBuffer.wrap(_block, _blockPosition, count).slice();
+        _blockPosition += count;
+        return view.asReadOnlyBuffer();
+    }
+
+    @Override
+    public int available() throws IOException {
+        checkNotClosed();
+        return _blockLength - _blockPosition;
+    }
+
+    /**
+     * Read the next block if the current one is used up
+     *
+     * @return false at the end of the stream
+     */
+    private boolean findUnreadData() throws IOException {
+        while (_blockPosition == _blockLength) {
+            if (_ended) {
+                return false;
+            }
+            readBlock();
+        }
+        return true;
+    }
+
+    private void readBlock() throws IOException {
+        Arrays.fill(_block, 0, _blockLength, (byte) 0);
+        _blockLength = 0;
+        _blockPosition = 0;
+        byte[] header = new byte[LzOutputStream.HEADER_LENGTH];
+        readFully(header, LzOutputStream.HEADER_LENGTH);
+        int value = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16) | ((header[2] & 0xFF) << 8)
+                | (header[3] & 0xFF);
+        if (value == 0) {
+            _ended = true;
+            if (_input.read() != -1) {
+                throw new IOException("Unexpected data after end of compressed data");
+            }
+            return;
+        }
+        int length = value & ~LzOutputStream.STORED_BLOCK_FLAG;
+        if ((value & LzOutputStream.STORED_BLOCK_FLAG) != 0) {
+            if (length > LzOutputStream.BLOCK_LENGTH) {
+                throw new IOException("Invalid compressed block length " + length);
+            }
+            readFully(_block, length);
+            _blockLength = length;
+            return;
+        }
+        if (length > LzOutputStream.MAX_COMPRESSED_BLOCK_LENGTH) {
+            throw new IOException("Invalid compressed block length " + length);
+        }
+        if (_compressed == null) {
+            _compressed = BufferPool.acquire(LzOutputStream.MAX_COMPRESSED_BLOCK_LENGTH);
+        }
+        try {
+            readFully(_compressed, length);
+            _blockLength = decompressBlock(_compressed, length, _block);
+        } finally {
+            Arrays.fill(_compressed, 0, length, (byte) 0);
+        }
+    }
+
+    /**
+     * Decompress a block, checking every length and offset against the buffers
+     *
+     * @return the decompressed length
+     * @throws IOException if the compressed data is invalid
+     */
+    private static int decompressBlock(byte[] in, int inEnd, byte[] out) throws IOException {
+        int inPos = 0;
+        int outPos = 0;
+        while (inPos < inEnd) {
+            int token = in[inPos++] & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == LzOutputStream.LENGTH_NIBBLE_MAX) {
+                do {
+                    if (inPos == inEnd || literalLength > LzOutputStream.BLOCK_LENGTH) {
+                        throw new IOException("Invalid compressed data: bad literal length");
+                    }
+                    literalLength += in[inPos] & 0xFF;
+                } while ((in[inPos++] & 0xFF) == 255);
+            }
+            if (literalLength > inEnd - inPos || literalLength > out.length - outPos) {
+                throw new IOException("Invalid compressed data: literals out of bounds");
+            }
+            System.arraycopy(in, inPos, out, outPos, literalLength);
+            inPos += literalLength;
+            outPos += literalLength;
+            if (inPos == inEnd) {
+                // The last sequence has no match
+                break;
+            }
+
+            if (inEnd - inPos < 2) {
+                throw new IOException("Invalid compressed data: truncated match offset");
+            }
+            int offset = (in[inPos] & 0xFF) | ((in[inPos + 1] & 0xFF) << 8);
+            inPos += 2;
+            int matchLength = token & 0xF;
+            if (matchLength == LzOutputStream.LENGTH_NIBBLE_MAX) {
+                do {
+                    if (inPos == inEnd || matchLength > LzOutputStream.BLOCK_LENGTH) {
+                        throw new IOException("Invalid compressed data: bad match length");
+                    }
+                    matchLength += in[inPos] & 0xFF;
+                } while ((in[inPos++] & 0xFF) == 255);
+            }
+            matchLength += LzOutputStream.MIN_MATCH;
+            if (offset == 0 || offset > outPos || matchLength > out.length - outPos) {
+                throw new IOException("Invalid compressed data: match out of bounds");
+            }
+            int matchStart = outPos - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(out, matchStart, out, outPos, matchLength);
+                outPos += matchLength;
+            } else {
+                // Overlapping, so the match repeats the bytes being copied
+                for (int i = 0; i < matchLength; i++) {
+                    out[outPos++] = out[matchStart + i];
+                }
+            }
+        }
+        return outPos;
+    }
+
+    private void readFully(byte[] b, int length) throws IOException {
+        int pos = 0;
+        while (pos < length) {
+            int read = _input.read(b, pos, length - pos);
+            if (read == -1) {
+                throw new IOException("Compressed data truncated");
+            }
+            pos += read;
+        }
+    }
+
+    /**
+     * Zero the buffers, and close the underlying stream.
+     * This method can safely be called repeatedly.
+     */
+    @Override
+    public void close() throws IOException {
+        if (_block == null) {
+            return;
+        }
+        try {
+            _input.close();
+        } finally {
+            BufferPool.release(_block);
+            _block = null;
+            BufferPool.release(_compressed);
+            _compressed = null;
+        }
+    }
+}
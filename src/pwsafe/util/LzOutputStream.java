@@ -0,0 +1,254 @@
+package pwsafe.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compresses with a simple, fast LZ77 codec in the style of LZ4, for {@link CompressionCodec#LZ}.
+ * Read the output with {@link LzInputStream}.
+ * <p>
+ * The data is compressed in independent blocks of up to {@link #BLOCK_LENGTH} bytes. Each block is written as
+ * a 4-byte big-endian header then the block data. The header holds the length of the block data, with
+ * {@link #STORED_BLOCK_FLAG} set if the block is stored as it is because it did not compress. A header of zero
+ * marks the end of the stream.
+ * <p>
+ * A compressed block is a sequence of sequences, each of:
+ * <ul>
+ * <li>a token byte: the literal length in the high 4 bits, and the match length minus {@link #MIN_MATCH} in the
+ *     low 4 bits. A value of 15 means the length continues in the following bytes, each added to it, until
+ *     a byte less than 255.</li>
+ * <li>the rest of the literal length if any, then the literal bytes</li>
+ * <li>the match offset (how far back in the block the match starts), as 2 bytes little-endian</li>
+ * <li>the rest of the match length if any</li>
+ * </ul>
+ * The last sequence in a block may stop after its literals, with no match.
+ * <p>
+ * Both buffers are zeroed as each block is written out, so no plaintext is left behind. They come from
+ * {@link BufferPool}, and are returned to it when the stream is closed.
+ *
+ * @author Nick Clarke
+ */
+final class LzOutputStream extends OutputStream {
+
+    static final int BLOCK_LENGTH = 64 * 1024;
+    static final int MAX_COMPRESSED_BLOCK_LENGTH = BLOCK_LENGTH + BLOCK_LENGTH / 255 + 16;
+    static final int STORED_BLOCK_FLAG = 0x80000000;
+    static final int HEADER_LENGTH = 4;
+    static final int MIN_MATCH = 4;
+    static final int MAX_OFFSET = 0xFFFF;
+    static final int LENGTH_NIBBLE_MAX = 15;
+
+    private static final int HASH_BITS = 14;
+    // Searching speeds up by one byte per step for every 64 bytes without a match, to get through data which does
+    // not compress quickly
+    private static final int SKIP_SHIFT = 6;
+
+    private final OutputStream _output;
+    private byte[] _block = BufferPool.acquire(BLOCK_LENGTH);
+    private int _blockLength = 0;
+    // The header followed by the compressed block
+    private byte[] _compressed = BufferPool.acquire(HEADER_LENGTH + MAX_COMPRESSED_BLOCK_LENGTH);
+    // The last position in the block where each hash of 4 bytes was seen, or -1
+    private final int[] _hashTable = new int[1 << HASH_BITS];
+
+    /**
+     * Construct an LzOutputStream
+     *
+     * @param output the stream to write the compressed data to. It is closed when this stream is closed.
+     */
+    LzOutputStream(final OutputStream output) {
+        _output = output;
+    }
+
+    /**
+     * @throws IOException if the stream has already been closed
+     */
+    private void checkNotClosed() throws IOException {
+        if (_block == null) {
+            throw new IOException("Stream already closed");
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkNotClosed();
+        if (_blockLength == BLOCK_LENGTH) {
+            writeBlock();
+        }
+        _block[_blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        checkNotClosed();
+        while (len > 0) {
+            if (_blockLength == BLOCK_LENGTH) {
+                writeBlock();
+            }
+            int count = Math.min(len, BLOCK_LENGTH - _blockLength);
+            System.arraycopy(b, off, _block, _blockLength, count);
+            _blockLength += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Flush the underlying stream. This does not end the current block, so data written since the last full block
+     * is not written out until more data fills it or the stream is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkNotClosed();
+        _output.flush();
+    }
+
+    /**
+     * Write out the last block and the end marker, zero the buffers, and close the underlying stream.
+     * This method can safely be called repeatedly.
+     */
+    @Override
+    public void close() throws IOException {
+        if (_block == null) {
+            return;
+        }
+        try {
+            writeBlock();
+            byte[] end = new byte[HEADER_LENGTH];
+            _output.write(end);
+            _output.close();
+        } finally {
+            BufferPool.release(_block);
+            _block = null;
+            BufferPool.release(_compressed);
+            _compressed = null;
+        }
+    }
+
+    /**
+     * Compress and write out the buffered block, if there is one
+     */
+    private void writeBlock() throws IOException {
+        if (_blockLength == 0) {
+            return;
+        }
+        try {
+            int length = compressBlock();
+            if (length < _blockLength) {
+                putInt(_compressed, 0, length);
+                _output.write(_compressed, 0, HEADER_LENGTH + length);
+            } else {
+                // Already compressed, or random
+                putInt(_compressed, 0, STORED_BLOCK_FLAG | _blockLength);
+                _output.write(_compressed, 0, HEADER_LENGTH);
+                _output.write(_block, 0, _blockLength);
+            }
+        } finally {
+            Arrays.fill(_block, 0, _blockLength, (byte) 0);
+            Arrays.fill(_compressed, (byte) 0);
+            _blockLength = 0;
+        }
+    }
+
+    /**
+     * Compress the buffered block into _compressed, after the header
+     *
+     * @return the compressed length
+     */
+    private int compressBlock() {
+        final byte[] in = _block;
+        final byte[] out = _compressed;
+        final int end = _blockLength;
+        final int matchStartLimit = end - MIN_MATCH; // the last position where a match can start
+        Arrays.fill(_hashTable, -1);
+        int outPos = HEADER_LENGTH;
+        int anchor = 0; // the start of the literals not yet written
+        int pos = 0;
+        while (pos <= matchStartLimit) {
+            int hash = hash(getInt(in, pos));
+            int candidate = _hashTable[hash];
+            _hashTable[hash] = pos;
+            if (candidate < 0 || pos - candidate > MAX_OFFSET || getInt(in, candidate) != getInt(in, pos)) {
+                pos += 1 + ((pos - anchor) >>> SKIP_SHIFT);
+                continue;
+            }
+            // Extend the match backwards into the literals, then forwards as far as it goes
+            while (pos > anchor && candidate > 0 && in[pos - 1] == in[candidate - 1]) {
+                pos--;
+                candidate--;
+            }
+            int matchLength = MIN_MATCH;
+            while (pos + matchLength < end && in[candidate + matchLength] == in[pos + matchLength]) {
+                matchLength++;
+            }
+            outPos = writeSequence(out, outPos, anchor, pos - anchor, matchLength);
+            out[outPos++] = (byte) (pos - candidate);
+            out[outPos++] = (byte) ((pos - candidate) >>> 8);
+            if (matchLength - MIN_MATCH >= LENGTH_NIBBLE_MAX) {
+                outPos = writeLength(out, outPos, matchLength - MIN_MATCH - LENGTH_NIBBLE_MAX);
+            }
+            pos += matchLength;
+            anchor = pos;
+            if (pos - 2 <= matchStartLimit) {
+                _hashTable[hash(getInt(in, pos - 2))] = pos - 2;
+            }
+        }
+        if (anchor < end) {
+            outPos = writeSequence(out, outPos, anchor, end - anchor, 0);
+        }
+        return outPos - HEADER_LENGTH;
+    }
+
+    /**
+     * Write the start of a sequence: the token, then the literals. The caller writes the match, if any.
+     *
+     * @param matchLength the length of the match which follows, or 0 for the last sequence in the block
+     * @return the position after the literals
+     */
+    private int writeSequence(byte[] out, int outPos, int literalStart, int literalLength, int matchLength) {
+        int matchNibble = (matchLength == 0) ? 0 : Math.min(matchLength - MIN_MATCH, LENGTH_NIBBLE_MAX);
+        out[outPos++] = (byte) ((Math.min(literalLength, LENGTH_NIBBLE_MAX) << 4) | matchNibble);
+        if (literalLength >= LENGTH_NIBBLE_MAX) {
+            outPos = writeLength(out, outPos, literalLength - LENGTH_NIBBLE_MAX);
+        }
+        System.arraycopy(_block, literalStart, out, outPos, literalLength);
+        return outPos + literalLength;
+    }
+
+    /**
+     * Write the rest of a length which did not fit in its token nibble
+     *
+     * @return the position after the length
+     */
+    private static int writeLength(byte[] out, int outPos, int length) {
+        while (length >= 255) {
+            out[outPos++] = (byte) 255;
+            length -= 255;
+        }
+        out[outPos++] = (byte) length;
+        return outPos;
+    }
+
+    private static int hash(int value) {
+        // Fibonacci hashing: the high bits of the product depend on all the input bits
+        return (value * -1640531535) >>> (Integer.SIZE - HASH_BITS);
+    }
+
+    private static int getInt(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16) | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+    }
+
+    private static void putInt(byte[] b, int pos, int value) {
+        b[pos] = (byte) (value >>> 24);
+        b[pos + 1] = (byte) (value >>> 16);
+        b[pos + 2] = (byte) (value >>> 8);
+        b[pos + 3] = (byte) value;
+    }
+}
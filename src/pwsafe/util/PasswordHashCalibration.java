@@ -0,0 +1,221 @@
+package pwsafe.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Properties;
+
+/**
+ * Per-machine profile of the speed of the iterated SHA-256 password hash, so that encryption can use a fixed
+ * iteration count for the desired hashing time instead of timing the hash every time.
+ * <p>
+ * The speed is measured once, then kept in a properties file in the user's home directory (see
+ * {@link CryptoUtils#CALIBRATION_FILE_PROPERTY}), keyed by the OS, CPU architecture and count, JVM and digest
+ * provider, so that a home directory shared between machines or JVMs keeps a profile for each. When a profile is
+ * loaded from the file, the speed is measured again once in the background, and the file updated if it is faster,
+ * to follow hardware and JVM upgrades that the key doesn't catch. The speed is never lowered, since a slow
+ * measurement more likely means a busy machine than a slower one.
+ * <p>
+ * The speed is measured using a password long enough to take the faster of the two hash paths (see
+ * CryptoUtils.PasswordHashIterator), so any real password takes at least the desired time.
+ *
+ * @author Nick Clarke
+ */
+final class PasswordHashCalibration {
+
+    /**
+     * Static utility methods only, no instances
+     */
+    private PasswordHashCalibration() {}
+
+
+    private static final String DEFAULT_USER_HOME_CALIBRATION_FILE = ".pwsafe-calibration";
+    private static final long BENCHMARK_ROUND_MILLIS = 100;
+    private static final int BENCHMARK_ROUNDS = 5;
+    private static final int BENCHMARK_PASSWORD_LENGTH = 24; // chars, long enough for the midstate path
+
+    // Guarded by PasswordHashCalibration.class
+    private static boolean _loaded = false;
+    private static long _iterationsPerSecond = 0; // 0 if not known yet
+    private static boolean _recalibrationStarted = false;
+
+    /**
+     * Get the number of iterations of the password hash needed to take at least the specified time on this
+     * machine. The first call on a machine without a saved profile measures the speed, which takes a fraction
+     * of a second.
+     *
+     * @param hashIterationTimeMillis the time to hash for, must be > 0
+     * @return the iteration count, > 0
+     */
+    static int getIterationCount(long hashIterationTimeMillis) {
+        if (hashIterationTimeMillis <= 0L) {
+            throw new IllegalArgumentException("hashIterationTimeMillis must be > 0, got " + hashIterationTimeMillis);
+        }
+        long iterationsPerSecond = getIterationsPerSecond();
+        long iterations = (iterationsPerSecond * hashIterationTimeMillis + 999) / 1000;
+        return (int) Math.max(1, Math.min(iterations, Integer.MAX_VALUE));
+    }
+
+    private static long getIterationsPerSecond() {
+        synchronized (PasswordHashCalibration.class) {
+            if (!_loaded) {
+                _loaded = true;
+                _iterationsPerSecond = loadProfile();
+                if (_iterationsPerSecond > 0) {
+                    startRecalibration();
+                }
+            }
+            if (_iterationsPerSecond > 0) {
+                return _iterationsPerSecond;
+            }
+        }
+        // Measure without holding the lock, so a concurrent caller (or the recalibration) isn't blocked for long
+        long measured = benchmark();
+        synchronized (PasswordHashCalibration.class) {
+            if (_iterationsPerSecond <= 0) {
+                _iterationsPerSecond = measured;
+                saveProfile(measured);
+            }
+            return _iterationsPerSecond;
+        }
+    }
+
+    /**
+     * Measure the speed again on a background thread, once per JVM
+     */
+    private static synchronized void startRecalibration() {
+        if (_recalibrationStarted) {
+            return;
+        }
+        _recalibrationStarted = true;
+        Thread thread = new Thread("pwsafe-calibration") {
+                @Override
+                public void run() {
+                    long measured = benchmark();
+                    synchronized (PasswordHashCalibration.class) {
+                        if (measured > _iterationsPerSecond) {
+                            _iterationsPerSecond = measured;
+                            saveProfile(measured);
+                        }
+                    }
+                }
+            };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * @return the measured number of password hash iterations per second on this thread, > 0. Takes about half a
+     *         second.
+     */
+    private static long benchmark() {
+        char[] password = new char[BENCHMARK_PASSWORD_LENGTH];
+        for (int i = 0; i < password.length; i++) {
+            password[i] = (char) ('a' + CryptoUtils.randomInt(26));
+        }
+        byte[] salt = CryptoUtils.randomBytes(CryptoUtils.getPasswordSaltLength());
+
+        // Use CPU time where possible, so other threads hashing at the same time don't make us look slower
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean useCpuTime = threads.isCurrentThreadCpuTimeSupported();
+        if (useCpuTime && !threads.isThreadCpuTimeEnabled()) {
+            try {
+                threads.setThreadCpuTimeEnabled(true);
+            } catch (UnsupportedOperationException e) {
+                useCpuTime = false;
+            } catch (SecurityException e) {
+                useCpuTime = false;
+            }
+        }
+        /* Keep the fastest round: the first ones run partly in the interpreter until the JIT has compiled the hash,
+           and an attacker's hardware won't be any slower than our best */
+        long iterationsPerSecond = 1;
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            long startNanos = useCpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+            int iterations = CryptoUtils.hashPasswordToKeyForTime(password, salt, BENCHMARK_ROUND_MILLIS)
+                    .getIterationCount();
+            long elapsedNanos = (useCpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime()) - startNanos;
+            iterationsPerSecond = Math.max(iterationsPerSecond, iterations * 1000000000L / Math.max(1L, elapsedNanos));
+        }
+        return iterationsPerSecond;
+    }
+
+    /**
+     * @return the key for this machine's profile in the calibration file
+     */
+    private static String getProfileKey() {
+        return "sha256.iterationsPerSecond." + System.getProperty("os.name") + "." + System.getProperty("os.arch")
+                + "." + Runtime.getRuntime().availableProcessors() + "." + System.getProperty("java.vm.name")
+                + "." + System.getProperty("java.version") + "." + DigestProvider.getSelected().name();
+    }
+
+    /**
+     * @return the calibration file, or null if profiles are not to be saved
+     */
+    private static File getProfileFile() {
+        String property = System.getProperty(CryptoUtils.CALIBRATION_FILE_PROPERTY);
+        if (property != null) {
+            return (property.trim().length() == 0) ? null : new File(property.trim());
+        }
+        String userHomeDir = System.getProperty("user.home");
+        return (userHomeDir == null) ? null : new File(userHomeDir, DEFAULT_USER_HOME_CALIBRATION_FILE);
+    }
+
+    /**
+     * @return the saved iterations per second for this machine, or 0 if there is none
+     */
+    private static long loadProfile() {
+        File file = getProfileFile();
+        if (file == null || !file.isFile()) {
+            return 0;
+        }
+        String value = readProfiles(file).getProperty(getProfileKey());
+        if (value != null) {
+            try {
+                long iterationsPerSecond = Long.parseLong(value.trim());
+                if (iterationsPerSecond > 0) {
+                    return iterationsPerSecond;
+                }
+            } catch (NumberFormatException ignored) {}
+            System.err.println("Ignoring invalid password hash calibration '" + value + "' in " + file);
+        }
+        return 0;
+    }
+
+    /**
+     * Save the iterations per second for this machine, keeping the profiles for other machines. Failure only
+     * means measuring again next time, so is reported but not thrown.
+     */
+    private static void saveProfile(long iterationsPerSecond) {
+        File file = getProfileFile();
+        if (file == null) {
+            return;
+        }
+        Properties profiles = file.isFile() ? readProfiles(file) : new Properties();
+        profiles.setProperty(getProfileKey(), Long.toString(iterationsPerSecond));
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            profiles.store(output, "Password Safe password hash calibration - safe to delete");
+            IOUtils.writeFile(file, output.toByteArray());
+        } catch (IOException e) {
+            System.err.println("Failed to save password hash calibration to " + file + ": " + e);
+        }
+    }
+
+    private static Properties readProfiles(File file) {
+        Properties profiles = new Properties();
+        try {
+            profiles.load(new ByteArrayInputStream(IOUtils.readFile(file)));
+        } catch (IOException e) {
+            System.err.println("Failed to read password hash calibration from " + file + ": " + e);
+        } catch (IllegalArgumentException e) {
+            // Malformed unicode escape
+            System.err.println("Failed to read password hash calibration from " + file + ": " + e);
+        }
+        return profiles;
+    }
+}
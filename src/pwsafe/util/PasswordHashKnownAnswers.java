@@ -0,0 +1,84 @@
+package pwsafe.util;
+
+/**
+ * Checks {@link CryptoUtils#hashPasswordToKey(char[], byte[], int)} against known answers, so that changes to the
+ * password hash can be shown not to change the keys it derives, which would make existing datastores unreadable.
+ * Run with 'ant verify-password-hash', which checks each {@link DigestProvider} in turn.
+ * <p>
+ * The expected keys were computed independently, by iterating SHA-256(salt || password || previous output) with
+ * a plain MessageDigest. The salt and password lengths cover both ways the hash can be computed: with the salt and
+ * password prefix shorter than one SHA-256 block (re-hashed every iteration), and one block or longer (hashed once,
+ * and each iteration continued from a copy of the digest state). See CryptoUtils.PasswordHashIterator.
+ *
+ * @author Nick Clarke
+ */
+final class PasswordHashKnownAnswers {
+
+    /**
+     * Password, salt length, iteration count, expected key (hex). The salt is the bytes 0, 1, 2, ...
+     * and the lengths in comments are of the salt plus the password's PKCS12 bytes.
+     */
+    private static final Object[][] VECTORS = {
+            // 34 bytes
+            {"password", 16, 1, "63b1cd5698533405996c72487a7da6a24f1d2102742f954f774cac57cc3ecb4b"},
+            {"password", 16, 2, "74d68ce4b823b24087141606b6a06552a607a66602e6841394535723fdef60e5"},
+            {"password", 16, 1000, "a9077d04b70248536f6103e6f48ce4d2313ce28a607a40e67d035f3dc6d6fcae"},
+            // 54 bytes, not all ASCII
+            {"p\u00e4ssw\u00f6rd \u20ac", 32, 1,
+                    "1fd8fd81fe189873d28d50ec67bc60c08db97d80085a3c77920a59c8c2db015c"},
+            {"p\u00e4ssw\u00f6rd \u20ac", 32, 2,
+                    "e4d5d49ba820e240537ebb6edb294d9a86cc8cea03e63885deaab5cd7675d699"},
+            {"p\u00e4ssw\u00f6rd \u20ac", 32, 1000,
+                    "88664a4903c4604188f14c4add57f3cc067374dcace9679bbb061aaf3ac942de"},
+            // 63 bytes, the longest prefix which is re-hashed
+            {"correct horse b", 31, 1, "d4d19e64a3e7072b3059f6e0584a92ffdaa6701ada9afde56b400fd511e168d2"},
+            {"correct horse b", 31, 2, "7478bca24fa43bab19cca6adf7ce59c46a7ccc378a2a238b1c06d05637980b0c"},
+            {"correct horse b", 31, 1000, "7d34891407a440e2e5b9d66fdf6e21acc963fc0dcb46a77cb5613b45a543d587"},
+            // 64 bytes, the shortest prefix which is hashed once
+            {"correct horse b", 32, 1, "19c2ef633d867e34c334ab95b23efbe6f2d4a9a75bbe1369fa1caf1d5c7fc03d"},
+            {"correct horse b", 32, 2, "fa862644ca669eeb0352f327a284e2e667237e516a6cf938abc6ba7988ad247a"},
+            {"correct horse b", 32, 1000, "f798789864fd3e77ce4462591a880d819d93b5da0f5dd423b5eb63156fd6c67e"},
+            // 76 bytes
+            {"correct horse battery", 32, 1, "a691fa61ffffac554f907fad14efd4bf6a368c5e57930766039ccf2c2328d42c"},
+            {"correct horse battery", 32, 2, "84f927a7132caf9c3da908cb9604dddc48c33da167d43c1b33b117c094d0a6b2"},
+            {"correct horse battery", 32, 1000, "7fa4108c10153414c40aa07efd4940a1472af67f08c5273f2183f8477b7abf69"}};
+
+    private PasswordHashKnownAnswers() {
+        // static methods only
+    }
+
+    public static void main(String[] args) {
+        int failures = 0;
+        for (Object[] vector : VECTORS) {
+            String password = (String) vector[0];
+            int saltLength = ((Integer) vector[1]).intValue();
+            int iterations = ((Integer) vector[2]).intValue();
+            String expected = (String) vector[3];
+
+            byte[] salt = new byte[saltLength];
+            for (int i = 0; i < saltLength; i++) {
+                salt[i] = (byte) i;
+            }
+            String actual = toHex(CryptoUtils.hashPasswordToKey(password.toCharArray(), salt, iterations));
+            if (!actual.equals(expected)) {
+                failures++;
+                System.out.println("FAILED: password length " + password.length() + ", salt length " + saltLength
+                        + ", " + iterations + " iterations: expected " + expected + ", got " + actual);
+            }
+        }
+        System.out.println("Digest provider " + DigestProvider.getSelected() + ": "
+                + (VECTORS.length - failures) + " of " + VECTORS.length + " known answers matched");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+}
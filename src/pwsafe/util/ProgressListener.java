@@ -0,0 +1,17 @@
+package pwsafe.util;
+
+/**
+ * Receives progress reports from slow operations, such as hashing a password, see
+ * {@link CryptoUtils#setProgressListener(ProgressListener)}.
+ * Called on the thread doing the work, so implementations must be quick and thread-safe.
+ *
+ * @author Nick Clarke
+ */
+public interface ProgressListener {
+
+    /**
+     * @param completed the units of work done so far, from 0 to total
+     * @param total the units of work in the operation, > 0
+     */
+    void progress(long completed, long total);
+}
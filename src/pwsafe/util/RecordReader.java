@@ -0,0 +1,539 @@
+package pwsafe.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Reads the compact tag-length-value record format written by {@link RecordWriter}.
+ * <p>
+ * Fields are read in a loop:
+ * <pre>
+ *     reader.beginRecord(); // or reader.readHeader() for the root record
+ *     while (reader.nextField()) {
+ *         switch (reader.getTag()) {
+ *             case TAG_NAME:
+ *                 name = reader.readString();
+ *                 break;
+ *             default:
+ *                 reader.skipField();
+ *         }
+ *     }
+ *     reader.endRecord();
+ * </pre>
+ * Fields are decoded straight from the data where possible, so that the only copies made of secrets are the arrays
+ * returned:
+ * <ul>
+ * <li>data already in memory, such as the output of {@link CryptoUtils#decrypt}, is read in place from a
+ *     ByteBuffer, which is zeroed when the reader is closed</li>
+ * <li>the streams from {@link CryptoUtils#newDecryptingStream} are read in place from their decrypted segment
+ *     or decompressed block buffers, which the stream zeroes as it moves on</li>
+ * <li>other streams are buffered in an array which is zeroed as it is refilled and when closed</li>
+ * </ul>
+ * Nothing beyond the end of the root record is read from an underlying stream.
+ *
+ * @author Nick Clarke
+ */
+public final class RecordReader {
+
+    private static final int BUFFER_LENGTH = 8192;
+    private static final int DATE_LENGTH = 8;
+    private static final int LONG_LENGTH = 8;
+    private static final int MAX_RECORD_DEPTH = 16;
+
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private final InputStream _input; // null when reading from a ByteBuffer
+    private final InPlaceReadable _inPlace; // _input, if it can be read in place
+    private byte[] _array; // the buffer for any other _input
+    private final ByteBuffer _source; // the ByteBuffer being read, if any, to zero when closed
+    private ByteBuffer _buffer; // the data being read, from one of the above
+    private boolean _closed = false;
+    private long _loaded = 0; // the position after the end of _buffer
+    private long _streamLimit = 0; // the end of the root record in _input, once the header has been read
+
+    // The end position of each record being read, outermost first
+    private final long[] _recordEnds = new long[MAX_RECORD_DEPTH];
+    private int _depth = 0;
+    private int _tag = 0; // 0 if there is no current field
+    private long _fieldEnd;
+
+    /**
+     * Construct a RecordReader to read from a stream
+     *
+     * @param input the stream to read from, must not be null. It is not closed by this RecordReader.
+     * @throws IllegalArgumentException if input is null
+     */
+    public RecordReader(final InputStream input) {
+        if (input == null) {
+            throw new IllegalArgumentException("input must not be null");
+        }
+        _input = input;
+        if (input instanceof InPlaceReadable) {
+            _inPlace = (InPlaceReadable) input;
+            _array = null;
+        } else {
+            _inPlace = null;
+            _array = BufferPool.acquire(BUFFER_LENGTH);
+        }
+        _source = null;
+        _buffer = EMPTY_BUFFER;
+    }
+
+    /**
+     * Construct a RecordReader to read the data in a buffer in place, from its position to its limit.
+     * <p>
+     * <b>IMPORTANT:</b> {@link #close()} zeroes the data, so that the caller need not.
+     * The caller must not change the buffer until then.
+     *
+     * @param source the data to read, must not be null or read-only
+     * @throws IllegalArgumentException if source is null or read-only
+     */
+    public RecordReader(final ByteBuffer source) {
+        if (source == null) {
+            throw new IllegalArgumentException("source must not be null");
+        }
+        if (source.isReadOnly()) {
+            throw new IllegalArgumentException("source must not be read-only");
+        }
+        _input = null;
+        _inPlace = null;
+        _array = null;
+        _source = source.slice();
+        _buffer = _source.duplicate();
+        _loaded = _buffer.remaining();
+    }
+
+    /**
+     * @throws IllegalStateException if {@link #close()} has already been called
+     */
+    private void checkNotClosed() {
+        if (_closed) {
+            throw new IllegalStateException("close() has already been called");
+        }
+    }
+
+    /**
+     * Does the data start with {@link RecordWriter#MAGIC}?
+     *
+     * @param data the start of the data, must not be null
+     * @param length the number of bytes of data available
+     */
+    public static boolean isRecordFormat(byte[] data, int length) {
+        if (length < RecordWriter.MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < RecordWriter.MAGIC.length; i++) {
+            if (data[i] != RecordWriter.MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the magic bytes and format version, and start reading the root record.
+     *
+     * @throws RecordFormatException if this is not the record format, or is a version this code cannot read
+     */
+    public void readHeader() throws IOException {
+        checkNotClosed();
+        if (_depth != 0 || position() != 0) {
+            throw new IllegalStateException("Header already read");
+        }
+        byte[] magic = new byte[RecordWriter.MAGIC.length];
+        for (int i = 0; i < magic.length; i++) {
+            magic[i] = (byte) readHeaderByte();
+        }
+        if (!isRecordFormat(magic, magic.length)) {
+            throw new RecordFormatException("Not in record format");
+        }
+        readHeaderAfterMagic();
+    }
+
+    /**
+     * As {@link #readHeader()}, for callers which have already read the magic bytes to check the format
+     *
+     * @throws RecordFormatException if this is a version this code cannot read
+     */
+    public void readHeaderAfterMagic() throws IOException {
+        checkNotClosed();
+        if (_depth != 0) {
+            throw new IllegalStateException("Header already read");
+        }
+        int version = readHeaderByte();
+        // Add new versions here when changing RecordWriter.FORMAT_VERSION
+        switch (version) {
+            case 0x1:
+                break;
+            default:
+                throw new RecordFormatException("Unsupported record format version " + version);
+        }
+        long rootLength = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = readHeaderByte();
+            if (shift > 28) {
+                throw new RecordFormatException("Invalid record length");
+            }
+            rootLength |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        _streamLimit = position() + rootLength;
+        _recordEnds[_depth++] = _streamLimit;
+    }
+
+    private int readHeaderByte() throws IOException {
+        if (_input == null) {
+            return readByte() & 0xff;
+        }
+        // Read the header a byte at a time, so that the buffer is never filled beyond the root record
+        int b = _input.read();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of data");
+        }
+        _loaded++;
+        return b;
+    }
+
+    /**
+     * Move to the next field of the current record.
+     *
+     * @return true if there is a field, false at the end of the record
+     * @throws IllegalStateException if the value of the current field has not been read or skipped
+     */
+    public boolean nextField() throws IOException {
+        checkNotClosed();
+        if (_depth == 0) {
+            throw new IllegalStateException("Not reading a record");
+        }
+        if (_tag != 0) {
+            throw new IllegalStateException("Previous field not read");
+        }
+        if (position() == _recordEnds[_depth - 1]) {
+            return false;
+        }
+        int tag = readByte() & 0xff;
+        if (tag == 0) {
+            throw new RecordFormatException("Invalid field tag 0");
+        }
+        long length = readVarint();
+        _fieldEnd = position() + length;
+        if (_fieldEnd > _recordEnds[_depth - 1]) {
+            throw new RecordFormatException("Field " + tag + " runs past the end of its record");
+        }
+        _tag = tag;
+        return true;
+    }
+
+    /**
+     * @return the tag of the current field, see {@link #nextField()}
+     */
+    public int getTag() {
+        checkInField();
+        return _tag;
+    }
+
+    /**
+     * Start reading the current field as a nested record
+     */
+    public void beginRecord() {
+        checkInField();
+        if (_depth == MAX_RECORD_DEPTH) {
+            throw new IllegalStateException("Records nested too deeply");
+        }
+        _recordEnds[_depth++] = _fieldEnd;
+        _tag = 0;
+    }
+
+    /**
+     * Finish reading the current record, once {@link #nextField()} has returned false
+     */
+    public void endRecord() {
+        if (_depth == 0) {
+            throw new IllegalStateException("Not reading a record");
+        }
+        if (_tag != 0 || position() != _recordEnds[_depth - 1]) {
+            throw new IllegalStateException("Record not read to the end");
+        }
+        _depth--;
+    }
+
+    /**
+     * Skip the value of the current field, which has an unknown tag
+     */
+    public void skipField() throws IOException {
+        checkInField();
+        long remaining = _fieldEnd - position();
+        while (remaining > 0) {
+            if (!_buffer.hasRemaining()) {
+                fill();
+            }
+            int count = (int) Math.min(remaining, _buffer.remaining());
+            _buffer.position(_buffer.position() + count);
+            remaining -= count;
+        }
+        _tag = 0;
+    }
+
+    /**
+     * Read the value of the current field as a string
+     */
+    public String readString() throws IOException {
+        char[] chars = readChars();
+        try {
+            return new String(chars);
+        } finally {
+            Arrays.fill(chars, (char) 0);
+        }
+    }
+
+    /**
+     * Read the value of the current field as a char array, such as a password, without making a String of it.
+     *
+     * @return a new array which is the caller's responsibility to zero when finished
+     */
+    public char[] readChars() throws IOException {
+        int length = checkedFieldLength();
+        // No more chars than bytes, so decode into an array that long and copy if it turned out shorter
+        char[] chars = new char[length];
+        int count = 0;
+        boolean ok = false;
+        try {
+            while (position() < _fieldEnd) {
+                int b = readByte() & 0xff;
+                if (b < 0x80) {
+                    chars[count++] = (char) b;
+                } else if (b >= 0xc0 && b < 0xe0) {
+                    chars[count++] = (char) (((b & 0x1f) << 6) | readContinuation());
+                } else if (b >= 0xe0 && b < 0xf0) {
+                    int c = ((b & 0x0f) << 12) | (readContinuation() << 6);
+                    chars[count++] = (char) (c | readContinuation());
+                } else if (b >= 0xf0 && b < 0xf8) {
+                    int codePoint = ((b & 0x07) << 18) | (readContinuation() << 12);
+                    codePoint |= readContinuation() << 6;
+                    codePoint |= readContinuation();
+                    if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT
+                            || codePoint > Character.MAX_CODE_POINT) {
+                        throw new RecordFormatException("Invalid UTF-8 in field " + _tag);
+                    }
+                    count += Character.toChars(codePoint, chars, count);
+                } else {
+                    throw new RecordFormatException("Invalid UTF-8 in field " + _tag);
+                }
+            }
+            _tag = 0;
+            ok = true;
+        } finally {
+            if (!ok) {
+                Arrays.fill(chars, (char) 0);
+            }
+        }
+        if (count == chars.length) {
+            return chars;
+        }
+        char[] result = Arrays.copyOf(chars, count);
+        Arrays.fill(chars, (char) 0);
+        return result;
+    }
+
+    private int readContinuation() throws IOException {
+        if (position() == _fieldEnd) {
+            throw new RecordFormatException("Truncated UTF-8 in field " + _tag);
+        }
+        int b = readByte() & 0xff;
+        if ((b & 0xc0) != 0x80) {
+            throw new RecordFormatException("Invalid UTF-8 in field " + _tag);
+        }
+        return b & 0x3f;
+    }
+
+    /**
+     * Read the value of the current field as a byte array
+     *
+     * @return a new array which is the caller's responsibility to zero when finished, if secret
+     */
+    public byte[] readBytes() throws IOException {
+        byte[] bytes = new byte[checkedFieldLength()];
+        int count = 0;
+        boolean ok = false;
+        try {
+            while (count < bytes.length) {
+                if (!_buffer.hasRemaining()) {
+                    if (_array != null && bytes.length - count > BUFFER_LENGTH) {
+                        // Read the rest straight into the result, rather than through our buffer
+                        readFromInput(bytes, count);
+                        break;
+                    }
+                    fill();
+                }
+                int length = Math.min(bytes.length - count, _buffer.remaining());
+                _buffer.get(bytes, count, length);
+                count += length;
+            }
+            ok = true;
+        } finally {
+            if (!ok) {
+                Arrays.fill(bytes, (byte) 0);
+            }
+        }
+        _tag = 0;
+        return bytes;
+    }
+
+    /**
+     * Read the value of the current field as a date
+     */
+    public Date readDate() throws IOException {
+        if (checkedFieldLength() != DATE_LENGTH) {
+            throw new RecordFormatException("Field " + _tag + " is not a date");
+        }
+        long time = readRawLong();
+        _tag = 0;
+        return new Date(time);
+    }
+
+    /**
+     * Read the value of the current field as a long
+     */
+    public long readLong() throws IOException {
+        if (checkedFieldLength() != LONG_LENGTH) {
+            throw new RecordFormatException("Field " + _tag + " is not a long");
+        }
+        long value = readRawLong();
+        _tag = 0;
+        return value;
+    }
+
+    /**
+     * Zero and discard the buffer, or the ByteBuffer being read. Any underlying stream is left open.
+     * This method can safely be called repeatedly.
+     */
+    public void close() {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        _buffer = null;
+        BufferPool.release(_array);
+        _array = null;
+        if (_source != null) {
+            if (_source.hasArray()) {
+                Arrays.fill(_source.array(), _source.arrayOffset(), _source.arrayOffset() + _source.limit(), (byte) 0);
+            } else {
+                for (int i = 0; i < _source.limit(); i++) {
+                    _source.put(i, (byte) 0);
+                }
+            }
+        }
+    }
+
+    private void checkInField() {
+        checkNotClosed();
+        if (_tag == 0) {
+            throw new IllegalStateException("No current field");
+        }
+    }
+
+    private int checkedFieldLength() {
+        checkInField();
+        long length = _fieldEnd - position();
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Field too long");
+        }
+        return (int) length;
+    }
+
+    private long position() {
+        return _loaded - _buffer.remaining();
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) {
+                throw new RecordFormatException("Invalid field length");
+            }
+            int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private long readRawLong() throws IOException {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (readByte() & 0xff);
+        }
+        return value;
+    }
+
+    private byte readByte() throws IOException {
+        if (!_buffer.hasRemaining()) {
+            fill();
+        }
+        return _buffer.get();
+    }
+
+    /**
+     * Refill the empty buffer from the stream, reading no further than the end of the root record
+     */
+    private void fill() throws IOException {
+        assert (!_buffer.hasRemaining());
+        long max = _streamLimit - _loaded;
+        if (_input == null || max == 0) {
+            throw new EOFException("Unexpected end of data");
+        }
+        if (_inPlace != null) {
+            ByteBuffer view = _inPlace.readBuffer((int) Math.min(Integer.MAX_VALUE, max));
+            if (view == null) {
+                throw new EOFException("Unexpected end of data");
+            }
+            _buffer = view;
+        } else {
+            Arrays.fill(_array, 0, _buffer.limit(), (byte) 0);
+            _buffer = EMPTY_BUFFER;
+            int read = _input.read(_array, 0, (int) Math.min(BUFFER_LENGTH, max));
+            if (read == -1) {
+                throw new EOFException("Unexpected end of data");
+            }
+            _buffer = ByteBuffer.wrap(_array, 0, read);
+        }
+        _loaded += _buffer.remaining();
+    }
+
+    /**
+     * Read the rest of the array from the stream, once the buffer is empty
+     */
+    private void readFromInput(byte[] b, int offset) throws IOException {
+        assert (!_buffer.hasRemaining());
+        while (offset < b.length) {
+            int read = _input.read(b, offset, b.length - offset);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of data");
+            }
+            offset += read;
+            _loaded += read;
+        }
+    }
+
+    /**
+     * Thrown if the data is not valid in the record format
+     */
+    public static final class RecordFormatException extends IOException {
+        /**
+         * serialVersionUID for this class.
+         */
+        private static final long serialVersionUID = 8211358306412693522L;
+
+        public RecordFormatException(final String message) {
+            super(message);
+        }
+    }
+}
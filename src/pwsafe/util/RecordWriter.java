@@ -0,0 +1,321 @@
+package pwsafe.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Writes the compact tag-length-value record format, a faster and smaller alternative to Java serialization for
+ * the password store entries. Read it with {@link RecordReader}.
+ * <p>
+ * The format is:
+ * <ul>
+ * <li>{@link #MAGIC}, which cannot be mistaken for the start of a Java serialization stream (0xACED),
+ *     then the {@link #FORMAT_VERSION} byte</li>
+ * <li>the length of the root record, then the root record</li>
+ * </ul>
+ * A record is a sequence of fields, each a tag byte (1 to 255), the length of the value, and the value.
+ * Lengths are unsigned base-128 varints, least significant group first. Values are:
+ * <ul>
+ * <li>strings and char arrays: UTF-8 (unpaired surrogates are encoded as if they were characters)</li>
+ * <li>dates: the time in milliseconds since 1970, as 8 bytes big-endian</li>
+ * <li>longs: 8 bytes big-endian</li>
+ * <li>byte arrays: as they are</li>
+ * <li>nested records: as above</li>
+ * </ul>
+ * Each class defines the meaning of the tags in its own records. A field may be repeated to make a list.
+ * Readers skip fields with tags they do not know.
+ * <p>
+ * Since record lengths are written before their fields, callers use the <code>*FieldLength</code> methods to
+ * total up the length of a record before writing it.
+ * <p>
+ * Output is buffered in an array which is zeroed whenever it is written out, so no plaintext is left behind.
+ * The array comes from {@link BufferPool}, and is returned to it by {@link #close()}.
+ *
+ * @author Nick Clarke
+ */
+public final class RecordWriter {
+
+    /**
+     * The first bytes of the format ("PW")
+     */
+    public static final byte[] MAGIC = {0x50, 0x57};
+
+    /**
+     * Follows the magic bytes.
+     * Increment this when changing the format in a way old readers could not handle, and update
+     * {@link RecordReader#readHeader()} to handle the new and old versions.
+     */
+    public static final byte FORMAT_VERSION = 0x1;
+
+    private static final int BUFFER_LENGTH = 8192;
+    private static final int DATE_LENGTH = 8;
+    private static final int LONG_LENGTH = 8;
+
+    private final OutputStream _output;
+    private byte[] _buffer = BufferPool.acquire(BUFFER_LENGTH);
+    private int _position = 0;
+
+    /**
+     * Construct a RecordWriter
+     *
+     * @param output the stream to write to, must not be null. It is not closed by this RecordWriter.
+     * @throws IllegalArgumentException if output is null
+     */
+    public RecordWriter(final OutputStream output) {
+        if (output == null) {
+            throw new IllegalArgumentException("output must not be null");
+        }
+        _output = output;
+    }
+
+    /**
+     * @throws IllegalStateException if {@link #close()} has already been called
+     */
+    private void checkNotClosed() {
+        if (_buffer == null) {
+            throw new IllegalStateException("close() has already been called");
+        }
+    }
+
+    /**
+     * Write the magic bytes and format version, and start the root record.
+     *
+     * @param rootRecordLength the total length of the fields in the root record, must be >= 0
+     */
+    public void writeHeader(int rootRecordLength) throws IOException {
+        checkNotClosed();
+        writeRaw(MAGIC, 0, MAGIC.length);
+        writeByte(FORMAT_VERSION);
+        writeVarint(rootRecordLength);
+    }
+
+    /**
+     * Start a nested record field; its fields must be written next.
+     *
+     * @param recordLength the total length of the fields in the nested record, must be >= 0
+     */
+    public void writeRecordStart(int tag, int recordLength) throws IOException {
+        writeFieldStart(tag, recordLength);
+    }
+
+    /**
+     * @param tag the field tag, from 1 to 255
+     * @param value the string to write, must not be null
+     */
+    public void writeString(int tag, String value) throws IOException {
+        writeChars(tag, value);
+    }
+
+    /**
+     * Write a char array, such as a password, without making a String of it.
+     *
+     * @param tag the field tag, from 1 to 255
+     * @param value the chars to write, must not be null
+     */
+    public void writeChars(int tag, char[] value) throws IOException {
+        writeChars(tag, CharBuffer.wrap(value));
+    }
+
+    private void writeChars(int tag, CharSequence value) throws IOException {
+        writeFieldStart(tag, utf8Length(value));
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (_position > BUFFER_LENGTH - 4) {
+                flushBuffer();
+            }
+            if (c < 0x80) {
+                _buffer[_position++] = (byte) c;
+            } else if (c < 0x800) {
+                _buffer[_position++] = (byte) (0xc0 | (c >> 6));
+                _buffer[_position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (isSurrogatePair(value, i)) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                _buffer[_position++] = (byte) (0xf0 | (codePoint >> 18));
+                _buffer[_position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                _buffer[_position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                _buffer[_position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                _buffer[_position++] = (byte) (0xe0 | (c >> 12));
+                _buffer[_position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                _buffer[_position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * @param tag the field tag, from 1 to 255
+     * @param value the bytes to write, must not be null
+     */
+    public void writeBytes(int tag, byte[] value) throws IOException {
+        writeFieldStart(tag, value.length);
+        writeRaw(value, 0, value.length);
+    }
+
+    /**
+     * @param tag the field tag, from 1 to 255
+     * @param value the date to write, must not be null
+     */
+    public void writeDate(int tag, Date value) throws IOException {
+        writeFieldStart(tag, DATE_LENGTH);
+        writeRawLong(value.getTime());
+    }
+
+    /**
+     * @param tag the field tag, from 1 to 255
+     * @param value the number to write
+     */
+    public void writeLong(int tag, long value) throws IOException {
+        writeFieldStart(tag, LONG_LENGTH);
+        writeRawLong(value);
+    }
+
+    /**
+     * Write out any buffered data and zero the buffer. The underlying stream is flushed too.
+     */
+    public void flush() throws IOException {
+        checkNotClosed();
+        flushBuffer();
+        _output.flush();
+    }
+
+    /**
+     * Write out any buffered data, and zero and discard the buffer. The underlying stream is left open.
+     * This method can safely be called repeatedly.
+     */
+    public void close() throws IOException {
+        if (_buffer == null) {
+            return;
+        }
+        try {
+            flushBuffer();
+        } finally {
+            BufferPool.release(_buffer);
+            _buffer = null;
+        }
+    }
+
+    /**
+     * @return the length of a nested record field whose fields total recordLength
+     */
+    public static int recordFieldLength(int recordLength) {
+        return fieldLength(recordLength);
+    }
+
+    public static int stringFieldLength(String value) {
+        return fieldLength(utf8Length(value));
+    }
+
+    public static int charsFieldLength(char[] value) {
+        return fieldLength(utf8Length(CharBuffer.wrap(value)));
+    }
+
+    public static int bytesFieldLength(byte[] value) {
+        return fieldLength(value.length);
+    }
+
+    public static int dateFieldLength() {
+        return fieldLength(DATE_LENGTH);
+    }
+
+    public static int longFieldLength() {
+        return fieldLength(LONG_LENGTH);
+    }
+
+    private static int fieldLength(int valueLength) {
+        return 1 + varintLength(valueLength) + valueLength;
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    private static int utf8Length(CharSequence value) {
+        int length = value.length();
+        int utf8Length = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                utf8Length += 1;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (isSurrogatePair(value, i)) {
+                utf8Length += 4;
+                i++;
+            } else {
+                utf8Length += 3;
+            }
+        }
+        return utf8Length;
+    }
+
+    private static boolean isSurrogatePair(CharSequence value, int i) {
+        return Character.isHighSurrogate(value.charAt(i))
+                && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1));
+    }
+
+    private void writeFieldStart(int tag, int valueLength) throws IOException {
+        checkNotClosed();
+        if (tag < 1 || tag > 255) {
+            throw new IllegalArgumentException("tag must be from 1 to 255");
+        }
+        writeByte((byte) tag);
+        writeVarint(valueLength);
+    }
+
+    private void writeVarint(int value) throws IOException {
+        if (value < 0) {
+            throw new IllegalArgumentException("length must be >= 0");
+        }
+        while ((value & ~0x7f) != 0) {
+            writeByte((byte) (0x80 | (value & 0x7f)));
+            value >>>= 7;
+        }
+        writeByte((byte) value);
+    }
+
+    private void writeRawLong(long value) throws IOException {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            writeByte((byte) (value >>> shift));
+        }
+    }
+
+    private void writeByte(byte b) throws IOException {
+        if (_position == BUFFER_LENGTH) {
+            flushBuffer();
+        }
+        _buffer[_position++] = b;
+    }
+
+    private void writeRaw(byte[] b, int offset, int length) throws IOException {
+        if (length > BUFFER_LENGTH - _position) {
+            flushBuffer();
+            if (length > BUFFER_LENGTH) {
+                // Too big to be worth copying
+                _output.write(b, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(b, offset, _buffer, _position, length);
+        _position += length;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (_position == 0) {
+            return;
+        }
+        try {
+            _output.write(_buffer, 0, _position);
+        } finally {
+            Arrays.fill(_buffer, 0, _position, (byte) 0);
+            _position = 0;
+        }
+    }
+}
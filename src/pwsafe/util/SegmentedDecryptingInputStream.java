@@ -0,0 +1,265 @@
+package pwsafe.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decrypts and authenticates ciphertext in batches of segments, for {@link CryptoUtils#newDecryptingStream}.
+ * <p>
+ * Segments in a batch are decrypted in parallel (see {@link CryptoUtils#setParallelism(int)}).
+ * No plaintext from a batch is returned until every segment in it has been authenticated.
+ * The last segment is recognized by reaching the end of the underlying stream; since the last-segment flag is
+ * authenticated, truncation at a segment boundary causes authentication to fail.
+ * <p>
+ * The segment buffers come from {@link BufferPool}, and are returned to it when the stream is closed.
+ *
+ * @author Nick Clarke
+ */
+final class SegmentedDecryptingInputStream extends InputStream implements InPlaceReadable {
+
+    private final InputStream _input;
+    private final CipherSuite _suite;
+    private final byte[] _nonce;
+    private final byte[] _associatedData;
+    private final int _segmentLength;
+
+    private byte[] _key;
+    // Buffers for one batch of segments, allocated as needed
+    private byte[][] _encryptedSegments;
+    private int[] _encryptedSegmentLengths;
+    private byte[][] _segments;
+    private int[] _segmentLengths;
+    private int _segmentCount = 0; // the number of segments in the current batch
+    private int _currentSegment = 0; // the segment in the batch currently being returned
+    private int _segmentPosition = 0; // the position in the current segment
+    private long _segmentIndex = 0; // the position in the stream of the first segment in the next batch
+    private boolean _lastSegmentRead = false;
+    private int _lookahead = -1;
+
+    /**
+     * Construct a SegmentedDecryptingInputStream
+     * <p>
+     * <b>IMPORTANT:</b> this stores a reference to the supplied key, it does not make a copy.
+     * This stream assumes responsibility for clearing the key when closed.
+     *
+     * @param input the stream to read encrypted segments from, after the preamble has already been read
+     * @param suite the cipher suite to use
+     * @param key the hashed or derived decryption key
+     * @param nonce the base nonce from the preamble
+     * @param associatedData the authenticated part of the preamble
+     * @param segmentLength the number of plaintext bytes per segment
+     * @param batchSize the number of segments to read ahead and decrypt in parallel
+     */
+    SegmentedDecryptingInputStream(final InputStream input, final CipherSuite suite, final byte[] key, final byte[] nonce,
+            final byte[] associatedData, final int segmentLength, final int batchSize) {
+        _input = input;
+        _suite = suite;
+        _key = key;
+        _nonce = nonce;
+        _associatedData = associatedData;
+        _segmentLength = segmentLength;
+        _encryptedSegments = new byte[batchSize][];
+        _encryptedSegmentLengths = new int[batchSize];
+        _segments = new byte[batchSize][];
+        _segmentLengths = new int[batchSize];
+    }
+
+    /**
+     * @throws IOException if the stream has already been closed
+     */
+    private void checkNotClosed() throws IOException {
+        if (_key == null) {
+            throw new IOException("Stream already closed");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return (read == -1) ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        checkNotClosed();
+        if (len == 0) {
+            return 0;
+        }
+        if (!findUnreadData()) {
+            return -1;
+        }
+        int count = Math.min(len, currentSegmentLength() - _segmentPosition);
+        System.arraycopy(_segments[_currentSegment], _segmentPosition, b, off, count);
+        _segmentPosition += count;
+        return count;
+    }
+
+    /**
+     * Read in place from the decrypted segment buffer, see {@link InPlaceReadable#readBuffer(int)}
+     */
+    public ByteBuffer readBuffer(int maxLength) throws IOException {
+        if (maxLength <= 0) {
+            throw new IllegalArgumentException("maxLength must be > 0");
+        }
+        checkNotClosed();
+        if (!findUnreadData()) {
+            return null;
+        }
+        int count = Math.min(maxLength, currentSegmentLength() - _segmentPosition);
+        ByteBuffer view = ByteBuffer.wrap(_segments[_currentSegment], _segmentPosition, count).slice();
+        _segmentPosition += count;
+        return view.asReadOnlyBuffer();
+    }
+
+    /**
+     * Move on to the next segment with unread data, decrypting another batch if necessary
+     *
+     * @return false at the end of the stream
+     */
+    private boolean findUnreadData() throws IOException {
+        while (_segmentPosition == currentSegmentLength()) {
+            if (_currentSegment + 1 < _segmentCount) {
+                _currentSegment++;
+                _segmentPosition = 0;
+            } else if (_lastSegmentRead) {
+                return false;
+            } else {
+                readSegments();
+            }
+        }
+        return true;
+    }
+
+    private int currentSegmentLength() {
+        return (_segmentCount == 0) ? 0 : _segmentLengths[_currentSegment];
+    }
+
+    @Override
+    public int available() throws IOException {
+        checkNotClosed();
+        return currentSegmentLength() - _segmentPosition;
+    }
+
+    /**
+     * Read and decrypt the next batch of segments
+     */
+    private void readSegments() throws IOException {
+        clearSegments();
+        int segmentCount = 0;
+        boolean lastSegment = false;
+        while (segmentCount < _encryptedSegments.length && !lastSegment) {
+            lastSegment = readEncryptedSegment(segmentCount);
+            if (_segments[segmentCount] == null) {
+                _segments[segmentCount] = BufferPool.acquire(_segmentLength);
+            }
+            segmentCount++;
+        }
+        try {
+            CryptoUtils.processSegments(_suite, false, _key, _nonce, _associatedData, _segmentIndex, lastSegment,
+                    _encryptedSegments, _encryptedSegmentLengths, _segments, _segmentLengths, segmentCount);
+        } catch (CryptoUtils.CryptoException e) {
+            // Discard anything written to the buffers before authentication failed
+            clearSegments();
+            IOException ioe = new IOException("Decryption failed");
+            ioe.initCause(e);
+            throw ioe;
+        }
+        _segmentCount = segmentCount;
+        _segmentIndex += segmentCount;
+        _lastSegmentRead = lastSegment;
+    }
+
+    /**
+     * Read a full encrypted segment, or as much as is left, into the specified buffer in the batch
+     *
+     * @return true if this is the last segment in the stream
+     */
+    private boolean readEncryptedSegment(int segment) throws IOException {
+        if (_encryptedSegments[segment] == null) {
+            _encryptedSegments[segment] = BufferPool.acquire(CryptoUtils.getEncryptedSegmentLength(_segmentLength));
+        }
+        byte[] encryptedSegment = _encryptedSegments[segment];
+        int length = 0;
+        if (_lookahead != -1) {
+            encryptedSegment[length++] = (byte) _lookahead;
+            _lookahead = -1;
+        }
+        while (length < encryptedSegment.length) {
+            int read = _input.read(encryptedSegment, length, encryptedSegment.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        if (length < CryptoUtils.getEncryptedSegmentLength(0)) {
+            throw new IOException("Encrypted data truncated in segment " + (_segmentIndex + segment));
+        }
+        _encryptedSegmentLengths[segment] = length;
+        // It is the last segment if we have reached the end of the input
+        if (length < encryptedSegment.length) {
+            return true;
+        }
+        _lookahead = _input.read();
+        return (_lookahead == -1);
+    }
+
+    /**
+     * Zero any plaintext from the current batch
+     */
+    private void clearSegments() {
+        for (int i = 0; i < _segments.length; i++) {
+            if (_segments[i] != null) {
+                Arrays.fill(_segments[i], (byte) 0);
+            }
+            _segmentLengths[i] = 0;
+        }
+        _segmentCount = 0;
+        _currentSegment = 0;
+        _segmentPosition = 0;
+    }
+
+    /**
+     * Zero the key and any buffered plaintext, and close the underlying stream.
+     * This method can safely be called repeatedly.
+     */
+    @Override
+    public void close() throws IOException {
+        if (_key == null) {
+            return;
+        }
+        try {
+            _input.close();
+        } finally {
+            destroySecrets();
+        }
+    }
+
+    private void destroySecrets() {
+        if (_key != null) {
+            Arrays.fill(_key, (byte) 0);
+            _key = null;
+        }
+        if (_segments != null) {
+            clearSegments();
+            for (byte[] segment : _segments) {
+                BufferPool.release(segment);
+            }
+            _segments = null;
+        }
+        if (_encryptedSegments != null) {
+            for (byte[] encryptedSegment : _encryptedSegments) {
+                BufferPool.release(encryptedSegment);
+            }
+            _encryptedSegments = null;
+        }
+    }
+}
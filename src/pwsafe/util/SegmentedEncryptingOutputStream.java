@@ -0,0 +1,184 @@
+package pwsafe.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Encrypts plaintext in batches of fixed-length segments, for {@link CryptoUtils#newEncryptingStream}.
+ * <p>
+ * Segments in a batch are encrypted in parallel (see {@link CryptoUtils#setParallelism(int)}).
+ * A full batch is only written out once more data arrives for the following segment, so that the final segment
+ * (which may be full or partial, or empty if there was no data at all) can be marked as such when the stream is
+ * closed.
+ * <p>
+ * The segment buffers come from {@link BufferPool}, and are returned to it when the stream is closed.
+ *
+ * @author Nick Clarke
+ */
+final class SegmentedEncryptingOutputStream extends OutputStream {
+
+    private final OutputStream _output;
+    private final CipherSuite _suite;
+    private final byte[] _nonce;
+    private final byte[] _associatedData;
+    private final int _segmentLength;
+
+    private byte[] _key;
+    // Buffers for one batch of segments, allocated as needed
+    private byte[][] _segments;
+    private int[] _segmentLengths;
+    private byte[][] _encryptedSegments;
+    private int[] _encryptedSegmentLengths;
+    private int _currentSegment = 0; // the segment in the batch currently being filled
+    private long _segmentIndex = 0; // the position in the stream of the first segment in the batch
+
+    /**
+     * Construct a SegmentedEncryptingOutputStream
+     * <p>
+     * <b>IMPORTANT:</b> this stores a reference to the supplied key, it does not make a copy.
+     * This stream assumes responsibility for clearing the key when closed.
+     *
+     * @param output the stream to write encrypted segments to, after the preamble has already been written
+     * @param suite the cipher suite to use
+     * @param key the hashed or derived encryption key
+     * @param nonce the base nonce from the preamble
+     * @param associatedData the authenticated part of the preamble
+     * @param segmentLength the number of plaintext bytes per segment
+     * @param batchSize the number of segments to buffer and encrypt in parallel
+     */
+    SegmentedEncryptingOutputStream(final OutputStream output, final CipherSuite suite, final byte[] key, final byte[] nonce,
+            final byte[] associatedData, final int segmentLength, final int batchSize) {
+        _output = output;
+        _suite = suite;
+        _key = key;
+        _nonce = nonce;
+        _associatedData = associatedData;
+        _segmentLength = segmentLength;
+        _segments = new byte[batchSize][];
+        _segmentLengths = new int[batchSize];
+        _encryptedSegments = new byte[batchSize][];
+        _encryptedSegmentLengths = new int[batchSize];
+    }
+
+    /**
+     * @throws IOException if the stream has already been closed
+     */
+    private void checkNotClosed() throws IOException {
+        if (_key == null) {
+            throw new IOException("Stream already closed");
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        checkNotClosed();
+        while (len > 0) {
+            if (_segmentLengths[_currentSegment] == _segmentLength) {
+                // More data is coming, so the segments buffered so far are not the last one
+                if (_currentSegment == _segments.length - 1) {
+                    writeSegments(false);
+                } else {
+                    _currentSegment++;
+                }
+            }
+            if (_segments[_currentSegment] == null) {
+                _segments[_currentSegment] = BufferPool.acquire(_segmentLength);
+            }
+            int count = Math.min(len, _segmentLength - _segmentLengths[_currentSegment]);
+            System.arraycopy(b, off, _segments[_currentSegment], _segmentLengths[_currentSegment], count);
+            _segmentLengths[_currentSegment] += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    private void writeSegments(boolean lastBatch) throws IOException {
+        int segmentCount = _currentSegment + 1;
+        for (int i = 0; i < segmentCount; i++) {
+            if (_segments[i] == null) {
+                // Only happens for a final empty segment
+                _segments[i] = new byte[0];
+            }
+            if (_encryptedSegments[i] == null) {
+                _encryptedSegments[i] = BufferPool.acquire(CryptoUtils.getEncryptedSegmentLength(_segmentLength));
+            }
+        }
+        try {
+            CryptoUtils.processSegments(_suite, true, _key, _nonce, _associatedData, _segmentIndex, lastBatch,
+                    _segments, _segmentLengths, _encryptedSegments, _encryptedSegmentLengths, segmentCount);
+        } catch (CryptoUtils.CryptoException e) {
+            IOException ioe = new IOException("Encryption failed");
+            ioe.initCause(e);
+            throw ioe;
+        } finally {
+            // Don't leave plaintext lying around in the buffers
+            for (int i = 0; i < segmentCount; i++) {
+                Arrays.fill(_segments[i], 0, _segmentLengths[i], (byte) 0);
+                _segmentLengths[i] = 0;
+            }
+            _currentSegment = 0;
+        }
+        for (int i = 0; i < segmentCount; i++) {
+            _output.write(_encryptedSegments[i], 0, _encryptedSegmentLengths[i]);
+        }
+        _segmentIndex += segmentCount;
+    }
+
+    /**
+     * Does nothing except flush the underlying stream: segments cannot be written until the batch is full or the
+     * stream is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkNotClosed();
+        _output.flush();
+    }
+
+    /**
+     * Encrypt and write the final batch of segments, zero the key and any buffered plaintext, and close the
+     * underlying stream. This method can safely be called repeatedly.
+     */
+    @Override
+    public void close() throws IOException {
+        if (_key == null) {
+            return;
+        }
+        try {
+            writeSegments(true);
+            _output.close();
+        } finally {
+            destroySecrets();
+        }
+    }
+
+    private void destroySecrets() {
+        if (_key != null) {
+            Arrays.fill(_key, (byte) 0);
+            _key = null;
+        }
+        if (_segments != null) {
+            for (byte[] segment : _segments) {
+                BufferPool.release(segment);
+            }
+            _segments = null;
+        }
+        if (_encryptedSegments != null) {
+            for (byte[] encryptedSegment : _encryptedSegments) {
+                BufferPool.release(encryptedSegment);
+            }
+            _encryptedSegments = null;
+        }
+    }
+}
@@ -1,10 +1,11 @@
 package pwsafe.util;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 
 /**
@@ -38,21 +39,38 @@ public final class SerializationUtils {
         if (data.length == 0) {
             throw new IllegalArgumentException("data must not be zero length");
         }
-        ObjectInputStream stream = null;
+        return deserialize(new ByteArrayInputStream(data), clazz);
+    }
+
+    /**
+     * Deserialize a single object from a stream.
+     * <p>
+     * This reads only as far as the end of the object's serialized representation; the stream is left open.
+     *
+     * @param input the stream containing the serialized representation (from ObjectOutputStream), must not be null
+     * @param clazz the expected class of the deserialized object, must not be null
+     * @return the deserialized object - a new copy for each call
+     * @throws IllegalArgumentException if input or clazz is null
+     * @throws SerializationException if reading or deserialization fails,
+     *         or the deserialized object cannot be cast to clazz
+     */
+    public static <T extends Serializable> T deserialize(InputStream input, Class<T> clazz)
+            throws SerializationException {
+        if (input == null) {
+            throw new IllegalArgumentException("input must not be null");
+        }
+        if (clazz == null) {
+            throw new IllegalArgumentException("clazz must not be null");
+        }
         Object deserialized;
         try {
-            stream = new ObjectInputStream(new ByteArrayInputStream(data));
+            // Not closed here, that would close the input stream
+            ObjectInputStream stream = new ObjectInputStream(input);
             deserialized = stream.readObject();
         } catch (IOException e) {
             throw new SerializationException("Deserialization failed", e);
         } catch (ClassNotFoundException e) {
             throw new SerializationException("Deserialization failed", e);
-        } finally {
-            if (stream != null) {
-                try {
-                    stream.close();
-                } catch (IOException ignored) {}
-            }
         }
         try {
             return clazz.cast(deserialized);
@@ -72,10 +90,25 @@ public final class SerializationUtils {
      * @throws SerializationException if serialization fails
      */
     public static byte[] serialize(Serializable object) throws SerializationException {
+        return serialize(object, 0);
+    }
+
+    /**
+     * Serialize a single object to a byte array, with a hint of how long the result will be, such as its length
+     * the last time the same object was serialized. With a good hint the result is copied only once, and no
+     * discarded copies are left unzeroed (see {@link ZeroingByteArrayOutputStream}).
+     *
+     * @param object the object to serialize, must not be null
+     * @param sizeHint the expected length of the result, or 0 if unknown
+     * @return the serialized representation (from ObjectOutputStream), never null or empty
+     * @throws IllegalArgumentException if object is null
+     * @throws SerializationException if serialization fails
+     */
+    public static byte[] serialize(Serializable object, int sizeHint) throws SerializationException {
         if (object == null) {
             throw new IllegalArgumentException("object must not be null");
         }
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ZeroingByteArrayOutputStream output = new ZeroingByteArrayOutputStream(sizeHint);
         ObjectOutputStream stream = null;
         try {
             stream = new ObjectOutputStream(output);
@@ -91,7 +124,34 @@ public final class SerializationUtils {
                 } catch (IOException ignored) {}
             }
         }
-        return output.toByteArray();
+        return output.takeByteArray();
+    }
+
+    /**
+     * Serialize a single object to a stream.
+     * <p>
+     * The serialized representation is flushed to the stream, but the stream is left open.
+     *
+     * @param object the object to serialize, must not be null
+     * @param output the stream to write the serialized representation (from ObjectOutputStream) to, must not be null
+     * @throws IllegalArgumentException if object or output is null
+     * @throws SerializationException if serialization or writing fails
+     */
+    public static void serialize(Serializable object, OutputStream output) throws SerializationException {
+        if (object == null) {
+            throw new IllegalArgumentException("object must not be null");
+        }
+        if (output == null) {
+            throw new IllegalArgumentException("output must not be null");
+        }
+        try {
+            // Not closed here, that would close the output stream
+            ObjectOutputStream stream = new ObjectOutputStream(output);
+            stream.writeObject(object);
+            stream.flush();
+        } catch (IOException e) {
+            throw new SerializationException("Serialization failed", e);
+        }
     }
 
     public static final class SerializationException extends Exception {
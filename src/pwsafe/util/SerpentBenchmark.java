@@ -0,0 +1,101 @@
+package pwsafe.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.SerpentEngine;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.crypto.modes.EAXBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * Compares the throughput of {@link BitslicedSerpentEngine} and {@link SerpentEAXCipher} with the BouncyCastle
+ * SerpentEngine and EAXBlockCipher they replace. Run with 'ant benchmark'.
+ * <p>
+ * Each test processes segment-sized buffers of zeros; the first few passes let HotSpot compile everything.
+ * Pipelined EAX can only be faster than SerpentEAXCipher on a single thread if there is more than one core.
+ *
+ * @author Nick Clarke
+ */
+final class SerpentBenchmark {
+
+    private static final int KEY_LENGTH_BYTES = 32;
+    private static final int BLOCK_SIZE = 16;
+    private static final int BUFFER_LENGTH = 64 * 1024;
+    private static final int BUFFERS_PER_PASS = 160; // 10MB
+    private static final int PASSES = 5;
+    private static final int MAC_LENGTH_BYTES = 16;
+
+    private SerpentBenchmark() {
+        // static methods only
+    }
+
+    public static void main(String[] args) throws InvalidCipherTextException, InterruptedException {
+        // Pipelined EAX needs one thread besides this one
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        byte[] key = new byte[KEY_LENGTH_BYTES];
+        byte[] nonce = new byte[KEY_LENGTH_BYTES];
+        byte[] associatedData = new byte[1];
+        byte[] input = new byte[BUFFER_LENGTH];
+        byte[] output = new byte[BUFFER_LENGTH + MAC_LENGTH_BYTES];
+        int blockCount = BUFFER_LENGTH / BLOCK_SIZE;
+
+        for (int pass = 1; pass <= PASSES; pass++) {
+            long start = System.nanoTime();
+            SerpentEngine engine = new SerpentEngine();
+            engine.init(true, new KeyParameter(key));
+            for (int i = 0; i < BUFFERS_PER_PASS; i++) {
+                for (int block = 0; block < blockCount; block++) {
+                    engine.processBlock(input, block * BLOCK_SIZE, output, block * BLOCK_SIZE);
+                }
+            }
+            long engineTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            BitslicedSerpentEngine bitslicedEngine = new BitslicedSerpentEngine();
+            bitslicedEngine.init(true, new KeyParameter(key));
+            for (int i = 0; i < BUFFERS_PER_PASS; i++) {
+                bitslicedEngine.processBlocks(input, 0, output, 0, blockCount);
+            }
+            long bitslicedEngineTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < BUFFERS_PER_PASS; i++) {
+                AEADBlockCipher cipher = new EAXBlockCipher(new SerpentEngine());
+                cipher.init(true, new AEADParameters(new KeyParameter(key), MAC_LENGTH_BYTES * Byte.SIZE,
+                                                     nonce, associatedData));
+                int length = cipher.processBytes(input, 0, input.length, output, 0);
+                cipher.doFinal(output, length);
+            }
+            long eaxTime = System.nanoTime() - start;
+
+            long bulkEaxTime = timeSerpentEAXCipher(null, key, nonce, associatedData, input, output);
+            long pipelinedEaxTime = timeSerpentEAXCipher(executor, key, nonce, associatedData, input, output);
+
+            System.out.println("Pass " + pass + ": SerpentEngine " + throughput(engineTime)
+                    + ", BitslicedSerpentEngine " + throughput(bitslicedEngineTime)
+                    + ", EAXBlockCipher " + throughput(eaxTime)
+                    + ", SerpentEAXCipher " + throughput(bulkEaxTime)
+                    + ", pipelined " + throughput(pipelinedEaxTime));
+        }
+        executor.shutdown();
+    }
+
+    private static long timeSerpentEAXCipher(ExecutorService executor, byte[] key, byte[] nonce,
+            byte[] associatedData, byte[] input, byte[] output) throws InvalidCipherTextException,
+            InterruptedException {
+        long start = System.nanoTime();
+        for (int i = 0; i < BUFFERS_PER_PASS; i++) {
+            SerpentEAXCipher.process(executor, true, key, MAC_LENGTH_BYTES, nonce, associatedData,
+                                     input, 0, input.length, output, 0);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static String throughput(long nanos) {
+        long bytes = (long) BUFFER_LENGTH * BUFFERS_PER_PASS;
+        return (bytes * 1000L / Math.max(nanos, 1L)) + " MB/s";
+    }
+}
@@ -0,0 +1,358 @@
+package pwsafe.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.macs.CMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * Serpent in EAX mode, for data which is encrypted or decrypted in one piece.
+ * <p>
+ * The output is identical to BouncyCastle's EAXBlockCipher with a SerpentEngine, but the CTR keystream is generated
+ * many blocks at a time with {@link BitslicedSerpentEngine#processBlocks}, instead of a block at a time through
+ * SICBlockCipher. The OMAC half of EAX is a chain, so has to be computed one block at a time.
+ * <p>
+ * Given an executor, large inputs are pipelined: CTR runs on a thread from the executor while OMAC runs on the
+ * calling thread, so the two halves take about the same time in parallel. When encrypting, the CTR thread hands
+ * completed chunks of ciphertext to the OMAC thread through a bounded queue. When decrypting, OMAC reads the
+ * ciphertext directly, so the halves are independent.
+ * <p>
+ * Decryption never leaves plaintext in the output if authentication fails: it is either not written (on the calling
+ * thread, the tag is checked first) or zeroed again before the exception is thrown (when pipelined).
+ *
+ * @author Nick Clarke
+ */
+final class SerpentEAXCipher {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int KEYSTREAM_BLOCKS = 64; // blocks of keystream generated per batch
+    private static final int PIPELINE_CHUNK_LENGTH = 4 * KEYSTREAM_BLOCKS * BLOCK_SIZE; // bytes per hand-off
+    private static final int PIPELINE_QUEUE_LENGTH = 16; // chunks the CTR thread can get ahead by
+    private static final int MIN_PIPELINED_LENGTH = 4 * PIPELINE_CHUNK_LENGTH; // not worth a thread below this
+    private static final long PIPELINE_POLL_MILLIS = 50;
+    private static final byte NONCE_TAG = 0;
+    private static final byte ASSOCIATED_DATA_TAG = 1;
+    private static final byte CIPHERTEXT_TAG = 2;
+
+    private SerpentEAXCipher() {
+        // static methods only
+    }
+
+    /**
+     * @param forEncryption true to encrypt, false to decrypt
+     * @param macLength the tag length in bytes, at most the block size
+     * @param inputLength the number of bytes to be processed
+     * @return the number of bytes {@link #process} will write
+     */
+    static int getOutputSize(boolean forEncryption, int macLength, int inputLength) {
+        return forEncryption ? inputLength + macLength : Math.max(0, inputLength - macLength);
+    }
+
+    /**
+     * Encrypt and append the tag, or verify the tag at the end of the input and decrypt.
+     *
+     * @param executor used to run CTR in parallel with OMAC for large inputs, or null to use the calling thread only.
+     *        It must have a thread free to run the task, not just queue it behind the caller.
+     *        When pipelined, input and output must not overlap for decryption.
+     * @param forEncryption true to encrypt, false to decrypt
+     * @param key the Serpent key
+     * @param macLength the tag length in bytes, at most the block size
+     * @param nonce the nonce, of any length
+     * @param associatedData data to be authenticated but not encrypted
+     * @return the number of bytes written to output, see {@link #getOutputSize}
+     * @throws InvalidCipherTextException if decryption fails authentication
+     * @throws InterruptedException if interrupted while waiting for the CTR thread
+     */
+    static int process(ExecutorService executor, boolean forEncryption, byte[] key, int macLength, byte[] nonce,
+            byte[] associatedData, byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset)
+            throws InvalidCipherTextException, InterruptedException {
+        if (macLength <= 0 || macLength > BLOCK_SIZE) {
+            throw new IllegalArgumentException("Invalid MAC length " + macLength);
+        }
+        if (!forEncryption && inputLength < macLength) {
+            throw new InvalidCipherTextException("data too short");
+        }
+        BitslicedSerpentEngine engine = new BitslicedSerpentEngine();
+        Mac mac = new CMac(engine);
+        // This also initializes the engine for encryption, which is all EAX needs
+        mac.init(new KeyParameter(key));
+
+        byte[] nonceMac = omac(mac, NONCE_TAG, nonce, 0, nonce.length);
+        byte[] associatedDataMac = omac(mac, ASSOCIATED_DATA_TAG, associatedData, 0, associatedData.length);
+        int dataLength = forEncryption ? inputLength : inputLength - macLength;
+
+        byte[] ciphertextMac;
+        if (executor != null && dataLength >= MIN_PIPELINED_LENGTH) {
+            // The CTR thread needs its own engine, as they are not thread-safe
+            BitslicedSerpentEngine ctrEngine = new BitslicedSerpentEngine();
+            ctrEngine.init(true, new KeyParameter(key));
+            ciphertextMac = processPipelined(executor, forEncryption, ctrEngine, mac, nonceMac,
+                    input, inputOffset, dataLength, output, outputOffset);
+        } else if (forEncryption) {
+            ctr(engine, nonceMac, input, inputOffset, dataLength, output, outputOffset);
+            ciphertextMac = omac(mac, CIPHERTEXT_TAG, output, outputOffset, dataLength);
+        } else {
+            ciphertextMac = omac(mac, CIPHERTEXT_TAG, input, inputOffset, dataLength);
+        }
+
+        byte[] tag = new byte[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            tag[i] = (byte) (nonceMac[i] ^ associatedDataMac[i] ^ ciphertextMac[i]);
+        }
+
+        if (forEncryption) {
+            System.arraycopy(tag, 0, output, outputOffset + dataLength, macLength);
+            return dataLength + macLength;
+        }
+        // Compare every byte, so the time taken doesn't reveal how much of the tag matched
+        int difference = 0;
+        for (int i = 0; i < macLength; i++) {
+            difference |= tag[i] ^ input[inputOffset + dataLength + i];
+        }
+        if (difference != 0) {
+            // Plaintext has only been written if pipelined
+            Arrays.fill(output, outputOffset, outputOffset + dataLength, (byte) 0);
+            throw new InvalidCipherTextException("mac check in EAX failed");
+        }
+        if (executor == null || dataLength < MIN_PIPELINED_LENGTH) {
+            ctr(engine, nonceMac, input, inputOffset, dataLength, output, outputOffset);
+        }
+        return dataLength;
+    }
+
+    /**
+     * Run CTR on a thread from the executor, and OMAC over the ciphertext on this thread.
+     * Does not return until the CTR thread has finished, even if this thread fails.
+     *
+     * @return the ciphertext OMAC
+     */
+    private static byte[] processPipelined(ExecutorService executor, boolean forEncryption,
+            BitslicedSerpentEngine ctrEngine, Mac mac, byte[] nonceMac, byte[] input, int inputOffset, int length,
+            byte[] output, int outputOffset) throws InterruptedException {
+        CtrTask task = new CtrTask(ctrEngine, nonceMac, input, inputOffset, length, output, outputOffset,
+                                   forEncryption);
+        Future<?> result = executor.submit(task);
+        boolean finished = false;
+        try {
+            byte[] ciphertextMac;
+            if (forEncryption) {
+                startOmac(mac, CIPHERTEXT_TAG);
+                int done = 0;
+                while (done < length) {
+                    int end = task.takeCompleted();
+                    if (end < 0) {
+                        // Throws whatever stopped it
+                        waitFor(result);
+                        throw new IllegalStateException("CTR thread stopped early");
+                    }
+                    mac.update(output, outputOffset + done, end - done);
+                    done = end;
+                }
+                ciphertextMac = finishOmac(mac);
+            } else {
+                ciphertextMac = omac(mac, CIPHERTEXT_TAG, input, inputOffset, length);
+            }
+            waitFor(result);
+            finished = true;
+            return ciphertextMac;
+        } finally {
+            if (!finished) {
+                // Don't let the task carry on writing into output after we have returned
+                task.abandon();
+                try {
+                    waitFor(result);
+                } catch (RuntimeException ignored) {}
+            }
+        }
+    }
+
+    private static void waitFor(Future<?> result) throws InterruptedException {
+        try {
+            result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException("Unexpected error in CTR thread", e.getCause());
+        }
+    }
+
+    /**
+     * OMAC with a tag: the CMAC of a block of zeros ending in the tag byte, followed by the data
+     */
+    private static byte[] omac(Mac mac, byte tag, byte[] data, int offset, int length) {
+        startOmac(mac, tag);
+        mac.update(data, offset, length);
+        return finishOmac(mac);
+    }
+
+    private static void startOmac(Mac mac, byte tag) {
+        byte[] tagBlock = new byte[BLOCK_SIZE];
+        tagBlock[BLOCK_SIZE - 1] = tag;
+        mac.update(tagBlock, 0, BLOCK_SIZE);
+    }
+
+    private static byte[] finishOmac(Mac mac) {
+        byte[] result = new byte[mac.getMacSize()];
+        mac.doFinal(result, 0);
+        return result;
+    }
+
+    /**
+     * XOR the data with the keystream from encrypting a big-endian 128-bit counter, starting at initialCounter.
+     * Input and output may be the same array region.
+     */
+    private static void ctr(BitslicedSerpentEngine engine, byte[] initialCounter, byte[] input, int inputOffset,
+            int length, byte[] output, int outputOffset) {
+        Ctr ctr = new Ctr(engine, initialCounter);
+        try {
+            ctr.process(input, inputOffset, length, output, outputOffset);
+        } finally {
+            ctr.destroySecrets();
+        }
+    }
+
+    /**
+     * CTR mode state: the counter, and buffers for generating the keystream a batch of blocks at a time
+     */
+    private static final class Ctr {
+        private final BitslicedSerpentEngine _engine;
+        private final byte[] _counter;
+        private final byte[] _counterBlocks = new byte[KEYSTREAM_BLOCKS * BLOCK_SIZE];
+        private final byte[] _keystream = new byte[KEYSTREAM_BLOCKS * BLOCK_SIZE];
+
+        Ctr(final BitslicedSerpentEngine engine, final byte[] initialCounter) {
+            _engine = engine;
+            _counter = initialCounter.clone();
+        }
+
+        /**
+         * XOR the data with the next length bytes of keystream. Length must be a multiple of the block size, except
+         * for the last call.
+         */
+        void process(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) {
+            for (int done = 0; done < length; done += _keystream.length) {
+                int count = Math.min(_keystream.length, length - done);
+                int blockCount = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+                for (int block = 0; block < blockCount; block++) {
+                    System.arraycopy(_counter, 0, _counterBlocks, block * BLOCK_SIZE, BLOCK_SIZE);
+                    increment(_counter);
+                }
+                _engine.processBlocks(_counterBlocks, 0, _keystream, 0, blockCount);
+                for (int i = 0; i < count; i++) {
+                    output[outputOffset + done + i] = (byte) (input[inputOffset + done + i] ^ _keystream[i]);
+                }
+            }
+        }
+
+        void destroySecrets() {
+            Arrays.fill(_keystream, (byte) 0);
+        }
+
+        private static void increment(byte[] counter) {
+            for (int i = counter.length - 1; i >= 0; i--) {
+                if (++counter[i] != 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs CTR over the data in chunks. When encrypting, the end offset of each completed chunk is passed to the
+     * OMAC thread through a bounded queue, which also stops the CTR thread getting too far ahead.
+     */
+    private static final class CtrTask implements Runnable {
+        private final Ctr _ctr;
+        private final byte[] _input;
+        private final int _inputOffset;
+        private final int _length;
+        private final byte[] _output;
+        private final int _outputOffset;
+        private final BlockingQueue<Integer> _completed; // null when decrypting
+        private volatile boolean _abandoned = false;
+        private volatile boolean _finished = false;
+
+        CtrTask(final BitslicedSerpentEngine engine, final byte[] initialCounter, final byte[] input,
+                final int inputOffset, final int length, final byte[] output, final int outputOffset,
+                final boolean forEncryption) {
+            _ctr = new Ctr(engine, initialCounter);
+            _input = input;
+            _inputOffset = inputOffset;
+            _length = length;
+            _output = output;
+            _outputOffset = outputOffset;
+            _completed = forEncryption ? new ArrayBlockingQueue<Integer>(PIPELINE_QUEUE_LENGTH) : null;
+        }
+
+        public void run() {
+            try {
+                for (int done = 0; done < _length && !_abandoned; done += PIPELINE_CHUNK_LENGTH) {
+                    int count = Math.min(PIPELINE_CHUNK_LENGTH, _length - done);
+                    _ctr.process(_input, _inputOffset + done, count, _output, _outputOffset + done);
+                    if (_completed != null && !publish(Integer.valueOf(done + count))) {
+                        break;
+                    }
+                }
+            } finally {
+                _ctr.destroySecrets();
+                _finished = true;
+            }
+        }
+
+        /**
+         * @return false if the OMAC thread has given up, or this thread was interrupted
+         */
+        private boolean publish(Integer end) {
+            try {
+                while (!_completed.offer(end, PIPELINE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (_abandoned) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Wait for the next chunk of ciphertext
+         *
+         * @return the end offset of the ciphertext completed so far, relative to the start of the data,
+         *         or -1 if the task has stopped without completing the rest
+         */
+        int takeCompleted() throws InterruptedException {
+            while (true) {
+                // Anything published before finishing will be in the queue by the time this is true
+                boolean finished = _finished;
+                Integer end = _completed.poll(PIPELINE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (end != null) {
+                    return end.intValue();
+                }
+                if (finished) {
+                    return -1;
+                }
+            }
+        }
+
+        /**
+         * Ask the task to stop as soon as possible, because the OMAC thread has failed
+         */
+        void abandon() {
+            _abandoned = true;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package pwsafe.util;
+
+/**
+ * Reads settings from system properties, falling back to a default (with a warning) when a value is invalid, so that
+ * a mistyped option doesn't stop the application starting.
+ *
+ * @author Nick Clarke
+ */
+public final class SystemProperties {
+
+    /**
+     * Converts a system property value to a setting
+     */
+    public interface Parser<T> {
+
+        /**
+         * @param value the system property value, with surrounding whitespace removed
+         * @return the setting, which may be null if the parser gives null a meaning (e.g. "off")
+         * @throws IllegalArgumentException if the value is invalid, with a message saying why if that isn't obvious
+         */
+        T parse(String value);
+    }
+
+    /**
+     * Static utility methods only, no instances
+     */
+    private SystemProperties() {}
+
+
+    /**
+     * Get a setting from a system property. If the property is set to a value the parser rejects, a warning
+     * is printed and the default is returned.
+     *
+     * @param name the name of the system property
+     * @param parser converts the property value to the setting
+     * @param defaultValue the setting to use if the property is not set or is invalid
+     * @return the setting
+     */
+    public static <T> T get(String name, Parser<T> parser, T defaultValue) {
+        String property = System.getProperty(name);
+        if (property == null) {
+            return defaultValue;
+        }
+        try {
+            return parser.parse(property.trim());
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException's message just repeats the value
+            String reason = (e instanceof NumberFormatException || e.getMessage() == null) ? "" : ": " + e.getMessage();
+            System.err.println("Ignoring invalid " + name + " system property value '" + property + "'" + reason);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get a positive integer setting from a system property, see {@link #get(String, Parser, Object)}
+     *
+     * @param name the name of the system property
+     * @param defaultValue the setting to use if the property is not set, or is not an integer > 0
+     * @return the setting
+     */
+    public static int getPositiveInt(String name, int defaultValue) {
+        return get(name, new Parser<Integer>() {
+                public Integer parse(String value) {
+                    int result = Integer.parseInt(value);
+                    if (result <= 0) {
+                        throw new IllegalArgumentException("must be > 0");
+                    }
+                    return Integer.valueOf(result);
+                }
+            }, Integer.valueOf(defaultValue)).intValue();
+    }
+}
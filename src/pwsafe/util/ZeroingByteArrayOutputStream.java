@@ -0,0 +1,86 @@
+package pwsafe.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * A ByteArrayOutputStream which zeroes every buffer it outgrows, and can hand over its contents without leaving
+ * a copy behind.
+ * <p>
+ * A plain ByteArrayOutputStream leaves a discarded copy of its contents each time it grows, and another in the
+ * stream after {@link #toByteArray()}. Given a good size hint, such as the length of the same data last time it was
+ * written, this stream never grows, and {@link #takeByteArray()} copies the data at most once.
+ *
+ * @author Nick Clarke
+ */
+public final class ZeroingByteArrayOutputStream extends ByteArrayOutputStream {
+
+    private static final int MIN_LENGTH = 32; // as for ByteArrayOutputStream
+    private static final int HEADROOM_DIVISOR = 16; // room for the data to grow by 1/16 over the size hint
+
+    /**
+     * Construct a ZeroingByteArrayOutputStream
+     *
+     * @param sizeHint the expected length of the data; the buffer starts a little longer, so the data can grow
+     *        a little without the buffer having to. Values <= 0 are ignored.
+     */
+    public ZeroingByteArrayOutputStream(final int sizeHint) {
+        super(Math.max(sizeHint + Math.min(sizeHint / HEADROOM_DIVISOR, Integer.MAX_VALUE - sizeHint), MIN_LENGTH));
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Zero the contents and discard them. The buffer is kept for reuse.
+     */
+    @Override
+    public synchronized void reset() {
+        Arrays.fill(buf, 0, count, (byte) 0);
+        count = 0;
+    }
+
+    /**
+     * Hand over the contents, leaving this stream empty. If the data exactly fills the buffer, the buffer itself is
+     * returned; otherwise the data is copied to an array of the exact length, and the buffer zeroed.
+     *
+     * @return the data written since the stream was created or last reset or emptied
+     */
+    public synchronized byte[] takeByteArray() {
+        byte[] data;
+        if (count == buf.length) {
+            data = buf;
+            buf = new byte[MIN_LENGTH];
+        } else {
+            data = Arrays.copyOf(buf, count);
+            Arrays.fill(buf, 0, count, (byte) 0);
+        }
+        count = 0;
+        return data;
+    }
+
+    private void ensureCapacity(int length) {
+        if (length < 0) {
+            throw new OutOfMemoryError("Data too long for a byte array");
+        }
+        if (length > buf.length) {
+            int doubled = (buf.length <= Integer.MAX_VALUE / 2) ? buf.length * 2 : Integer.MAX_VALUE;
+            byte[] grown = Arrays.copyOf(buf, Math.max(length, doubled));
+            Arrays.fill(buf, 0, count, (byte) 0);
+            buf = grown;
+        }
+    }
+}